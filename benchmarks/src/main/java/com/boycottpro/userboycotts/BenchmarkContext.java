@@ -0,0 +1,70 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * A Lambda context that always has the full timeout left, so the deadline is
+ * in force on every call as it is in the function but never runs out.
+ */
+final class BenchmarkContext implements Context {
+
+    static final int TIMEOUT_MILLIS = 30_000;
+
+    @Override
+    public String getAwsRequestId() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/users-add-boycott-lambda";
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getFunctionName() {
+        return "users-add-boycott-lambda";
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:us-east-1:000000000000:function:users-add-boycott-lambda";
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return TIMEOUT_MILLIS;
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return 1024;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return null;
+    }
+}
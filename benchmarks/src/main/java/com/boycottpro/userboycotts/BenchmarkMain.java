@@ -0,0 +1,49 @@
+package com.boycottpro.userboycotts;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * JMH's command line with this module's defaults: results written as JSON to
+ * jmh-result.json and the GC profiler on, so two runs can be compared for
+ * allocation as well as throughput. -rf, -rff and -prof replace the defaults.
+ */
+public final class BenchmarkMain {
+
+    static final String RESULT_FILE = "jmh-result.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (!cli.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cli.getResult().hasValue()) {
+            options.result(RESULT_FILE);
+        }
+        if (cli.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        Runner runner = new Runner(options.build());
+        if (cli.shouldList()) {
+            runner.list();
+        } else {
+            runner.run();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.boycottpro.userboycotts;
+
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AddBoycottForm from a request body: the ObjectMapper that handleRequest
+ * uses against BoycottFormReader, the streaming decoder behind
+ * StreamingAddUserBoycottsHandler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormParsingBenchmark {
+
+    @Param({"1", "10", "50"})
+    int reasons;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private String body;
+
+    @Setup
+    public void setUp() {
+        body = HandlerBenchmark.body(reasons, true);
+    }
+
+    @Benchmark
+    public AddBoycottForm objectMapper() throws IOException {
+        return objectMapper.readValue(body, AddBoycottForm.class);
+    }
+
+    @Benchmark
+    public AddBoycottForm formReader() throws IOException {
+        return BoycottFormReader.read(body);
+    }
+}
@@ -0,0 +1,124 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AddUserBoycottsHandler.handleRequest end to end, from the API Gateway event
+ * to the response, against InMemoryDynamoDbClient. The container is warm:
+ * after the first invocation the company and causes come from the validation
+ * caches, as they do in a function that has served the company before.
+ *
+ * partitionSize is how many rows the user already has under the company, the
+ * range the pre-check pages through; duplicateRatio is the share of the
+ * submitted causes among them (rounded down), which the pre-check drops
+ * before anything is written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    static final String USER_ID = "11111111-2222-3333-4444-555555555555";
+    static final String COMPANY_ID = "company-1";
+    static final String COMPANY_NAME = "Acme Corp";
+    static final String PERSONAL_REASON = "They treat their warehouse staff badly";
+
+    @Param({"1", "10", "25"})
+    int reasons;
+
+    @Param({"false", "true"})
+    boolean personalReason;
+
+    @Param({"0", "1000"})
+    int partitionSize;
+
+    @Param({"0.0", "0.5"})
+    double duplicateRatio;
+
+    private AddUserBoycottsHandler handler;
+    private APIGatewayProxyRequestEvent event;
+    private final Context context = new BenchmarkContext();
+
+    @Setup
+    public void setUp() {
+        InMemoryDynamoDbClient dynamoDb = new InMemoryDynamoDbClient().company(COMPANY_ID, COMPANY_NAME);
+        for (int i = 0; i < reasons; i++) {
+            dynamoDb.cause(causeId(i), causeDesc(i));
+        }
+        int duplicates = (int) (reasons * duplicateRatio);
+        for (int i = 0; i < duplicates; i++) {
+            dynamoDb.userBoycott(COMPANY_ID + "#" + causeId(i));
+        }
+        for (int i = 0; i < partitionSize; i++) {
+            dynamoDb.userBoycott(COMPANY_ID + "#earlier-cause-" + i);
+        }
+        // the lines are still built, only not printed
+        handler = new AddUserBoycottsHandler(dynamoDb).withLogSink(line -> { }).withMetricsSink(line -> { });
+        event = event(body(reasons, personalReason));
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent handleRequest() {
+        return handler.handleRequest(event, context);
+    }
+
+    static String causeId(int i) {
+        return "cause-" + i;
+    }
+
+    static String causeDesc(int i) {
+        return "Cause number " + i;
+    }
+
+    /**
+     * The request body for a submission about COMPANY_ID.
+     */
+    static String body(int reasons, boolean personalReason) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = BoycottFormReader.JSON.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("company_id", COMPANY_ID);
+            generator.writeStringField("company_name", COMPANY_NAME);
+            generator.writeArrayFieldStart("reasons");
+            for (int i = 0; i < reasons; i++) {
+                generator.writeStartObject();
+                generator.writeStringField("cause_id", causeId(i));
+                generator.writeStringField("cause_desc", causeDesc(i));
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            if (personalReason) {
+                generator.writeStringField("personal_reason", PERSONAL_REASON);
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    private static APIGatewayProxyRequestEvent event(String body) {
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", USER_ID));
+        APIGatewayProxyRequestEvent.ProxyRequestContext requestContext = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        requestContext.setAuthorizer(authorizer);
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        event.setRequestContext(requestContext);
+        event.setBody(body);
+        return event;
+    }
+}
@@ -0,0 +1,136 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * DynamoDbClient stand-in that answers the calls a submission makes from
+ * memory, so the handler can be measured without a network or DynamoDB Local.
+ * It knows companies, causes and one user's user_boycotts sort keys, and pages
+ * a Query the way DynamoDB does, QUERY_PAGE_ITEMS rows at a time. Writes are
+ * accepted and forgotten, so every invocation finds the same rows and does
+ * the same work.
+ */
+final class InMemoryDynamoDbClient implements DynamoDbClient {
+
+    static final int QUERY_PAGE_ITEMS = 1000;
+
+    private final Map<String, String> companies = new ConcurrentHashMap<>();
+    private final Map<String, String> causes = new ConcurrentHashMap<>();
+    private final NavigableSet<String> userBoycotts = new ConcurrentSkipListSet<>();
+
+    InMemoryDynamoDbClient company(String companyId, String companyName) {
+        companies.put(companyId, companyName);
+        return this;
+    }
+
+    InMemoryDynamoDbClient cause(String causeId, String causeDesc) {
+        causes.put(causeId, causeDesc);
+        return this;
+    }
+
+    /**
+     * A user_boycotts row the user already has, by its company_cause_id.
+     */
+    InMemoryDynamoDbClient userBoycott(String companyCauseId) {
+        userBoycotts.add(companyCauseId);
+        return this;
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        if ("companies".equals(request.tableName())) {
+            String companyId = request.key().get("company_id").s();
+            String companyName = companies.get(companyId);
+            if (companyName != null) {
+                return GetItemResponse.builder().item(Map.of(
+                        "company_id", AttributeValue.fromS(companyId),
+                        "company_name", AttributeValue.fromS(companyName))).build();
+            }
+        }
+        return GetItemResponse.builder().build();
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        AttributeValue prefixValue = request.expressionAttributeValues().get(":prefix");
+        String prefix = prefixValue == null ? "" : prefixValue.s();
+        NavigableSet<String> rows = request.hasExclusiveStartKey() && !request.exclusiveStartKey().isEmpty()
+                ? userBoycotts.tailSet(request.exclusiveStartKey().get("company_cause_id").s(), false)
+                : userBoycotts.tailSet(prefix, true);
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        String last = null;
+        for (String row : rows) {
+            if (!row.startsWith(prefix)) {
+                break;
+            }
+            if (items.size() == QUERY_PAGE_ITEMS) {
+                return QueryResponse.builder().items(items).count(items.size())
+                        .lastEvaluatedKey(Map.of(
+                                "user_id", request.expressionAttributeValues().get(":uid"),
+                                "company_cause_id", AttributeValue.fromS(last)))
+                        .build();
+            }
+            items.add(Map.of("company_cause_id", AttributeValue.fromS(row)));
+            last = row;
+        }
+        return QueryResponse.builder().items(items).count(items.size()).build();
+    }
+
+    /**
+     * Answers the pre-read: known causes come back, and the user follows none.
+     */
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        request.requestItems().forEach((table, keys) -> {
+            List<Map<String, AttributeValue>> found = new ArrayList<>();
+            if ("causes".equals(table)) {
+                for (Map<String, AttributeValue> key : keys.keys()) {
+                    String causeId = key.get("cause_id").s();
+                    String causeDesc = causes.get(causeId);
+                    if (causeDesc != null) {
+                        found.add(Map.of(
+                                "cause_id", AttributeValue.fromS(causeId),
+                                "cause_desc", AttributeValue.fromS(causeDesc)));
+                    }
+                }
+            }
+            responses.put(table, found);
+        });
+        return BatchGetItemResponse.builder().responses(responses).unprocessedKeys(Map.of()).build();
+    }
+
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        return TransactWriteItemsResponse.builder().build();
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        return UpdateItemResponse.builder().build();
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        return DeleteItemResponse.builder().build();
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,66 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response serialization: Responses against the ObjectMapper over a Map that
+ * the handlers used before it, for a constant body and for the 207 body
+ * whose error list varies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @Param({"1", "10"})
+    int errors;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private List<String> errorMessages;
+
+    @Setup
+    public void setUp() {
+        errorMessages = new ArrayList<>();
+        for (int i = 0; i < errors; i++) {
+            errorMessages.add("Transaction failed for cause: " + HandlerBenchmark.causeId(i));
+        }
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent allRecordedObjectMapper() throws JsonProcessingException {
+        return objectMapperResponse(200, Map.of("message", Responses.ALL_RECORDED.message()));
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent allRecorded() {
+        return Responses.ALL_RECORDED.event();
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent someRecordedObjectMapper() throws JsonProcessingException {
+        return objectMapperResponse(207, Map.of("message", "Some boycotts recorded.", "errors", errorMessages));
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent someRecorded() {
+        return Responses.someRecorded(errorMessages);
+    }
+
+    private APIGatewayProxyResponseEvent objectMapperResponse(int status, Object body) throws JsonProcessingException {
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(status)
+                .withHeaders(Map.of("Content-Type", "application/json"))
+                .withBody(objectMapper.writeValueAsString(body));
+    }
+}
@@ -7,327 +7,222 @@ import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent
 
 import com.boycottpro.models.ResponseMessage;
 import com.boycottpro.userboycotts.model.AddBoycottForm;
-import com.boycottpro.utilities.CauseValidator;
-import com.boycottpro.utilities.CompanyValidator;
 import com.boycottpro.utilities.JwtUtility;
-import com.boycottpro.utilities.Logger;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.model.*;
 
-import java.time.Instant;
+import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
 
-public class AddUserBoycottsHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class AddUserBoycottsHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-    private final DynamoDbClient dynamoDb;
+    static final String OPERATION = "AddUserBoycotts";
+
+    private DynamoDbClient dynamoDb;
+    private DynamoGateway gateway;
+    private ShardedCounters counters = ShardedCounters.SHARED;
+    private boolean countersFromStream = BoycottRecorder.COUNTERS_FROM_STREAM;
+    private double capacityBudgetUnits = CapacityBudget.LIMIT_UNITS;
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private Consumer<String> logSink = Log.STDOUT;
+    private Consumer<String> metricsSink = Metrics.STDOUT;
+
+    /**
+     * DYNAMODB_EXECUTION_MODE picks how the DynamoDB calls run; see
+     * DynamoDbClients.configuredGateway.
+     */
     public AddUserBoycottsHandler() {
-        this.dynamoDb = DynamoDbClient.create();
+        this.dynamoDb = DynamoDbClients.shared();
+        this.gateway = DynamoDbClients.configuredGateway(dynamoDb);
+        // the runtime holds on to the handler, so the weakly referenced registration stays alive
+        Core.getGlobalContext().register(this);
     }
 
     public AddUserBoycottsHandler(DynamoDbClient dynamoDb) {
         this.dynamoDb = dynamoDb;
+        this.gateway = new SyncDynamoGateway(dynamoDb);
     }
 
-    @Override
-    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
-        String sub = null;
-        int lineNum = 37;
-        try {
-            sub = JwtUtility.getSubFromRestEvent(event);
-            if (sub == null) {
-            Logger.error(41, sub, "user is Unauthorized");
-            return response(401, Map.of("message", "Unauthorized"));
-            }
-            lineNum = 44;
-            AddBoycottForm input = objectMapper.readValue(event.getBody(), AddBoycottForm.class);
-            input.setUser_id(sub);
-            String companyId = input.getCompany_id();
-            String companyName = input.getCompany_name();
-            List<AddBoycottForm.Reason> reasons = input.getReasons();
-            String personalReason = input.getPersonal_reason();
-            // validate company_id
-            CompanyValidator companyValidator = new CompanyValidator(this.dynamoDb,"companies");
-            lineNum = 53;
-            boolean validCompany = companyValidator.validateCompanyName(companyId,companyName);
-            lineNum = 55;
-            if(!validCompany) {
-                throw new RuntimeException("not a valid company!");
-            }
-            lineNum = 59;
-            String now = Instant.now().toString();
-            boolean userHasBoycott = userHasAnyBoycott(sub, companyId);
-            lineNum = 62;
-            boolean anySuccess = false;
-            List<String> errors = new ArrayList<>();
-            for (AddBoycottForm.Reason reason : reasons) {
-                String causeId = reason.getCause_id();
-                lineNum = 67;
-                if (userHasSpecificBoycott(sub, companyId, causeId)) {
-                    continue;
-                }
-                CauseValidator causeValidator = new CauseValidator(this.dynamoDb,"causes");
-                lineNum = 72;
-                boolean validCause = causeValidator.validateCauseDescription(causeId, reason.getCause_desc());
-                lineNum = 74;
-                if(!validCause) {
-                    continue;
-                }
-                List<TransactWriteItem> actions = new ArrayList<>();
-                actions.add(TransactWriteItem.builder()
-                        .put(Put.builder().tableName("user_boycotts")
-                                .item(Map.of(
-                                        "user_id", AttributeValue.fromS(sub),
-                                        "company_id", AttributeValue.fromS(companyId),
-                                        "company_name", AttributeValue.fromS(companyName),
-                                        "cause_id", AttributeValue.fromS(causeId),
-                                        "cause_desc", AttributeValue.fromS(reason.getCause_desc()),
-                                        "company_cause_id", AttributeValue.fromS(companyId+"#"+causeId),
-                                        "timestamp", AttributeValue.fromS(now)
-                                )).build()).build());
-                lineNum = 90;
-                if (!userIsFollowingCause(sub, causeId)) {
-                    lineNum = 92;
-                    actions.add(TransactWriteItem.builder()
-                            .put(Put.builder().tableName("user_causes")
-                                    .item(Map.of(
-                                            "user_id", AttributeValue.fromS(sub),
-                                            "cause_id", AttributeValue.fromS(causeId),
-                                            "cause_desc", AttributeValue.fromS(reason.getCause_desc()),
-                                            "timestamp", AttributeValue.fromS(now)
-                                    )).build()).build());
-                    lineNum = 101;
-                    actions.add(TransactWriteItem.builder()
-                            .update(Update.builder()
-                                    .tableName("causes")
-                                    .key(Map.of("cause_id", AttributeValue.fromS(causeId)))
-                                    .updateExpression("SET follower_count = if_not_exists(follower_count, :zero) + :inc")
-                                    .expressionAttributeValues(Map.of(
-                                            ":zero", AttributeValue.fromN("0"),
-                                            ":inc", AttributeValue.fromN("1")
-                                    ))
-                                    .build()).build());
-                    lineNum = 112;
-                }
-                lineNum = 114;
-                if (findCauseCompanyRecord(causeId, companyId)) {
-                    lineNum = 116;
-                    actions.add(
-                            TransactWriteItem.builder()
-                                    .update(Update.builder()
-                                            .tableName("cause_company_stats")
-                                            .key(Map.of(
-                                                    "cause_id", AttributeValue.fromS(causeId),
-                                                    "company_id", AttributeValue.fromS(companyId)
-                                            ))
-                                            .updateExpression("SET boycott_count = if_not_exists(boycott_count, :zero) + :inc")
-                                            .expressionAttributeValues(Map.of(
-                                                    ":zero", AttributeValue.fromN("0"),
-                                                    ":inc", AttributeValue.fromN("1")
-                                            ))
-                                            .build())
-                                    .build()
-                    );
-                } else {
-                    lineNum = 134;
-                    actions.add(
-                            TransactWriteItem.builder()
-                                    .put(Put.builder()
-                                            .tableName("cause_company_stats")
-                                            .item(Map.of(
-                                                    "cause_id", AttributeValue.fromS(causeId),
-                                                    "company_id", AttributeValue.fromS(companyId),
-                                                    "company_name", AttributeValue.fromS(companyName),
-                                                    "cause_desc", AttributeValue.fromS(reason.getCause_desc()),
-                                                    "boycott_count", AttributeValue.fromN("1")
-                                            ))
-                                            .build())
-                                    .build()
-                    );
-                }
-                lineNum = 150;
-                try {
-                    lineNum = 152;
-                    dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
-                            .transactItems(actions).build());
-                    anySuccess = true;
-                    lineNum = 156;
-                } catch (RuntimeException e) {
-                    Logger.error(lineNum, sub, "Failed to record boycott for cause: " + causeId + " -> " + e.getMessage());
-                    errors.add("Failed to record boycott for cause: " + causeId + " -> " + e.getMessage());
-                }
-            }
-            lineNum = 162;
-            if (personalReason != null && !personalReason.isBlank()
-                    && !userHasPersonalReason(sub, companyId, personalReason)) {
-                lineNum = 165;
-                List<TransactWriteItem> actions = List.of(
-                        TransactWriteItem.builder()
-                                .put(Put.builder()
-                                        .tableName("user_boycotts")
-                                        .item(Map.of(
-                                                "user_id", AttributeValue.fromS(sub),
-                                                "company_id", AttributeValue.fromS(companyId),
-                                                "company_name", AttributeValue.fromS(companyName),
-                                                "company_cause_id", AttributeValue.fromS(personalReason+"#"+companyId),
-                                                "timestamp", AttributeValue.fromS(now),
-                                                "personal_reason", AttributeValue.fromS(personalReason)
-                                        )).build()).build()
-                );
-                lineNum = 179;
-                try {
-                    dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
-                            .transactItems(actions).build());
-                    anySuccess = true;
-                    lineNum = 184;
-                } catch (RuntimeException e) {
-                    Logger.error(lineNum, sub,
-                            "Failed to record boycott for personal reason: " + personalReason + " -> " + e.getMessage());
-                            errors.add("Failed to record boycott for personal reason: " + personalReason + " -> " + e.getMessage());
-                }
-            }
-            lineNum = 191;
-            if (!userHasBoycott && anySuccess) {
-                lineNum = 193;
-                dynamoDb.updateItem(UpdateItemRequest.builder()
-                        .tableName("companies")
-                        .key(Map.of("company_id", AttributeValue.fromS(companyId)))
-                        .updateExpression("SET boycott_count = boycott_count + :inc")
-                        .expressionAttributeValues(Map.of(
-                                ":inc", AttributeValue.fromN("1")
-                        )).build());
-            }
-            lineNum = 202;
-            if (!anySuccess) {
-                Logger.error(lineNum, sub,
-                        "No new boycotts were recorded. Possible duplicates.");
-                return response(409, Map.of("message",
-                        "No new boycotts were recorded. Possible duplicates."));
-            } else if (!errors.isEmpty()) {
-                Logger.error(lineNum, sub,
-                        "Some boycotts recorded. Errors: " + objectMapper.writeValueAsString(errors));
-                return response(207, Map.of("message",
-                        "Some boycotts recorded. Errors: " + objectMapper.writeValueAsString(errors)));
-            } else {
-                lineNum = 214;
-                return response(200, Map.of("message",
-                        "All boycotts recorded successfully."));
-            }
+    /**
+     * Async mode; the blocking client is still needed for the shared company validator.
+     */
+    public static AddUserBoycottsHandler withAsyncClient(DynamoDbClient dynamoDb, DynamoDbAsyncClient dynamoDbAsync) {
+        AddUserBoycottsHandler handler = new AddUserBoycottsHandler(dynamoDb);
+        handler.gateway = new AsyncDynamoGateway(dynamoDbAsync);
+        return handler;
+    }
 
-        } catch (Exception e) {
-            Logger.error(lineNum, sub, e.getMessage());
-            return response(500,Map.of("error", "Unexpected server error: " + e.getMessage()) );
-        }
+    public static AddUserBoycottsHandler withVirtualThreads(DynamoDbClient dynamoDb, int maxConcurrency) {
+        AddUserBoycottsHandler handler = new AddUserBoycottsHandler(dynamoDb);
+        handler.gateway = new VirtualThreadDynamoGateway(dynamoDb, maxConcurrency);
+        return handler;
     }
 
-    private APIGatewayProxyResponseEvent response(int status, Object body) {
-        String responseBody = null;
-        try {
-            responseBody = objectMapper.writeValueAsString(body);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
-        return new APIGatewayProxyResponseEvent()
-                .withStatusCode(status)
-                .withHeaders(Map.of("Content-Type", "application/json"))
-                .withBody(responseBody);
+    AddUserBoycottsHandler withCounters(ShardedCounters counters) {
+        this.counters = counters;
+        return this;
     }
 
-    public boolean findCauseCompanyRecord(String causeId, String companyId) {
-        try {
-            GetItemRequest request = GetItemRequest.builder()
-                    .tableName("cause_company_stats")
-                    .key(Map.of(
-                            "cause_id", AttributeValue.fromS(causeId),
-                            "company_id", AttributeValue.fromS(companyId)
-                    ))
-                    .build();
+    AddUserBoycottsHandler withCountersFromStream(boolean countersFromStream) {
+        this.countersFromStream = countersFromStream;
+        return this;
+    }
 
-            GetItemResponse response = dynamoDb.getItem(request);
-            return response.hasItem();
+    AddUserBoycottsHandler withCapacityBudget(double capacityBudgetUnits) {
+        this.capacityBudgetUnits = capacityBudgetUnits;
+        return this;
+    }
 
-        } catch (DynamoDbException e) {
-            // Optional: log the exception or rethrow
-            return false;
-        }
+    AddUserBoycottsHandler withLogSink(Consumer<String> logSink) {
+        this.logSink = logSink;
+        return this;
     }
 
-    private boolean userHasAnyBoycott(String userId, String companyId) {
-        try {
-            QueryRequest request = QueryRequest.builder()
-                    .tableName("user_boycotts")
-                    .keyConditionExpression("user_id = :uid")
-                    .expressionAttributeValues(Map.of(
-                            ":uid", AttributeValue.builder().s(userId).build()
-                    ))
-                    .build();
+    AddUserBoycottsHandler withMetricsSink(Consumer<String> metricsSink) {
+        this.metricsSink = metricsSink;
+        return this;
+    }
 
-            QueryResponse response = dynamoDb.query(request);
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        Priming.prime(objectMapper, gateway, Log.NO_REQUEST);
+    }
 
-            return response.items().stream()
-                    .anyMatch(item -> companyId.equals(item.get("company_id").s()));
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        DynamoDbClients.refresh();
+        this.dynamoDb = DynamoDbClients.shared();
+        this.gateway = DynamoDbClients.configuredGateway(dynamoDb);
+    }
 
-        } catch (DynamoDbException e) {
-            System.err.println("DynamoDB query failed: " + e.getMessage());
-            return false;
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Log log = Log.begin(context, logSink);
+        if (Priming.isWarmup(event)) {
+            Priming.prime(objectMapper, gateway, log);
+            return Responses.WARM.event();
         }
+        Metrics metrics = new Metrics(OPERATION, context, metricsSink);
+        return metrics.flush(handle(event, context, body -> objectMapper.readValue(body, AddBoycottForm.class), metrics,
+                log));
     }
 
-    private boolean userHasSpecificBoycott(String userId, String companyId, String causeId) {
-        System.out.println("checking for specific boycotts for this company");
-        QueryRequest request = QueryRequest.builder()
-                .tableName("user_boycotts")
-                .keyConditionExpression("user_id = :uid AND company_cause_id = :caid")
-                .expressionAttributeValues(Map.of(
-                        ":uid", AttributeValue.builder().s(userId).build(),
-                        ":caid", AttributeValue.builder().s(companyId+"#"+causeId).build()
-                ))
-                .limit(1)
-                .build();
-        System.out.println("checked for specific boycotts for this company");
-        return !dynamoDb.query(request).items().isEmpty();
+    /**
+     * How the body becomes a form; StreamingAddUserBoycottsHandler hands in
+     * the form it has already decoded.
+     */
+    interface FormReader {
+        AddBoycottForm read(String body) throws IOException;
     }
 
-    public boolean userHasPersonalReason(String userId, String companyId, String personalReason) {
+    APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context, FormReader formReader,
+                                        Metrics metrics, Log log) {
+        CapacityBudget capacity = new CapacityBudget(capacityBudgetUnits);
+        String sub = null;
+        int lineNum = 126;
         try {
-            QueryRequest queryRequest = QueryRequest.builder()
-                    .tableName("user_boycotts")
-                    .keyConditionExpression("user_id = :uid")
-                    .expressionAttributeValues(Map.of(":uid", AttributeValue.fromS(userId)))
-                    .build();
-
-            QueryResponse response = dynamoDb.query(queryRequest);
-            boolean alreadyHasPersonalReason = response.items().stream().anyMatch(item ->
-                    item.containsKey("company_id") &&
-                            item.get("company_id").s().equals(companyId) &&
-                            item.containsKey("personal_reason") &&
-                            !item.get("personal_reason").s().isBlank() &&
-                            item.get("personal_reason").s().equalsIgnoreCase(personalReason)
-            );
-            System.out.println("alreadyHasPersonalReason = " + alreadyHasPersonalReason);
-            return alreadyHasPersonalReason;
-
-        } catch (DynamoDbException e) {
-            System.out.println("issue checking the personal reason");
-            e.printStackTrace();
-            return false;
+            sub = JwtUtility.getSubFromRestEvent(event);
+            if (sub == null) {
+            log.error(130, sub, "user is Unauthorized");
+            return Responses.UNAUTHORIZED.event();
+            }
+            log = log.forUser(sub);
+            lineNum = 134;
+            // every call from here on is bounded by the time the invocation has left
+            Deadline deadline = Deadline.from(context);
+            DynamoGateway gateway = capacity.track(metrics.meter(deadline.bound(this.gateway)));
+            // a retry with the Idempotency-Key of a finished request gets that request's response
+            IdempotencyStore.Claim claim = new IdempotencyStore(gateway, log).claim(sub, event);
+            if (claim.response() != null) {
+                return claim.response();
+            }
+            return claim.complete(recordBoycotts(sub, event, formReader, gateway, deadline, metrics, log, claim));
+        } catch (Exception e) {
+            log.error(lineNum, sub, e.getMessage());
+            return Responses.error(500, "Unexpected server error: " + e.getMessage());
+        } finally {
+            capacity.report(metrics, log);
         }
     }
 
+    private APIGatewayProxyResponseEvent recordBoycotts(String sub, APIGatewayProxyRequestEvent event, FormReader formReader,
+                                                        DynamoGateway gateway, Deadline deadline, Metrics metrics,
+                                                        Log log, IdempotencyStore.Claim claim) {
+        int lineNum = 155;
+        try {
+            long parsing = System.nanoTime();
+            AddBoycottForm input;
+            try {
+                input = formReader.read(event.getBody());
+            } catch (IOException | IllegalArgumentException e) {
+                // the same 400 StreamingAddUserBoycottsHandler gives a body it cannot read
+                log.error(lineNum, sub, () -> "Malformed body: " + e.getMessage());
+                return Responses.message(400, "Malformed request body.");
+            }
+            metrics.time("ParseTime", parsing);
+            input.setUser_id(sub);
+            lineNum = 168;
+            BoycottRecorder.Outcome result = new BoycottRecorder(gateway, counters, countersFromStream)
+                    .withDeadline(deadline)
+                    .withMetrics(metrics)
+                    .withLog(log)
+                    .record(sub, List.of(input));
+            BoycottRecorder.CompanyResult company = result.getCompanies().get(0);
+            if (BoycottRecorder.INVALID_COMPANY.equals(company.getStatus())) {
+                throw new RuntimeException("not a valid company!");
+            }
+            boolean anySuccess = result.anySuccess();
+            List<String> errors = result.getErrors();
+            for (String error : errors) {
+                log.error(lineNum, sub, error);
+            }
+            lineNum = 183;
+            if (result.hasUnprocessed()) {
+                // out of time: report what was left rather than let the function time out, and keep the
+                // Idempotency-Key open so the retry records it
+                claim.unfinished();
+                List<String> unprocessedCauses = company.getCauses().entrySet().stream()
+                        .filter(cause -> BoycottRecorder.UNPROCESSED.equals(cause.getValue()))
+                        .map(Map.Entry::getKey)
+                        .toList();
+                String unprocessedReason = company.getPersonal_reasons().entrySet().stream()
+                        .filter(reason -> BoycottRecorder.UNPROCESSED.equals(reason.getValue()))
+                        .map(Map.Entry::getKey)
+                        .findFirst()
+                        .orElse(null);
+                APIGatewayProxyResponseEvent response = Responses.json(207, generator -> {
+                    generator.writeStringField("message", "Not every boycott could be recorded in time.");
+                    Responses.strings(generator, "unprocessed_causes", unprocessedCauses);
+                    if (unprocessedReason != null) {
+                        generator.writeStringField("unprocessed_personal_reason", unprocessedReason);
+                    }
+                    if (!errors.isEmpty()) {
+                        Responses.strings(generator, "errors", errors);
+                    }
+                });
+                log.error(lineNum, sub, () -> "Ran out of time: " + response.getBody());
+                return response;
+            }
+            lineNum = 210;
+            if (!anySuccess) {
+                log.error(lineNum, sub, Responses.NO_NEW_BOYCOTTS.message());
+                return Responses.NO_NEW_BOYCOTTS.event();
+            } else if (!errors.isEmpty()) {
+                APIGatewayProxyResponseEvent response = Responses.someRecorded(errors);
+                log.error(lineNum, sub, () -> "Some boycotts recorded: " + response.getBody());
+                return response;
+            } else {
+                lineNum = 219;
+                return Responses.ALL_RECORDED.event();
+            }
 
-    private boolean userIsFollowingCause(String userId, String causeId) {
-        QueryRequest request = QueryRequest.builder()
-                .tableName("user_causes")
-                .keyConditionExpression("user_id = :uid AND cause_id = :cid")
-                .expressionAttributeValues(Map.of(
-                        ":uid", AttributeValue.builder().s(userId).build(),
-                        ":cid", AttributeValue.builder().s(causeId).build()
-                ))
-                .limit(1)
-                .build();
-
-        return !dynamoDb.query(request).items().isEmpty();
+        } catch (Exception e) {
+            log.error(lineNum, sub, e.getMessage());
+            return Responses.error(500, "Unexpected server error: " + e.getMessage());
+        }
     }
 }
\ No newline at end of file
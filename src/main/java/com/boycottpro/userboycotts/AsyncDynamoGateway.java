@@ -0,0 +1,69 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Gateway over the non-blocking client. Calls return as soon as the request
+ * is handed to the HTTP layer; blocking work is moved to a small daemon pool.
+ */
+public class AsyncDynamoGateway implements DynamoGateway {
+
+    private static final ExecutorService BLOCKING_WORK = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dynamodb-offload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DynamoDbAsyncClient dynamoDb;
+
+    public AsyncDynamoGateway(DynamoDbAsyncClient dynamoDb) {
+        this.dynamoDb = dynamoDb;
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return dynamoDb.getItem(request);
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        return dynamoDb.query(request);
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return dynamoDb.batchGetItem(request);
+    }
+
+    @Override
+    public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+        return dynamoDb.transactWriteItems(request);
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return dynamoDb.updateItem(request);
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return dynamoDb.deleteItem(request);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> offload(Supplier<T> work) {
+        return CompletableFuture.supplyAsync(work, BLOCKING_WORK);
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis) {
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,154 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builders for the transaction actions a boycott submission writes. Kept in
+ * one place so the handler and the snapshot priming build identical requests.
+ */
+final class BoycottActions {
+
+    // (user_id, company_id) leases that settle which of two racing first boycotts raises boycott_count
+    static final String MARKER_TABLE = "user_company_boycotts";
+    static final long MARKER_LEASE_SECONDS = Env.integer("MARKER_LEASE_SECONDS", 60);
+
+    private BoycottActions() {
+    }
+
+    static TransactWriteItem causeBoycott(String userId, String companyId, String companyName,
+                                          String causeId, String causeDesc, String now) {
+        return TransactWriteItem.builder()
+                .put(Put.builder().tableName("user_boycotts")
+                        .item(Map.of(
+                                "user_id", AttributeValue.fromS(userId),
+                                "company_id", AttributeValue.fromS(companyId),
+                                "company_name", AttributeValue.fromS(companyName),
+                                "cause_id", AttributeValue.fromS(causeId),
+                                "cause_desc", AttributeValue.fromS(causeDesc),
+                                "company_cause_id", AttributeValue.fromS(companyId + "#" + causeId),
+                                "timestamp", AttributeValue.fromS(now)
+                        ))
+                        // an existing row cancels the transaction and is reported as a duplicate
+                        .conditionExpression("attribute_not_exists(company_cause_id)")
+                        .build()).build();
+    }
+
+    static List<TransactWriteItem> followCause(String userId, String causeId, String causeDesc, String now) {
+        return List.of(
+                TransactWriteItem.builder()
+                        .put(Put.builder().tableName("user_causes")
+                                .item(Map.of(
+                                        "user_id", AttributeValue.fromS(userId),
+                                        "cause_id", AttributeValue.fromS(causeId),
+                                        "cause_desc", AttributeValue.fromS(causeDesc),
+                                        "timestamp", AttributeValue.fromS(now)
+                                ))
+                                // a follow that is already there drops the rider, so follower_count is not raised twice
+                                .conditionExpression("attribute_not_exists(cause_id)")
+                                .build()).build(),
+                TransactWriteItem.builder()
+                        .update(Update.builder()
+                                .tableName("causes")
+                                .key(Map.of("cause_id", AttributeValue.fromS(causeId)))
+                                .updateExpression("SET follower_count = if_not_exists(follower_count, :zero) + :inc")
+                                .expressionAttributeValues(Map.of(
+                                        ":zero", AttributeValue.fromN("0"),
+                                        ":inc", AttributeValue.fromN("1")
+                                ))
+                                .build()).build());
+    }
+
+    static TransactWriteItem causeCompanyStats(String companyId, String companyName, String causeId, String causeDesc) {
+        // single upsert: no read of the stats row and no Put that could clobber a concurrent first boycott
+        return TransactWriteItem.builder()
+                .update(Update.builder()
+                        .tableName("cause_company_stats")
+                        .key(Map.of(
+                                "cause_id", AttributeValue.fromS(causeId),
+                                "company_id", AttributeValue.fromS(companyId)
+                        ))
+                        .updateExpression("SET boycott_count = if_not_exists(boycott_count, :zero) + :inc, "
+                                + "company_name = if_not_exists(company_name, :cname), "
+                                + "cause_desc = if_not_exists(cause_desc, :cdesc)")
+                        .expressionAttributeValues(Map.of(
+                                ":zero", AttributeValue.fromN("0"),
+                                ":inc", AttributeValue.fromN("1"),
+                                ":cname", AttributeValue.fromS(companyName),
+                                ":cdesc", AttributeValue.fromS(causeDesc)
+                        ))
+                        .build())
+                .build();
+    }
+
+    static List<TransactWriteItem> personalReason(String userId, String companyId, String companyName,
+                                                  String personalReason, String now) {
+        return List.of(
+                TransactWriteItem.builder()
+                        .put(Put.builder()
+                                .tableName("user_boycotts")
+                                .item(Map.of(
+                                        "user_id", AttributeValue.fromS(userId),
+                                        "company_id", AttributeValue.fromS(companyId),
+                                        "company_name", AttributeValue.fromS(companyName),
+                                        "company_cause_id", AttributeValue.fromS(UserBoycottsView.personalReasonKey(companyId, personalReason)),
+                                        "timestamp", AttributeValue.fromS(now),
+                                        "personal_reason", AttributeValue.fromS(personalReason)
+                                ))
+                                .conditionExpression("attribute_not_exists(company_cause_id)")
+                                .build()).build(),
+                // rows written before the normalized key existed are keyed "<reason>#<company_id>"; this
+                // catches the exact text in one that LegacyPersonalReasonMigration has not moved yet
+                TransactWriteItem.builder()
+                        .conditionCheck(ConditionCheck.builder()
+                                .tableName("user_boycotts")
+                                .key(Map.of(
+                                        "user_id", AttributeValue.fromS(userId),
+                                        "company_cause_id", AttributeValue.fromS(personalReason + "#" + companyId)
+                                ))
+                                .conditionExpression("attribute_not_exists(company_cause_id)")
+                                .build()).build()
+        );
+    }
+
+    /**
+     * The marker makes the first-boycott decision exact: of two racing requests
+     * only one can write it, and the loser's transaction is resent without the
+     * marker and the increment. It lives in its own table, so listings of
+     * user_boycotts never see it, and is only a lease: the pre-check already
+     * rules out a user who has rows for the company, so once the lease has
+     * run out (expires_at, also the table's TTL attribute) a boycott after the
+     * user's rows were removed takes it over and counts again.
+     */
+    static List<TransactWriteItem> firstBoycottRiders(String userId, String companyId, String now) {
+        long nowSeconds = Instant.parse(now).getEpochSecond();
+        return List.of(
+                TransactWriteItem.builder()
+                        .put(Put.builder()
+                                .tableName(MARKER_TABLE)
+                                .item(Map.of(
+                                        "user_id", AttributeValue.fromS(userId),
+                                        "company_id", AttributeValue.fromS(companyId),
+                                        "timestamp", AttributeValue.fromS(now),
+                                        "expires_at", AttributeValue.fromN(Long.toString(nowSeconds + MARKER_LEASE_SECONDS))
+                                ))
+                                .conditionExpression("attribute_not_exists(company_id) OR expires_at < :now")
+                                .expressionAttributeValues(Map.of(":now", AttributeValue.fromN(Long.toString(nowSeconds))))
+                                .build())
+                        .build(),
+                TransactWriteItem.builder()
+                        .update(Update.builder()
+                                .tableName("companies")
+                                .key(Map.of("company_id", AttributeValue.fromS(companyId)))
+                                .updateExpression("SET boycott_count = if_not_exists(boycott_count, :zero) + :inc")
+                                .expressionAttributeValues(Map.of(
+                                        ":zero", AttributeValue.fromN("0"),
+                                        ":inc", AttributeValue.fromN("1")
+                                ))
+                                .build())
+                        .build());
+    }
+}
@@ -0,0 +1,106 @@
+package com.boycottpro.userboycotts;
+
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes an AddBoycottForm straight off a streaming parser, without the
+ * reflection ObjectMapper goes through. Like the ObjectMapper the API
+ * handler uses, it rejects fields the form does not have.
+ */
+final class BoycottFormReader {
+
+    static final JsonFactory JSON = new JsonFactory();
+
+    private BoycottFormReader() {
+    }
+
+    static AddBoycottForm read(String body) throws IOException {
+        if (body == null) {
+            throw new MalformedRequestException("request body is missing");
+        }
+        try (JsonParser parser = JSON.createParser(body)) {
+            parser.nextToken();
+            AddBoycottForm form = read(parser);
+            if (parser.nextToken() != null) {
+                throw new MalformedRequestException("unexpected content after the request body");
+            }
+            return form;
+        }
+    }
+
+    static AddBoycottForm read(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        AddBoycottForm form = new AddBoycottForm();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "user_id" -> form.setUser_id(text(parser));
+                case "company_id" -> form.setCompany_id(text(parser));
+                case "company_name" -> form.setCompany_name(text(parser));
+                case "personal_reason" -> form.setPersonal_reason(text(parser));
+                case "reasons" -> form.setReasons(reasons(parser));
+                default -> throw new MalformedRequestException("unrecognized field \"" + field + "\"");
+            }
+        }
+        return form;
+    }
+
+    private static List<AddBoycottForm.Reason> reasons(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, JsonToken.START_ARRAY);
+        List<AddBoycottForm.Reason> reasons = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            expect(parser, JsonToken.START_OBJECT);
+            AddBoycottForm.Reason reason = new AddBoycottForm.Reason();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "cause_id" -> reason.setCause_id(text(parser));
+                    case "cause_desc" -> reason.setCause_desc(text(parser));
+                    default -> throw new MalformedRequestException("unrecognized field \"" + field + "\"");
+                }
+            }
+            reasons.add(reason);
+        }
+        return reasons;
+    }
+
+    private static String text(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token == null || !token.isScalarValue()) {
+            throw new MalformedRequestException("expected a string at " + parser.currentLocation());
+        }
+        return parser.getText();
+    }
+
+    private static void expect(JsonParser parser, JsonToken expected) throws MalformedRequestException {
+        if (parser.currentToken() != expected) {
+            throw new MalformedRequestException("expected " + expected + " but found " + parser.currentToken());
+        }
+    }
+
+    /**
+     * The request cannot be read; answered with 400, not 500.
+     */
+    static final class MalformedRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedRequestException(String message) {
+            super(message);
+        }
+    }
+}
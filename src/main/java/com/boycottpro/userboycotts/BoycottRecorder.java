@@ -0,0 +1,359 @@
+package com.boycottpro.userboycotts;
+
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records one user's boycotts of one or more companies. Every company is
+ * validated up front, the user's rows and the causes are read once for the
+ * whole submission, and all new rows go through a single TransactionBatcher,
+ * so units of different companies share transactions. Each company's
+ * first-boycott riders travel with that company's first committed unit.
+ */
+public class BoycottRecorder {
+
+    public static final String RECORDED = "recorded";
+    public static final String PARTIAL = "partial";
+    public static final String UNCHANGED = "unchanged";
+    public static final String FAILED = "failed";
+    public static final String DUPLICATE = "duplicate";
+    public static final String INVALID_CAUSE = "invalid_cause";
+    public static final String INVALID_COMPANY = "invalid_company";
+    public static final String UNPROCESSED = "unprocessed";
+
+    // COUNTER_UPDATES=stream leaves the counters to CounterStreamHandler
+    static final boolean COUNTERS_FROM_STREAM = "stream".equalsIgnoreCase(Env.string("COUNTER_UPDATES", "inline"));
+    // rider group of a cause's follow; the other rider groups are company ids
+    static final String FOLLOW_GROUP_PREFIX = "follow#";
+
+    private final DynamoGateway gateway;
+    private final ShardedCounters counters;
+    private final boolean countersFromStream;
+    private CounterOutbox outbox;
+    private Deadline deadline = Deadline.NONE;
+    private Metrics metrics = Metrics.NONE;
+    private Log log = Log.NO_REQUEST;
+
+    public BoycottRecorder(DynamoGateway gateway, ShardedCounters counters, boolean countersFromStream) {
+        this.gateway = gateway;
+        this.counters = counters;
+        this.countersFromStream = countersFromStream;
+    }
+
+    /**
+     * Writes each transaction's counter increments to the outbox, in the same
+     * transaction, for the caller to drain.
+     */
+    public BoycottRecorder withCounterOutbox(CounterOutbox outbox) {
+        this.outbox = outbox;
+        return this;
+    }
+
+    /**
+     * Stops starting new transactions when the deadline is nearly used up;
+     * what is left is reported as unprocessed.
+     */
+    public BoycottRecorder withDeadline(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Times the validation, pre-check and transaction phases and counts the
+     * reasons recorded and skipped. The gateway is metered by the caller.
+     */
+    public BoycottRecorder withMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * The invocation's log, for what the reads and writes have to report.
+     */
+    public BoycottRecorder withLog(Log log) {
+        this.log = log;
+        return this;
+    }
+
+    /**
+     * What happened to one company: its overall status and the status of
+     * every cause and personal reason that was submitted for it.
+     */
+    public static class CompanyResult {
+        private final String company_id;
+        private String status;
+        private final Map<String, String> causes = new LinkedHashMap<>();
+        private final Map<String, String> personal_reasons = new LinkedHashMap<>();
+        private final List<String> errors = new ArrayList<>();
+
+        CompanyResult(String company_id) {
+            this.company_id = company_id;
+        }
+
+        public String getCompany_id() {
+            return company_id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public Map<String, String> getCauses() {
+            return causes;
+        }
+
+        public Map<String, String> getPersonal_reasons() {
+            return personal_reasons;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+
+    public static class Outcome {
+        private final List<CompanyResult> companies;
+        private final TransactionBatcher.Result result;
+
+        private Outcome(List<CompanyResult> companies, TransactionBatcher.Result result) {
+            this.companies = companies;
+            this.result = result;
+        }
+
+        public List<CompanyResult> getCompanies() {
+            return companies;
+        }
+
+        public boolean anySuccess() {
+            return result.anySuccess();
+        }
+
+        /**
+         * Write failures, in the "Failed to record boycott for ..." form.
+         */
+        public List<String> getErrors() {
+            return result.getErrors();
+        }
+
+        public boolean hasUnprocessed() {
+            return !result.getUnprocessed().isEmpty();
+        }
+
+        /**
+         * The outbox entries written by the transactions that committed.
+         */
+        public List<CounterOutbox.Entry> getOutboxEntries() {
+            return result.getOutboxEntries();
+        }
+    }
+
+    private static final class Company {
+        private final String id;
+        private final String name;
+        private final List<AddBoycottForm.Reason> reasons = new ArrayList<>();
+        private final List<String> personalReasons = new ArrayList<>();
+        private final CompanyResult result;
+        private CompletableFuture<Boolean> valid;
+
+        private Company(String id, String name) {
+            this.id = id;
+            this.name = name;
+            this.result = new CompanyResult(id);
+        }
+    }
+
+    private record Slot(CompanyResult company, Map<String, String> statuses, String key) {
+    }
+
+    /**
+     * Entries for the same company are merged, so no item is written twice in
+     * one transaction. A failing company validator fails the whole call.
+     */
+    public Outcome record(String userId, List<AddBoycottForm> submissions) {
+        Map<String, Company> companies = new LinkedHashMap<>();
+        for (AddBoycottForm submission : submissions) {
+            Company company = companies.computeIfAbsent(submission.getCompany_id(),
+                    id -> new Company(id, submission.getCompany_name()));
+            if (submission.getReasons() != null) {
+                company.reasons.addAll(submission.getReasons());
+            }
+            String personalReason = submission.getPersonal_reason();
+            if (personalReason != null && !personalReason.isBlank()) {
+                company.personalReasons.add(personalReason);
+            }
+        }
+        List<CompanyResult> results = companies.values().stream().map(company -> company.result).toList();
+        long validating = System.nanoTime();
+        companies.values().forEach(company -> company.valid = validate(company.id, company.name));
+        metrics.time("CompanyValidationTime", validating, CompletableFuture.allOf(companies.values().stream()
+                .map(company -> company.valid).toArray(CompletableFuture[]::new)));
+        if (companies.values().stream().allMatch(company -> company.valid.isDone()
+                && !DynamoGateway.await(company.valid))) {
+            // the blocking client has already answered: issue no reads when no company is valid
+            results.forEach(result -> result.status = INVALID_COMPANY);
+            return new Outcome(results, new TransactionBatcher.Result());
+        }
+        // the company checks, the user_boycotts read and the pre-read do not depend on each other;
+        // with the async client they are in flight together and joined before anything is written
+        UserBoycottsView userBoycotts = new UserBoycottsView(gateway, userId);
+        long preChecking = System.nanoTime();
+        CompletableFuture<?> userRows = companies.size() == 1
+                ? userBoycotts.hasAnyBoycottAsync(companies.keySet().iterator().next())
+                : userBoycotts.loadAllAsync(companies.keySet());
+        List<AddBoycottForm.Reason> reasons = companies.values().stream()
+                .flatMap(company -> company.reasons.stream()).toList();
+        CompletableFuture<PreReadSnapshot> preRead = reasons.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : PreReadSnapshot.loadAsync(gateway, userId, reasons, ValidationCache.CAUSES, metrics);
+        List<Company> valid = new ArrayList<>();
+        for (Company company : companies.values()) {
+            if (DynamoGateway.await(company.valid)) {
+                valid.add(company);
+            } else {
+                company.result.status = INVALID_COMPANY;
+            }
+        }
+        metrics.time("PreCheckTime", preChecking, CompletableFuture.allOf(userRows, preRead));
+        DynamoGateway.await(userRows);
+        PreReadSnapshot snapshot = DynamoGateway.await(preRead);
+
+        String now = Instant.now().toString();
+        List<TransactionBatcher.WriteUnit> units = new ArrayList<>();
+        Map<String, List<TransactWriteItem>> riders = new HashMap<>();
+        Map<TransactionBatcher.WriteUnit, Slot> slots = new HashMap<>();
+        for (Company company : valid) {
+            CompanyResult result = company.result;
+            int before = units.size();
+            for (AddBoycottForm.Reason reason : company.reasons) {
+                String causeId = reason.getCause_id();
+                if (result.causes.containsKey(causeId)) {
+                    continue;
+                }
+                if (userBoycotts.hasCauseBoycott(company.id, causeId)) {
+                    result.causes.put(causeId, DUPLICATE);
+                    continue;
+                }
+                if (!snapshot.isValidCause(causeId, reason.getCause_desc())) {
+                    result.causes.put(causeId, INVALID_CAUSE);
+                    continue;
+                }
+                List<String> groups = List.of(company.id);
+                if (!snapshot.userIsFollowingCause(userId, causeId)) {
+                    // the follow is a rider of every unit for the cause, whatever the company, so it goes out
+                    // with the first of them that commits and not with one that may be dropped
+                    String followGroup = FOLLOW_GROUP_PREFIX + causeId;
+                    if (!riders.containsKey(followGroup)) {
+                        riders.put(followGroup, userOwned(BoycottActions.followCause(userId, causeId,
+                                reason.getCause_desc(), now)));
+                    }
+                    groups = List.of(company.id, followGroup);
+                }
+                List<TransactWriteItem> actions = List.of(
+                        BoycottActions.causeBoycott(userId, company.id, company.name, causeId,
+                                reason.getCause_desc(), now),
+                        BoycottActions.causeCompanyStats(company.id, company.name, causeId, reason.getCause_desc()));
+                TransactionBatcher.WriteUnit unit = new TransactionBatcher.WriteUnit(groups,
+                        "cause: " + causeId, userOwned(actions));
+                units.add(unit);
+                slots.put(unit, new Slot(result, result.causes, causeId));
+                result.causes.put(causeId, null);
+            }
+            Set<String> seenReasons = new HashSet<>();
+            for (String personalReason : company.personalReasons) {
+                if (!seenReasons.add(UserBoycottsView.personalReasonKey(company.id, personalReason))) {
+                    continue;
+                }
+                if (userBoycotts.hasPersonalReason(company.id, personalReason)) {
+                    result.personal_reasons.put(personalReason, DUPLICATE);
+                    continue;
+                }
+                TransactionBatcher.WriteUnit unit = new TransactionBatcher.WriteUnit(company.id,
+                        "personal reason: " + personalReason,
+                        BoycottActions.personalReason(userId, company.id, company.name, personalReason, now));
+                units.add(unit);
+                slots.put(unit, new Slot(result, result.personal_reasons, personalReason));
+                result.personal_reasons.put(personalReason, null);
+            }
+            if (units.size() > before && !userBoycotts.hasAnyBoycott(company.id)) {
+                riders.put(company.id, userOwned(BoycottActions.firstBoycottRiders(userId, company.id, now)));
+            }
+        }
+
+        long committing = System.nanoTime();
+        TransactionBatcher.Result result = new TransactionBatcher(gateway, counters, userId, deadline)
+                .withCounterOutbox(outbox)
+                .withLog(log)
+                .commit(units, riders);
+        metrics.time("TransactionTime", committing);
+        metrics.count("TransactionRetries", result.getRetries());
+        result.getCommitted().forEach(unit -> slots.get(unit).statuses().put(slots.get(unit).key(), RECORDED));
+        result.getDuplicates().forEach(unit -> slots.get(unit).statuses().put(slots.get(unit).key(), DUPLICATE));
+        result.getUnprocessed().forEach(unit -> slots.get(unit).statuses().put(slots.get(unit).key(), UNPROCESSED));
+        result.getFailures().forEach((unit, error) -> {
+            Slot slot = slots.get(unit);
+            slot.statuses().put(slot.key(), FAILED);
+            slot.company().errors.add(error);
+        });
+        long recordedReasons = results.stream().mapToLong(company -> Collections.frequency(company.causes.values(), RECORDED)
+                + Collections.frequency(company.personal_reasons.values(), RECORDED)).sum();
+        long submitted = results.stream().mapToLong(company -> company.causes.size() + company.personal_reasons.size()).sum();
+        metrics.count("ReasonsRecorded", recordedReasons);
+        metrics.count("ReasonsSkipped", submitted - recordedReasons);
+        for (Company company : valid) {
+            CompanyResult companyResult = company.result;
+            boolean recorded = companyResult.causes.containsValue(RECORDED)
+                    || companyResult.personal_reasons.containsValue(RECORDED);
+            boolean unprocessed = companyResult.causes.containsValue(UNPROCESSED)
+                    || companyResult.personal_reasons.containsValue(UNPROCESSED);
+            if (recorded) {
+                companyResult.status = companyResult.errors.isEmpty() && !unprocessed ? RECORDED : PARTIAL;
+            } else if (!companyResult.errors.isEmpty()) {
+                companyResult.status = FAILED;
+            } else {
+                companyResult.status = unprocessed ? UNPROCESSED : UNCHANGED;
+            }
+        }
+        return new Outcome(results, result);
+    }
+
+    /**
+     * The company exists under that name. Skips the read when this container
+     * validated the pair recently; otherwise the GetItem goes through the
+     * gateway like every other call, so it is bounded, metered and counted
+     * against the capacity budget.
+     */
+    private CompletableFuture<Boolean> validate(String companyId, String companyName) {
+        if (ValidationCache.COMPANIES.isValid(companyId, companyName, metrics)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return gateway.getItem(GetItemRequest.builder()
+                        .tableName("companies")
+                        .key(Map.of("company_id", AttributeValue.fromS(companyId)))
+                        .projectionExpression("company_name")
+                        .build())
+                .thenApply(response -> {
+                    AttributeValue name = response.hasItem() ? response.item().get("company_name") : null;
+                    boolean valid = name != null && name.s() != null && name.s().equals(companyName);
+                    if (valid) {
+                        ValidationCache.COMPANIES.remember(companyId, companyName);
+                    }
+                    return valid;
+                });
+    }
+
+    /**
+     * Drops the counter increments when the stream handler applies them from
+     * the rows written here.
+     */
+    private List<TransactWriteItem> userOwned(List<TransactWriteItem> actions) {
+        return countersFromStream
+                ? actions.stream().filter(action -> ShardedCounters.counterId(action) == null).toList()
+                : actions;
+    }
+}
@@ -0,0 +1,178 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import com.boycottpro.userboycotts.model.BulkAddBoycottForm;
+import com.boycottpro.utilities.JwtUtility;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Records a user's boycotts of many companies in one invocation, for imports
+ * such as onboarding. The body is {"companies": [...]} where every entry has
+ * the shape AddUserBoycottsHandler accepts; at most BULK_MAX_COMPANIES (100)
+ * entries are taken. The response lists the result of every company, cause
+ * and personal reason, and uses the same 200/207/409 rules as the single
+ * endpoint, with an invalid company or a company left unprocessed when the
+ * invocation ran low on time counting as an error. Idempotency-Key
+ * is honored as on the single endpoint; see IdempotencyStore. A response that
+ * leaves anything unprocessed is not stored under the key.
+ */
+public final class BulkAddUserBoycottsHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+    static final String OPERATION = "BulkAddUserBoycotts";
+    static final int MAX_COMPANIES = Env.integer("BULK_MAX_COMPANIES", 100);
+
+    private DynamoDbClient dynamoDb;
+    private DynamoGateway gateway;
+    private ShardedCounters counters = ShardedCounters.SHARED;
+    private boolean countersFromStream = BoycottRecorder.COUNTERS_FROM_STREAM;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Consumer<String> logSink = Log.STDOUT;
+    private Consumer<String> metricsSink = Metrics.STDOUT;
+
+    public BulkAddUserBoycottsHandler() {
+        this.dynamoDb = DynamoDbClients.shared();
+        this.gateway = DynamoDbClients.configuredGateway(dynamoDb);
+        Core.getGlobalContext().register(this);
+    }
+
+    public BulkAddUserBoycottsHandler(DynamoDbClient dynamoDb) {
+        this.dynamoDb = dynamoDb;
+        this.gateway = new SyncDynamoGateway(dynamoDb);
+    }
+
+    BulkAddUserBoycottsHandler withLogSink(Consumer<String> logSink) {
+        this.logSink = logSink;
+        return this;
+    }
+
+    BulkAddUserBoycottsHandler withMetricsSink(Consumer<String> metricsSink) {
+        this.metricsSink = metricsSink;
+        return this;
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        Priming.prime(objectMapper, gateway, Log.NO_REQUEST);
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        DynamoDbClients.refresh();
+        this.dynamoDb = DynamoDbClients.shared();
+        this.gateway = DynamoDbClients.configuredGateway(dynamoDb);
+    }
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Log log = Log.begin(context, logSink);
+        if (Priming.isWarmup(event)) {
+            Priming.prime(objectMapper, gateway, log);
+            return Responses.WARM.event();
+        }
+        Metrics metrics = new Metrics(OPERATION, context, metricsSink);
+        return metrics.flush(handle(event, context, metrics, log));
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context, Metrics metrics,
+                                                Log log) {
+        CapacityBudget capacity = new CapacityBudget();
+        String sub = null;
+        int lineNum = 90;
+        try {
+            sub = JwtUtility.getSubFromRestEvent(event);
+            if (sub == null) {
+            log.error(94, sub, "user is Unauthorized");
+            return Responses.UNAUTHORIZED.event();
+            }
+            log = log.forUser(sub);
+            lineNum = 98;
+            Deadline deadline = Deadline.from(context);
+            DynamoGateway gateway = capacity.track(metrics.meter(deadline.bound(this.gateway)));
+            IdempotencyStore.Claim claim = new IdempotencyStore(gateway, log).claim(sub, event);
+            if (claim.response() != null) {
+                return claim.response();
+            }
+            return claim.complete(recordBoycotts(sub, event, gateway, deadline, metrics, log, claim));
+        } catch (Exception e) {
+            log.error(lineNum, sub, e.getMessage());
+            return Responses.error(500, "Unexpected server error: " + e.getMessage());
+        } finally {
+            capacity.report(metrics, log);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent recordBoycotts(String sub, APIGatewayProxyRequestEvent event,
+                                                        DynamoGateway gateway, Deadline deadline, Metrics metrics,
+                                                        Log log, IdempotencyStore.Claim claim) {
+        int lineNum = 117;
+        try {
+            long parsing = System.nanoTime();
+            BulkAddBoycottForm input = objectMapper.readValue(event.getBody(), BulkAddBoycottForm.class);
+            metrics.time("ParseTime", parsing);
+            if (input.getCompanies() == null || input.getCompanies().isEmpty()) {
+                return Responses.message(400, "No companies to record.");
+            }
+            if (input.getCompanies().size() > MAX_COMPANIES) {
+                return Responses.message(400, "Too many companies: at most " + MAX_COMPANIES + " per request.");
+            }
+            lineNum = 128;
+            String userId = sub;
+            input.getCompanies().forEach(company -> company.setUser_id(userId));
+            BoycottRecorder.Outcome result = new BoycottRecorder(gateway, counters, countersFromStream)
+                    .withDeadline(deadline)
+                    .withMetrics(metrics)
+                    .withLog(log)
+                    .record(sub, input.getCompanies());
+            if (result.hasUnprocessed()) {
+                // the retry under the same Idempotency-Key has to run again to record the unprocessed companies
+                claim.unfinished();
+            }
+            lineNum = 140;
+            boolean anyError = false;
+            for (BoycottRecorder.CompanyResult company : result.getCompanies()) {
+                if (BoycottRecorder.INVALID_COMPANY.equals(company.getStatus())) {
+                    log.error(144, sub, () -> "not a valid company: " + company.getCompany_id());
+                    anyError = true;
+                }
+                if (BoycottRecorder.PARTIAL.equals(company.getStatus())
+                        || BoycottRecorder.UNPROCESSED.equals(company.getStatus())) {
+                    anyError = true;
+                }
+                for (String error : company.getErrors()) {
+                    log.error(152, sub, error);
+                    anyError = true;
+                }
+            }
+            lineNum = 156;
+            Map<String, Object> body = new LinkedHashMap<>();
+            int status;
+            if (!result.anySuccess()) {
+                status = 409;
+                body.put("message", Responses.NO_NEW_BOYCOTTS.message());
+            } else if (anyError) {
+                status = 207;
+                body.put("message", "Some boycotts recorded.");
+            } else {
+                status = 200;
+                body.put("message", Responses.ALL_RECORDED.message());
+            }
+            body.put("results", result.getCompanies());
+            // the per-company results are POJOs, so they still go through the ObjectMapper
+            return Responses.json(status, objectMapper.writeValueAsString(body));
+
+        } catch (Exception e) {
+            log.error(lineNum, sub, e.getMessage());
+            return Responses.error(500, "Unexpected server error: " + e.getMessage());
+        }
+    }
+}
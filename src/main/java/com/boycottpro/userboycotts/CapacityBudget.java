@@ -0,0 +1,89 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The capacity one invocation consumed, per table and index included, as
+ * DynamoDB reports it with ReturnConsumedCapacity.INDEXES.
+ *
+ * CAPACITY_BUDGET_UNITS (0, no budget) caps what a submission may spend on
+ * Query pages, the only reads whose cost grows with the data rather than
+ * with the request: once the budget is used up the next page fails, and
+ * with it the submission, before anything is written. The rows it would have
+ * read decide whether the company and cause counters move, so the pre-check
+ * cannot carry on without them. Point reads and writes are bounded by the
+ * size of the submission and always go out.
+ */
+public final class CapacityBudget {
+
+    static final double LIMIT_UNITS = Env.integer("CAPACITY_BUDGET_UNITS", 0);
+
+    private final double limitUnits;
+    private final Map<String, Double> consumed = new ConcurrentHashMap<>();
+
+    public CapacityBudget() {
+        this(LIMIT_UNITS);
+    }
+
+    CapacityBudget(double limitUnits) {
+        this.limitUnits = limitUnits;
+    }
+
+    /**
+     * The gateway with every call asking for its consumed capacity and Query
+     * pages held to the budget.
+     */
+    public DynamoGateway track(DynamoGateway gateway) {
+        return new CapacityDynamoGateway(gateway, this);
+    }
+
+    void record(ConsumedCapacity capacity) {
+        if (capacity != null && capacity.tableName() != null && capacity.capacityUnits() != null) {
+            consumed.merge(capacity.tableName(), capacity.capacityUnits(), Double::sum);
+        }
+    }
+
+    void record(List<ConsumedCapacity> capacities) {
+        capacities.forEach(this::record);
+    }
+
+    public boolean isUsedUp() {
+        return limitUnits > 0 && total() >= limitUnits;
+    }
+
+    public double total() {
+        return consumed.values().stream().mapToDouble(Double::doubleValue).sum();
+    }
+
+    public Map<String, Double> byTable() {
+        return new TreeMap<>(consumed);
+    }
+
+    double limitUnits() {
+        return limitUnits;
+    }
+
+    /**
+     * Adds the totals to the invocation's metrics, as ConsumedCapacity and
+     * &lt;table&gt;ConsumedCapacity, and logs them: at WARN when the budget
+     * was used up, at DEBUG otherwise.
+     */
+    public void report(Metrics metrics, Log log) {
+        if (consumed.isEmpty()) {
+            return;
+        }
+        Map<String, Double> byTable = byTable();
+        metrics.count("ConsumedCapacity", total());
+        byTable.forEach((table, units) -> metrics.count(table + "ConsumedCapacity", units));
+        if (isUsedUp()) {
+            log.warn(() -> "Capacity budget of " + limitUnits + " units used up: " + byTable, null);
+        } else {
+            log.debug(() -> "Consumed capacity: " + byTable);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Gateway decorator that asks every call for ReturnConsumedCapacity.INDEXES,
+ * adds what comes back to the invocation's CapacityBudget, and fails a Query
+ * page without sending it once the budget is used up.
+ */
+class CapacityDynamoGateway implements DynamoGateway {
+
+    private static final ReturnConsumedCapacity INDEXES = ReturnConsumedCapacity.INDEXES;
+
+    private final DynamoGateway delegate;
+    private final CapacityBudget budget;
+
+    CapacityDynamoGateway(DynamoGateway delegate, CapacityBudget budget) {
+        this.delegate = delegate;
+        this.budget = budget;
+    }
+
+    /**
+     * Adds what the response reports to the budget; the response may carry
+     * no capacity at all, as from a stand-in client.
+     */
+    private <T> CompletableFuture<T> recorded(CompletableFuture<T> call, Consumer<T> record) {
+        return call.thenApply(response -> {
+            if (response != null) {
+                record.accept(response);
+            }
+            return response;
+        });
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return recorded(delegate.getItem(request.toBuilder().returnConsumedCapacity(INDEXES).build()),
+                response -> budget.record(response.consumedCapacity()));
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        if (budget.isUsedUp()) {
+            return CompletableFuture.failedFuture(DynamoDbException.builder()
+                    .message("Capacity budget of " + budget.limitUnits() + " units used up; "
+                            + request.tableName() + " query not sent")
+                    .build());
+        }
+        return recorded(delegate.query(request.toBuilder().returnConsumedCapacity(INDEXES).build()),
+                response -> budget.record(response.consumedCapacity()));
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return recorded(delegate.batchGetItem(request.toBuilder().returnConsumedCapacity(INDEXES).build()),
+                response -> budget.record(response.consumedCapacity()));
+    }
+
+    @Override
+    public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+        return recorded(delegate.transactWriteItems(request.toBuilder().returnConsumedCapacity(INDEXES).build()),
+                response -> budget.record(response.consumedCapacity()));
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return recorded(delegate.updateItem(request.toBuilder().returnConsumedCapacity(INDEXES).build()),
+                response -> budget.record(response.consumedCapacity()));
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return recorded(delegate.deleteItem(request.toBuilder().returnConsumedCapacity(INDEXES).build()),
+                response -> budget.record(response.consumedCapacity()));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> offload(Supplier<T> work) {
+        return delegate.offload(work);
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis) {
+        return delegate.delay(millis);
+    }
+}
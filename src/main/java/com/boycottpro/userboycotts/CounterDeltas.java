@@ -0,0 +1,167 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.Update;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.*;
+
+/**
+ * Counter increments coalesced per counter, so a batch of events that touch
+ * the same company or cause costs one "ADD n" update instead of n. Counters
+ * are identified the same way as in ShardedCounters.
+ */
+public class CounterDeltas {
+
+    private static final class Delta {
+        private final String table;
+        private final Map<String, AttributeValue> key;
+        private final String attribute;
+        private final Map<String, AttributeValue> seeds = new TreeMap<>();
+        private long amount;
+
+        private Delta(String table, Map<String, AttributeValue> key, String attribute) {
+            this.table = table;
+            this.key = key;
+            this.attribute = attribute;
+        }
+    }
+
+    // placeholders BoycottActions.causeCompanyStats uses for the names it seeds
+    private static final Map<String, String> SEED_PLACEHOLDERS = Map.of(
+            ":cname", "company_name",
+            ":cdesc", "cause_desc");
+
+    private final Map<String, Delta> deltas = new LinkedHashMap<>();
+
+    /**
+     * Adds to a counter. Seeds are attributes written only if the item does
+     * not have them yet (the names on a new cause_company_stats row).
+     */
+    public void add(String table, Map<String, AttributeValue> key, String attribute, long amount,
+                    Map<String, AttributeValue> seeds) {
+        Delta delta = deltas.computeIfAbsent(ShardedCounters.counterId(table, key),
+                id -> new Delta(table, key, attribute));
+        delta.amount += amount;
+        seeds.forEach(delta.seeds::putIfAbsent);
+    }
+
+    /**
+     * Adds a counter increment built by BoycottActions instead of sending it.
+     */
+    public void add(TransactWriteItem counterUpdate) {
+        Update update = counterUpdate.update();
+        Map<String, AttributeValue> values = update.expressionAttributeValues();
+        Map<String, AttributeValue> seeds = new HashMap<>();
+        SEED_PLACEHOLDERS.forEach((placeholder, attribute) -> {
+            if (values.containsKey(placeholder)) {
+                seeds.put(attribute, values.get(placeholder));
+            }
+        });
+        add(update.tableName(), update.key(), ShardedCounters.counterAttribute(update.tableName()),
+                Long.parseLong(values.get(":inc").n()), seeds);
+    }
+
+    public void addAll(CounterDeltas other) {
+        other.deltas.values().forEach(delta -> add(delta.table, delta.key, delta.attribute, delta.amount, delta.seeds));
+    }
+
+    public boolean isEmpty() {
+        return deltas.isEmpty();
+    }
+
+    public Set<String> counterIds() {
+        return Collections.unmodifiableSet(deltas.keySet());
+    }
+
+    public long amount(String counterId) {
+        Delta delta = deltas.get(counterId);
+        return delta == null ? 0 : delta.amount;
+    }
+
+    /**
+     * Sends every counter in one transaction, so either all of them are
+     * applied or none is; a lone counter goes out as a plain update, which is
+     * just as atomic. Holds at most MAX_ACTIONS_PER_TRANSACTION counters.
+     * Returns false, after logging, if nothing was applied.
+     */
+    public boolean applyAtomically(DynamoGateway dynamoDb, Log log) {
+        List<Delta> pending = deltas.values().stream().filter(delta -> delta.amount != 0).toList();
+        try {
+            if (pending.size() == 1) {
+                DynamoGateway.await(dynamoDb.updateItem(request(pending.get(0))));
+            } else if (!pending.isEmpty()) {
+                DynamoGateway.await(dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
+                        .transactItems(pending.stream().map(CounterDeltas::transactItem).toList())
+                        .build()));
+            }
+            return true;
+        } catch (RuntimeException e) {
+            log.warn(() -> "Counter updates failed for " + deltas.keySet(), e);
+            return false;
+        }
+    }
+
+    /**
+     * One update per counter, for a transaction of the caller's.
+     */
+    public List<TransactWriteItem> transactItems() {
+        return deltas.values().stream().filter(delta -> delta.amount != 0).map(CounterDeltas::transactItem).toList();
+    }
+
+    /**
+     * The deltas as a list attribute, to be stored and read back with
+     * fromAttributeValue.
+     */
+    public AttributeValue toAttributeValue() {
+        List<AttributeValue> list = new ArrayList<>();
+        deltas.values().forEach(delta -> list.add(AttributeValue.fromM(Map.of(
+                "table", AttributeValue.fromS(delta.table),
+                "key", AttributeValue.fromM(delta.key),
+                "attribute", AttributeValue.fromS(delta.attribute),
+                "amount", AttributeValue.fromN(Long.toString(delta.amount)),
+                "seeds", AttributeValue.fromM(delta.seeds)))));
+        return AttributeValue.fromL(list);
+    }
+
+    public static CounterDeltas fromAttributeValue(AttributeValue value) {
+        CounterDeltas deltas = new CounterDeltas();
+        value.l().forEach(item -> {
+            Map<String, AttributeValue> delta = item.m();
+            deltas.add(delta.get("table").s(), delta.get("key").m(), delta.get("attribute").s(),
+                    Long.parseLong(delta.get("amount").n()), delta.get("seeds").m());
+        });
+        return deltas;
+    }
+
+    private static TransactWriteItem transactItem(Delta delta) {
+        UpdateItemRequest request = request(delta);
+        return TransactWriteItem.builder()
+                .update(Update.builder()
+                        .tableName(request.tableName())
+                        .key(request.key())
+                        .updateExpression(request.updateExpression())
+                        .expressionAttributeValues(request.expressionAttributeValues())
+                        .build())
+                .build();
+    }
+
+    private static UpdateItemRequest request(Delta delta) {
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":n", AttributeValue.fromN(Long.toString(delta.amount)));
+        StringBuilder set = new StringBuilder();
+        delta.seeds.forEach((name, value) -> {
+            set.append(set.isEmpty() ? "SET " : ", ")
+                    .append(name).append(" = if_not_exists(").append(name).append(", :").append(name).append(')');
+            values.put(":" + name, value);
+        });
+        return UpdateItemRequest.builder()
+                .tableName(delta.table)
+                .key(delta.key)
+                .updateExpression((set.isEmpty() ? "" : set + " ") + "ADD " + delta.attribute + " :n")
+                .expressionAttributeValues(values)
+                .build();
+    }
+}
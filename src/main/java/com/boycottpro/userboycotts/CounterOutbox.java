@@ -0,0 +1,214 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Counter increments of queued messages, made durable in the transaction that
+ * writes their rows. Instead of its counter updates, a transaction of a
+ * message carries one Put to COUNTER_OUTBOX_TABLE ("counter_outbox", key
+ * message_id and entry_id) holding them, so they are committed or lost
+ * together with the rows they count.
+ *
+ * Once the batch is recorded, drain coalesces the entries over every message
+ * and applies them in transactions that also delete the entries applied, so
+ * an entry is counted exactly once whether or not the invocation survives
+ * the drain. A message whose entries are still there is redelivered, and the
+ * redelivery drains them with its own.
+ */
+public class CounterOutbox {
+
+    static final String TABLE = Env.string("COUNTER_OUTBOX_TABLE", "counter_outbox");
+
+    private final String messageId;
+
+    public CounterOutbox(String messageId) {
+        this.messageId = messageId;
+    }
+
+    /**
+     * The counter increments of one committed transaction of a message.
+     */
+    public record Entry(String messageId, String entryId, CounterDeltas deltas) {
+
+        Map<String, AttributeValue> key() {
+            return Map.of(
+                    "message_id", AttributeValue.fromS(messageId),
+                    "entry_id", AttributeValue.fromS(entryId));
+        }
+
+        TransactWriteItem put() {
+            Map<String, AttributeValue> item = new HashMap<>(key());
+            item.put("deltas", deltas.toAttributeValue());
+            item.put("created_at", AttributeValue.fromS(Instant.now().toString()));
+            return TransactWriteItem.builder()
+                    .put(Put.builder()
+                            .tableName(TABLE)
+                            .item(item)
+                            .conditionExpression("attribute_not_exists(entry_id)")
+                            .build())
+                    .build();
+        }
+
+        TransactWriteItem delete() {
+            return TransactWriteItem.builder()
+                    .delete(Delete.builder()
+                            .tableName(TABLE)
+                            .key(key())
+                            .conditionExpression("attribute_exists(entry_id)")
+                            .build())
+                    .build();
+        }
+
+        static Entry from(Map<String, AttributeValue> item) {
+            return new Entry(item.get("message_id").s(), item.get("entry_id").s(),
+                    CounterDeltas.fromAttributeValue(item.get("deltas")));
+        }
+    }
+
+    /**
+     * Takes the counter updates out of actions, and the owners at the same
+     * positions out of owners, and appends the Put of an entry holding them
+     * with the entry as its owner. Returns the entry, or null when actions
+     * held no counter update.
+     */
+    Entry divert(List<TransactWriteItem> actions, List<Object> owners) {
+        CounterDeltas deltas = new CounterDeltas();
+        for (int i = actions.size() - 1; i >= 0; i--) {
+            if (ShardedCounters.counterId(actions.get(i)) != null) {
+                deltas.add(actions.remove(i));
+                owners.remove(i);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return null;
+        }
+        Entry entry = new Entry(messageId, UUID.randomUUID().toString(), deltas);
+        actions.add(entry.put());
+        owners.add(entry);
+        return entry;
+    }
+
+    /**
+     * The entries a previous delivery of the message committed and did not
+     * drain.
+     */
+    public static List<Entry> pending(DynamoGateway dynamoDb, String messageId) {
+        List<Entry> entries = new ArrayList<>();
+        Map<String, AttributeValue> startKey = null;
+        do {
+            QueryResponse page = DynamoGateway.await(dynamoDb.query(QueryRequest.builder()
+                    .tableName(TABLE)
+                    .keyConditionExpression("message_id = :m")
+                    .expressionAttributeValues(Map.of(":m", AttributeValue.fromS(messageId)))
+                    .consistentRead(true)
+                    .exclusiveStartKey(startKey)
+                    .build()));
+            page.items().forEach(item -> entries.add(Entry.from(item)));
+            startKey = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty() ? page.lastEvaluatedKey() : null;
+        } while (startKey != null);
+        return entries;
+    }
+
+    /**
+     * Applies the entries, coalesced per counter, each transaction holding as
+     * many entries as fit beside their counters, with the entries' deletes.
+     * An entry another invocation drained first fails its delete and is left
+     * out of the resend. No transaction starts once the deadline is nearly
+     * used up. Returns the messages with entries left, after logging.
+     */
+    public static Set<String> drain(DynamoGateway dynamoDb, List<Entry> entries, Deadline deadline, Log log) {
+        // a message delivered twice in one batch reads the same pending entries twice
+        Map<Map<String, AttributeValue>, Entry> distinct = new LinkedHashMap<>();
+        entries.forEach(entry -> distinct.putIfAbsent(entry.key(), entry));
+        Set<String> left = new LinkedHashSet<>();
+        for (List<Entry> run : runs(new ArrayList<>(distinct.values()))) {
+            if (deadline.nearlyUsedUp()) {
+                run.forEach(entry -> left.add(entry.messageId()));
+                continue;
+            }
+            List<Entry> remaining = new ArrayList<>(run);
+            while (!remaining.isEmpty()) {
+                CounterDeltas deltas = new CounterDeltas();
+                remaining.forEach(entry -> deltas.addAll(entry.deltas()));
+                List<TransactWriteItem> actions = new ArrayList<>(deltas.transactItems());
+                int firstDelete = actions.size();
+                remaining.forEach(entry -> actions.add(entry.delete()));
+                try {
+                    DynamoGateway.await(dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
+                            .transactItems(actions).build()));
+                    break;
+                } catch (TransactionCanceledException e) {
+                    List<Entry> drained = drainedElsewhere(remaining, firstDelete, e);
+                    if (drained.isEmpty()) {
+                        fail(remaining, left, e, log);
+                        break;
+                    }
+                    remaining.removeAll(drained);
+                } catch (RuntimeException e) {
+                    fail(remaining, left, e, log);
+                    break;
+                }
+            }
+        }
+        return left;
+    }
+
+    private static void fail(List<Entry> entries, Set<String> left, RuntimeException e, Log log) {
+        Set<String> messages = new LinkedHashSet<>();
+        entries.forEach(entry -> messages.add(entry.messageId()));
+        log.warn(() -> "Counter outbox entries of " + messages + " were not applied", e);
+        left.addAll(messages);
+    }
+
+    /**
+     * The entries whose delete failed its condition, when nothing else
+     * cancelled the transaction.
+     */
+    private static List<Entry> drainedElsewhere(List<Entry> sent, int firstDelete, TransactionCanceledException e) {
+        if (!e.hasCancellationReasons()) {
+            return List.of();
+        }
+        List<CancellationReason> reasons = e.cancellationReasons();
+        List<Entry> drained = new ArrayList<>();
+        for (int i = 0; i < reasons.size(); i++) {
+            String code = reasons.get(i).code();
+            if (code == null || "None".equals(code)) {
+                continue;
+            }
+            int entry = i - firstDelete;
+            if (!"ConditionalCheckFailed".equals(code) || entry < 0 || entry >= sent.size()) {
+                return List.of();
+            }
+            drained.add(sent.get(entry));
+        }
+        return drained;
+    }
+
+    /**
+     * Splits the entries, in order, into runs whose distinct counters plus
+     * deletes fit one transaction.
+     */
+    static List<List<Entry>> runs(List<Entry> entries) {
+        List<List<Entry>> runs = new ArrayList<>();
+        List<Entry> current = new ArrayList<>();
+        Set<String> counterIds = new HashSet<>();
+        for (Entry entry : entries) {
+            Set<String> added = new HashSet<>(counterIds);
+            added.addAll(entry.deltas().counterIds());
+            if (!current.isEmpty() && added.size() + current.size() + 1 > TransactionBatcher.MAX_ACTIONS_PER_TRANSACTION) {
+                runs.add(current);
+                current = new ArrayList<>();
+                added = new HashSet<>(entry.deltas().counterIds());
+            }
+            current.add(entry);
+            counterIds = added;
+        }
+        if (!current.isEmpty()) {
+            runs.add(current);
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,150 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.*;
+
+/**
+ * Applies the counter increments for rows AddUserBoycottsHandler wrote with
+ * COUNTER_UPDATES=stream. It consumes the NEW_IMAGE streams of user_boycotts,
+ * user_causes and user_company_boycotts; the user_company_boycotts marker is
+ * what tells a user's first boycott of a company apart from the rest.
+ *
+ * Only INSERTs count, plus the MODIFY of a marker whose lapsed lease a later
+ * first boycott took over: removals are still accounted for by the lambda
+ * that deletes the rows, and the marker's TTL expiry is a REMOVE. The batch is cut, in stream order, into runs of records
+ * that touch at most MAX_ACTIONS_PER_TRANSACTION counters; each run is
+ * coalesced into one transaction and the runs are applied one after the
+ * other. The first run that fails is reported by its first record and
+ * nothing after it is sent, so the retry Lambda makes from that record
+ * counts everything exactly once. Only a transaction whose outcome is
+ * unknown (a timeout after DynamoDB committed it) can still be counted twice.
+ */
+public class CounterStreamHandler implements RequestHandler<DynamodbEvent, StreamsEventResponse> {
+
+    static final int MAX_COUNTERS_PER_RUN = TransactionBatcher.MAX_ACTIONS_PER_TRANSACTION;
+
+    private final DynamoGateway dynamoDb;
+
+    public CounterStreamHandler() {
+        this.dynamoDb = new SyncDynamoGateway(DynamoDbClients.shared());
+    }
+
+    public CounterStreamHandler(DynamoDbClient dynamoDb) {
+        this.dynamoDb = new SyncDynamoGateway(dynamoDb);
+    }
+
+    @Override
+    public StreamsEventResponse handleRequest(DynamodbEvent event, Context context) {
+        Log log = Log.begin(context);
+        List<CounterDeltas> runs = new ArrayList<>();
+        List<String> firstSequences = new ArrayList<>();
+        for (DynamodbEvent.DynamodbStreamRecord record : event.getRecords()) {
+            String table = tableName(record.getEventSourceARN());
+            if (!counts(record.getEventName(), table) || record.getDynamodb() == null
+                    || record.getDynamodb().getNewImage() == null) {
+                continue;
+            }
+            CounterDeltas increment = new CounterDeltas();
+            if (accumulate(increment, table, record.getDynamodb().getNewImage()) == null) {
+                continue;
+            }
+            CounterDeltas run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (run == null || !fits(run, increment)) {
+                run = new CounterDeltas();
+                runs.add(run);
+                firstSequences.add(record.getDynamodb().getSequenceNumber());
+            }
+            run.addAll(increment);
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            if (!runs.get(i).applyAtomically(dynamoDb, log)) {
+                // Lambda resumes from the reported record; the runs before it are applied, this one and the rest are not
+                return new StreamsEventResponse(List.of(new StreamsEventResponse.BatchItemFailure(firstSequences.get(i))));
+            }
+        }
+        return new StreamsEventResponse(List.of());
+    }
+
+    private static boolean counts(String eventName, String table) {
+        return "INSERT".equals(eventName)
+                || "MODIFY".equals(eventName) && BoycottActions.MARKER_TABLE.equals(table);
+    }
+
+    private static boolean fits(CounterDeltas run, CounterDeltas increment) {
+        long added = increment.counterIds().stream().filter(id -> !run.counterIds().contains(id)).count();
+        return run.counterIds().size() + added <= MAX_COUNTERS_PER_RUN;
+    }
+
+    /**
+     * Adds the increment a new row stands for and returns its counter, or
+     * null when the row does not count.
+     */
+    static String accumulate(CounterDeltas deltas, String table,
+                             Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> image) {
+        String causeId = string(image, "cause_id");
+        String companyId = string(image, "company_id");
+        switch (table) {
+            case BoycottActions.MARKER_TABLE -> {
+                if (companyId == null) {
+                    return null;
+                }
+                Map<String, AttributeValue> key = Map.of("company_id", AttributeValue.fromS(companyId));
+                deltas.add("companies", key, "boycott_count", 1, Map.of());
+                return ShardedCounters.counterId("companies", key);
+            }
+            case "user_boycotts" -> {
+                if (causeId == null || companyId == null) {
+                    // personal reasons are not counted anywhere
+                    return null;
+                }
+                Map<String, AttributeValue> key = Map.of(
+                        "cause_id", AttributeValue.fromS(causeId),
+                        "company_id", AttributeValue.fromS(companyId));
+                Map<String, AttributeValue> seeds = new HashMap<>();
+                Optional.ofNullable(string(image, "company_name")).ifPresent(v -> seeds.put("company_name", AttributeValue.fromS(v)));
+                Optional.ofNullable(string(image, "cause_desc")).ifPresent(v -> seeds.put("cause_desc", AttributeValue.fromS(v)));
+                deltas.add("cause_company_stats", key, "boycott_count", 1, seeds);
+                return ShardedCounters.counterId("cause_company_stats", key);
+            }
+            case "user_causes" -> {
+                if (causeId == null) {
+                    return null;
+                }
+                Map<String, AttributeValue> key = Map.of("cause_id", AttributeValue.fromS(causeId));
+                deltas.add("causes", key, "follower_count", 1, Map.of());
+                return ShardedCounters.counterId("causes", key);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private static String string(Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> image,
+                                 String name) {
+        var value = image.get(name);
+        return value == null ? null : value.getS();
+    }
+
+    /**
+     * arn:aws:dynamodb:region:account:table/<name>/stream/<label>
+     */
+    static String tableName(String eventSourceArn) {
+        if (eventSourceArn == null) {
+            return "";
+        }
+        int start = eventSourceArn.indexOf(":table/");
+        if (start < 0) {
+            return "";
+        }
+        start += ":table/".length();
+        int end = eventSourceArn.indexOf('/', start);
+        return end < 0 ? eventSourceArn.substring(start) : eventSourceArn.substring(start, end);
+    }
+}
@@ -0,0 +1,74 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * The execution budget of one invocation, taken from
+ * Context.getRemainingTimeInMillis. DEADLINE_RESERVE_MS (1000) of it is kept
+ * back for finishing the response: new writes are not started inside the
+ * reserve, and every DynamoDB call is given an apiCallTimeout that ends where
+ * the reserve begins. A context that reports no remaining time (tests, local
+ * runs) gives an unbounded budget.
+ */
+public final class Deadline {
+
+    static final long RESERVE_MILLIS = Env.integer("DEADLINE_RESERVE_MS", 1000);
+    static final long MIN_CALL_TIMEOUT_MILLIS = 100;
+
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE, System::currentTimeMillis);
+
+    private final long deadlineAtMillis;
+    private final LongSupplier clock;
+
+    Deadline(long deadlineAtMillis, LongSupplier clock) {
+        this.deadlineAtMillis = deadlineAtMillis;
+        this.clock = clock;
+    }
+
+    public static Deadline from(Context context) {
+        if (context == null || context.getRemainingTimeInMillis() <= 0) {
+            return NONE;
+        }
+        return new Deadline(System.currentTimeMillis() + context.getRemainingTimeInMillis(), System::currentTimeMillis);
+    }
+
+    public boolean isBounded() {
+        return deadlineAtMillis != Long.MAX_VALUE;
+    }
+
+    public long remainingMillis() {
+        return isBounded() ? deadlineAtMillis - clock.getAsLong() : Long.MAX_VALUE;
+    }
+
+    /**
+     * True when waiting the given time would still leave the reserve intact.
+     */
+    public boolean hasRoom(long millis) {
+        return !isBounded() || remainingMillis() - millis > RESERVE_MILLIS;
+    }
+
+    /**
+     * True once the budget is down to the reserve: start no new work.
+     */
+    public boolean nearlyUsedUp() {
+        return !hasRoom(0);
+    }
+
+    /**
+     * Timeout for a call started now, never shorter than MIN_CALL_TIMEOUT_MILLIS.
+     */
+    public Duration callTimeout() {
+        return Duration.ofMillis(Math.max(MIN_CALL_TIMEOUT_MILLIS, remainingMillis() - RESERVE_MILLIS));
+    }
+
+    /**
+     * The gateway with every call bounded by this deadline; the gateway
+     * itself when there is no deadline.
+     */
+    public DynamoGateway bound(DynamoGateway gateway) {
+        return isBounded() ? new DeadlineDynamoGateway(gateway, this) : gateway;
+    }
+}
@@ -0,0 +1,71 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Gateway decorator that gives every call an apiCallTimeout ending where the
+ * deadline's reserve begins, so a slow call fails while there is still time
+ * to answer instead of running the function into its timeout.
+ */
+class DeadlineDynamoGateway implements DynamoGateway {
+
+    private final DynamoGateway delegate;
+    private final Deadline deadline;
+
+    DeadlineDynamoGateway(DynamoGateway delegate, Deadline deadline) {
+        this.delegate = delegate;
+        this.deadline = deadline;
+    }
+
+    private AwsRequestOverrideConfiguration bounded(DynamoDbRequest request) {
+        return request.overrideConfiguration()
+                .map(AwsRequestOverrideConfiguration::toBuilder)
+                .orElseGet(AwsRequestOverrideConfiguration::builder)
+                .apiCallTimeout(deadline.callTimeout())
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return delegate.getItem(request.toBuilder().overrideConfiguration(bounded(request)).build());
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        return delegate.query(request.toBuilder().overrideConfiguration(bounded(request)).build());
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return delegate.batchGetItem(request.toBuilder().overrideConfiguration(bounded(request)).build());
+    }
+
+    @Override
+    public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+        return delegate.transactWriteItems(request.toBuilder().overrideConfiguration(bounded(request)).build());
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return delegate.updateItem(request.toBuilder().overrideConfiguration(bounded(request)).build());
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return delegate.deleteItem(request.toBuilder().overrideConfiguration(bounded(request)).build());
+    }
+
+    @Override
+    public <T> CompletableFuture<T> offload(Supplier<T> work) {
+        return delegate.offload(work);
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis) {
+        return delegate.delay(millis);
+    }
+}
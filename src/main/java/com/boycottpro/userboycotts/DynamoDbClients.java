@@ -0,0 +1,252 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.ContainerCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * The container-wide DynamoDB client. It is built once, the first time a
+ * handler is created with its default constructor (the Lambda init phase),
+ * with the region and credentials taken straight from what Lambda provides,
+ * so no provider chain discovery happens on the cold path.
+ *
+ * The build bundles one HTTP client: the URL-connection client by default,
+ * or the CRT client when the *.scope properties in pom.xml swap them; the
+ * other one is compiled against but not packaged. DYNAMODB_HTTP_CLIENT
+ * ("url-connection" or "crt") picks one explicitly; left unset, the bundled
+ * one is used. DYNAMODB_CONNECT_TIMEOUT_MS (1000) applies to both; the pool
+ * and keep-alive settings, DYNAMODB_MAX_CONNECTIONS (50),
+ * DYNAMODB_CONNECTION_MAX_IDLE_MS (60000), DYNAMODB_TCP_KEEPALIVE (true) and
+ * DYNAMODB_KEEPALIVE_INTERVAL_SECONDS (30), only to CRT, as the
+ * URL-connection client leaves pooling to the JDK.
+ */
+public final class DynamoDbClients {
+
+    static final String URL_CONNECTION = "url-connection";
+    static final String CRT = "crt";
+
+    private DynamoDbClients() {
+    }
+
+    private static volatile DynamoDbClient client;
+    private static SdkHttpClient transport;
+    private static volatile DynamoDbAsyncClient asyncClient;
+    private static SdkAsyncHttpClient asyncTransport;
+
+    /**
+     * The transport settings, read from the environment once per client built.
+     */
+    record HttpSettings(String client, int maxConnections, Duration connectTimeout, Duration maxIdle,
+                        boolean keepAlive, Duration keepAliveInterval) {
+
+        static HttpSettings fromEnvironment() {
+            return new HttpSettings(
+                    Env.string("DYNAMODB_HTTP_CLIENT", bundledClient()).toLowerCase(Locale.ROOT),
+                    Env.integer("DYNAMODB_MAX_CONNECTIONS", 50),
+                    Duration.ofMillis(Env.integer("DYNAMODB_CONNECT_TIMEOUT_MS", 1000)),
+                    Duration.ofMillis(Env.integer("DYNAMODB_CONNECTION_MAX_IDLE_MS", 60000)),
+                    Env.bool("DYNAMODB_TCP_KEEPALIVE", true),
+                    Duration.ofSeconds(Env.integer("DYNAMODB_KEEPALIVE_INTERVAL_SECONDS", 30)));
+        }
+    }
+
+    public static DynamoDbClient shared() {
+        DynamoDbClient current = client;
+        if (current == null) {
+            synchronized (DynamoDbClients.class) {
+                if (client == null) {
+                    transport = httpClient(HttpSettings.fromEnvironment());
+                    client = build(transport);
+                }
+                current = client;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * The non-blocking counterpart, only built when the async execution mode
+     * is selected. It always uses the CRT transport, so it needs a CRT build.
+     */
+    public static DynamoDbAsyncClient sharedAsync() {
+        DynamoDbAsyncClient current = asyncClient;
+        if (current == null) {
+            synchronized (DynamoDbClients.class) {
+                if (asyncClient == null) {
+                    asyncTransport = asyncHttpClient(HttpSettings.fromEnvironment());
+                    asyncClient = buildAsync(asyncTransport);
+                }
+                current = asyncClient;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * DYNAMODB_EXECUTION_MODE picks how the DynamoDB calls run: "sync" (default)
+     * one after another on the blocking client, "async" through
+     * DynamoDbAsyncClient, or "virtual" on the blocking client with one virtual
+     * thread per call and at most DYNAMODB_MAX_CONCURRENCY (16) in flight.
+     */
+    public static DynamoGateway configuredGateway(DynamoDbClient dynamoDb) {
+        return gateway(Env.string("DYNAMODB_EXECUTION_MODE", "sync"), Env.integer("DYNAMODB_MAX_CONCURRENCY", 16),
+                dynamoDb);
+    }
+
+    static DynamoGateway gateway(String mode, int maxConcurrency, DynamoDbClient dynamoDb) {
+        return switch (mode.toLowerCase(Locale.ROOT)) {
+            case "async" -> new AsyncDynamoGateway(sharedAsync());
+            case "virtual" -> new VirtualThreadDynamoGateway(dynamoDb, maxConcurrency);
+            default -> new SyncDynamoGateway(dynamoDb);
+        };
+    }
+
+    /**
+     * Replaces the shared clients after a SnapStart restore: pooled connections
+     * from before the snapshot are dead, and the credentials provider has to be
+     * created against the restored environment. Only clients that were built
+     * before the snapshot are rebuilt.
+     */
+    public static synchronized void refresh() {
+        if (client != null) {
+            DynamoDbClient previous = client;
+            SdkHttpClient previousTransport = transport;
+            transport = httpClient(HttpSettings.fromEnvironment());
+            client = build(transport);
+            previous.close();
+            // the SDK does not close an HTTP client it was handed
+            previousTransport.close();
+        }
+        if (asyncClient != null) {
+            DynamoDbAsyncClient previous = asyncClient;
+            SdkAsyncHttpClient previousTransport = asyncTransport;
+            asyncTransport = asyncHttpClient(HttpSettings.fromEnvironment());
+            asyncClient = buildAsync(asyncTransport);
+            previous.close();
+            previousTransport.close();
+        }
+    }
+
+    private static DynamoDbClient build(SdkHttpClient httpClient) {
+        return DynamoDbClient.builder()
+                .region(region())
+                .credentialsProvider(credentialsProvider())
+                .httpClient(httpClient)
+                .build();
+    }
+
+    private static DynamoDbAsyncClient buildAsync(SdkAsyncHttpClient httpClient) {
+        return DynamoDbAsyncClient.builder()
+                .region(region())
+                .credentialsProvider(credentialsProvider())
+                .httpClient(httpClient)
+                .build();
+    }
+
+    static AwsCredentialsProvider credentialsProvider() {
+        return credentialsProvider(Env.string("AWS_CONTAINER_CREDENTIALS_FULL_URI", null));
+    }
+
+    /**
+     * SnapStart functions get their credentials from the container endpoint
+     * rather than from AWS_ACCESS_KEY_ID and friends.
+     */
+    static AwsCredentialsProvider credentialsProvider(String containerCredentialsUri) {
+        if (containerCredentialsUri != null) {
+            return ContainerCredentialsProvider.builder().build();
+        }
+        return EnvironmentVariableCredentialsProvider.create();
+    }
+
+    static Region region() {
+        return Region.of(Env.string("AWS_REGION", Region.US_EAST_1.id()));
+    }
+
+    /**
+     * The client this build bundles: URL-connection when it is on the class
+     * path, CRT otherwise.
+     */
+    static String bundledClient() {
+        return isPresent("software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient") ? URL_CONNECTION : CRT;
+    }
+
+    static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, DynamoDbClients.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    static SdkHttpClient httpClient(HttpSettings settings) {
+        return switch (settings.client()) {
+            case URL_CONNECTION -> UrlConnection.httpClient(settings);
+            case CRT -> Crt.httpClient(settings);
+            default -> throw new IllegalStateException("Unknown DYNAMODB_HTTP_CLIENT \"" + settings.client()
+                    + "\"; expected \"" + URL_CONNECTION + "\" or \"" + CRT + "\"");
+        };
+    }
+
+    static SdkAsyncHttpClient asyncHttpClient(HttpSettings settings) {
+        if (!isPresent("software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient")) {
+            throw new IllegalStateException("DYNAMODB_EXECUTION_MODE=async needs the CRT client, which this build does not bundle");
+        }
+        return Crt.asyncHttpClient(settings);
+    }
+
+    /**
+     * Only loaded when the URL-connection client is picked, so a CRT build
+     * never touches its classes.
+     */
+    private static final class UrlConnection {
+
+        static SdkHttpClient httpClient(HttpSettings settings) {
+            return UrlConnectionHttpClient.builder()
+                    .connectionTimeout(settings.connectTimeout())
+                    .build();
+        }
+    }
+
+    /**
+     * Only loaded when the CRT client is picked, so a URL-connection build
+     * never touches its classes.
+     */
+    private static final class Crt {
+
+        static SdkHttpClient httpClient(HttpSettings settings) {
+            AwsCrtHttpClient.Builder crt = AwsCrtHttpClient.builder()
+                    .maxConcurrency(settings.maxConnections())
+                    .connectionTimeout(settings.connectTimeout())
+                    .connectionMaxIdleTime(settings.maxIdle());
+            if (settings.keepAlive()) {
+                Duration interval = settings.keepAliveInterval();
+                crt.tcpKeepAliveConfiguration(c -> c.keepAliveInterval(interval).keepAliveTimeout(interval));
+            }
+            return crt.build();
+        }
+
+        static SdkAsyncHttpClient asyncHttpClient(HttpSettings settings) {
+            AwsCrtAsyncHttpClient.Builder crt = AwsCrtAsyncHttpClient.builder()
+                    .maxConcurrency(settings.maxConnections())
+                    .connectionTimeout(settings.connectTimeout())
+                    .connectionMaxIdleTime(settings.maxIdle());
+            if (settings.keepAlive()) {
+                Duration interval = settings.keepAliveInterval();
+                crt.tcpKeepAliveConfiguration(c -> c.keepAliveInterval(interval).keepAliveTimeout(interval));
+            }
+            return crt.build();
+        }
+    }
+}
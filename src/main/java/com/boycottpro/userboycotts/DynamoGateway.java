@@ -0,0 +1,70 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * The DynamoDB calls a submission makes, expressed as futures so the same
+ * code can run on the blocking client, where every future is already complete
+ * when it is returned and calls happen in program order, or on the async
+ * client, where independent calls overlap.
+ */
+public interface DynamoGateway {
+
+    CompletableFuture<GetItemResponse> getItem(GetItemRequest request);
+
+    CompletableFuture<QueryResponse> query(QueryRequest request);
+
+    CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request);
+
+    CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request);
+
+    CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request);
+
+    CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request);
+
+    /**
+     * Runs blocking work that has no async form (the shared validators take a
+     * DynamoDbClient) so that it does not hold up the calls issued after it.
+     */
+    <T> CompletableFuture<T> offload(Supplier<T> work);
+
+    /**
+     * Completes after the given backoff, used between retries.
+     */
+    CompletableFuture<Void> delay(long millis);
+
+    /**
+     * Waits for the result and rethrows the original exception rather than
+     * the CompletionException around it, so callers keep catching the SDK
+     * exception types.
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw asRuntime(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    static RuntimeException asRuntime(Throwable failure) {
+        Throwable cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException runtime) {
+            return runtime;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return new RuntimeException(cause);
+    }
+}
@@ -0,0 +1,30 @@
+package com.boycottpro.userboycotts;
+
+/**
+ * Lenient readers for the function's environment configuration: a missing,
+ * blank or malformed value falls back to the default instead of failing init.
+ */
+final class Env {
+
+    private Env() {
+    }
+
+    static String string(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    static int integer(String name, int defaultValue) {
+        String value = System.getenv(name);
+        try {
+            return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static boolean bool(String name, boolean defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
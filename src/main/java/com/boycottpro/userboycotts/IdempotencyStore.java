@@ -0,0 +1,201 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Idempotency-Key support for the POST handlers. The first request with a key
+ * claims an IN_PROGRESS record with a conditional write; when it finishes, its
+ * status and body are stored and replayed to any retry with the same key, so a
+ * retry of a request that succeeded gets the original 200 instead of a 409.
+ *
+ * Keys are scoped to the user and kept in IDEMPOTENCY_TABLE
+ * ("idempotency_records", TTL attribute expires_at) for
+ * IDEMPOTENCY_TTL_SECONDS (86400). A claim older than
+ * IDEMPOTENCY_LEASE_SECONDS (60) is taken to belong to an invocation that
+ * died and may be claimed again. A 5xx response is not stored, and neither is
+ * one for a request that ran low on time and left work unprocessed, so the
+ * retry runs again and records the rest. If the record table cannot be
+ * reached the request is processed as if it had no key; the conditional
+ * writes still reject duplicate rows.
+ */
+public class IdempotencyStore {
+
+    public static final String HEADER = "Idempotency-Key";
+    static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    static final int MAX_KEY_LENGTH = 255;
+
+    private static final String TABLE = Env.string("IDEMPOTENCY_TABLE", "idempotency_records");
+    private static final long TTL_SECONDS = Env.integer("IDEMPOTENCY_TTL_SECONDS", 86400);
+    private static final long LEASE_SECONDS = Env.integer("IDEMPOTENCY_LEASE_SECONDS", 60);
+    private static final String IN_PROGRESS = "IN_PROGRESS";
+    private static final String COMPLETED = "COMPLETED";
+
+    private final DynamoGateway dynamoDb;
+    private final LongSupplier clock;
+    private final Log log;
+
+    public IdempotencyStore(DynamoGateway dynamoDb, Log log) {
+        this(dynamoDb, System::currentTimeMillis, log);
+    }
+
+    IdempotencyStore(DynamoGateway dynamoDb, LongSupplier clock, Log log) {
+        this.dynamoDb = dynamoDb;
+        this.clock = clock;
+        this.log = log;
+    }
+
+    /**
+     * The outcome of claiming a key: either a response to return right away
+     * (a replay or a refusal), or the go-ahead to process the request.
+     */
+    public final class Claim {
+        private final Map<String, AttributeValue> key;
+        private final APIGatewayProxyResponseEvent response;
+        private volatile boolean unfinished;
+
+        private Claim(Map<String, AttributeValue> key, APIGatewayProxyResponseEvent response) {
+            this.key = key;
+            this.response = response;
+        }
+
+        /**
+         * The response to return without processing, or null to go ahead.
+         */
+        public APIGatewayProxyResponseEvent response() {
+            return response;
+        }
+
+        /**
+         * Marks the request as left unfinished: complete then releases the key
+         * instead of storing a response that only reports what was left.
+         */
+        public void unfinished() {
+            unfinished = true;
+        }
+
+        /**
+         * Stores the final response for replay, or releases the key when the
+         * response is a server error or the request was left unfinished.
+         * Returns the response unchanged.
+         */
+        public APIGatewayProxyResponseEvent complete(APIGatewayProxyResponseEvent response) {
+            if (key == null) {
+                return response;
+            }
+            try {
+                if (response.getStatusCode() >= 500 || unfinished) {
+                    DynamoGateway.await(dynamoDb.deleteItem(DeleteItemRequest.builder()
+                            .tableName(TABLE).key(key).build()));
+                } else {
+                    DynamoGateway.await(dynamoDb.updateItem(UpdateItemRequest.builder()
+                            .tableName(TABLE)
+                            .key(key)
+                            .updateExpression("SET #status = :completed, response_status = :code, response_body = :body "
+                                    + "REMOVE in_progress_until")
+                            .expressionAttributeNames(Map.of("#status", "status"))
+                            .expressionAttributeValues(Map.of(
+                                    ":completed", AttributeValue.fromS(COMPLETED),
+                                    ":code", AttributeValue.fromN(Integer.toString(response.getStatusCode())),
+                                    ":body", AttributeValue.fromS(response.getBody() == null ? "" : response.getBody())))
+                            .build()));
+                }
+            } catch (DynamoDbException e) {
+                // the claim lapses with its lease; a retry after that runs again
+                log.warn("Idempotency record update failed", e);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Claims the request's Idempotency-Key for the user. Without the header the
+     * claim is a no-op.
+     */
+    public Claim claim(String userId, APIGatewayProxyRequestEvent event) {
+        String idempotencyKey = header(event);
+        if (idempotencyKey == null) {
+            return new Claim(null, null);
+        }
+        if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+            return new Claim(null, Responses.message(400,
+                    "Idempotency-Key must be at most " + MAX_KEY_LENGTH + " characters."));
+        }
+        Map<String, AttributeValue> key = Map.of("idempotency_key", AttributeValue.fromS(userId + "#" + idempotencyKey));
+        String requestHash = hash(event.getBody());
+        long nowSeconds = clock.getAsLong() / 1000;
+        try {
+            DynamoGateway.await(dynamoDb.updateItem(UpdateItemRequest.builder()
+                    .tableName(TABLE)
+                    .key(key)
+                    .updateExpression("SET #status = :in_progress, request_hash = :hash, "
+                            + "in_progress_until = :lease, expires_at = :expires "
+                            + "REMOVE response_status, response_body")
+                    .conditionExpression("attribute_not_exists(idempotency_key) OR expires_at < :now "
+                            + "OR (#status = :in_progress AND in_progress_until < :now)")
+                    .expressionAttributeNames(Map.of("#status", "status"))
+                    .expressionAttributeValues(Map.of(
+                            ":in_progress", AttributeValue.fromS(IN_PROGRESS),
+                            ":hash", AttributeValue.fromS(requestHash),
+                            ":lease", AttributeValue.fromN(Long.toString(nowSeconds + LEASE_SECONDS)),
+                            ":expires", AttributeValue.fromN(Long.toString(nowSeconds + TTL_SECONDS)),
+                            ":now", AttributeValue.fromN(Long.toString(nowSeconds))))
+                    .returnValuesOnConditionCheckFailure(ReturnValuesOnConditionCheckFailure.ALL_OLD)
+                    .build()));
+            return new Claim(key, null);
+        } catch (ConditionalCheckFailedException e) {
+            return new Claim(null, existing(e.hasItem() ? e.item() : Map.of(), requestHash));
+        } catch (DynamoDbException e) {
+            log.warn("Idempotency claim failed, processing without it", e);
+            return new Claim(null, null);
+        }
+    }
+
+    private static APIGatewayProxyResponseEvent existing(Map<String, AttributeValue> record, String requestHash) {
+        AttributeValue storedHash = record.get("request_hash");
+        if (storedHash != null && !requestHash.equals(storedHash.s())) {
+            return Responses.message(422, "Idempotency-Key was already used for a different request.");
+        }
+        AttributeValue status = record.get("status");
+        if (status != null && COMPLETED.equals(status.s()) && record.containsKey("response_status")) {
+            APIGatewayProxyResponseEvent replay = Responses.json(Integer.parseInt(record.get("response_status").n()),
+                    record.get("response_body").s());
+            Map<String, String> headers = new HashMap<>(replay.getHeaders());
+            headers.put(REPLAYED_HEADER, "true");
+            return replay.withHeaders(headers);
+        }
+        return Responses.message(409, "A request with this Idempotency-Key is still in progress.");
+    }
+
+    /**
+     * Header names are case-insensitive, and API Gateway passes them as sent.
+     */
+    static String header(APIGatewayProxyRequestEvent event) {
+        if (event.getHeaders() == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : event.getHeaders().entrySet()) {
+            if (HEADER.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isBlank()) {
+                return header.getValue().trim();
+            }
+        }
+        return null;
+    }
+
+    private static String hash(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((body == null ? "" : body).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
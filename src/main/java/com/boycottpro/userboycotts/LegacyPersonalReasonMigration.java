@@ -0,0 +1,159 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+/**
+ * Moves the personal reasons written before the normalized key existed, keyed
+ * "<personal_reason>#<company_id>", to "<company_id>#personal#<hash>", so the
+ * request path finds every reason of a company inside the company's range and
+ * never has to read the rest of the user's partition. Run once, before or
+ * alongside the release that stops looking for legacy rows.
+ *
+ * Each legacy row is rewritten in one transaction: a Put of the normalized row
+ * guarded by attribute_not_exists and a Delete of the legacy row guarded by
+ * attribute_exists. When the normalized row is already there (the same reason
+ * in other case or spacing, or a newer submission of it) only the legacy row
+ * is deleted. A row another run already moved fails its Delete and is skipped.
+ *
+ * The scan reads PAGE_SIZE rows at a time and stops between pages when the
+ * invocation is nearly out of time, returning last_evaluated_key; invoke again with it as start_key until none comes back.
+ */
+public class LegacyPersonalReasonMigration implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    static final String START_KEY = "start_key";
+    static final String LAST_EVALUATED_KEY = "last_evaluated_key";
+    // rows read per page, before the filter, so one page's rewrites stay well inside the deadline
+    static final int PAGE_SIZE = 100;
+
+    private final DynamoDbClient dynamoDb;
+
+    public LegacyPersonalReasonMigration() {
+        this.dynamoDb = DynamoDbClients.shared();
+    }
+
+    public LegacyPersonalReasonMigration(DynamoDbClient dynamoDb) {
+        this.dynamoDb = dynamoDb;
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> input, Context context) {
+        Log log = Log.begin(context);
+        Deadline deadline = Deadline.from(context);
+        Map<String, AttributeValue> startKey = startKey(input);
+        int scanned = 0;
+        int migrated = 0;
+        int merged = 0;
+        do {
+            ScanResponse page = dynamoDb.scan(ScanRequest.builder()
+                    .tableName("user_boycotts")
+                    // the sort key may not appear in a filter; rows already under their company are skipped below
+                    .filterExpression("attribute_exists(personal_reason)")
+                    .limit(PAGE_SIZE)
+                    .exclusiveStartKey(startKey)
+                    .build());
+            for (Map<String, AttributeValue> row : page.items()) {
+                scanned++;
+                if (!isLegacy(row)) {
+                    continue;
+                }
+                switch (migrate(row)) {
+                    case MIGRATED -> migrated++;
+                    case MERGED -> merged++;
+                    default -> { }
+                }
+            }
+            startKey = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty() ? page.lastEvaluatedKey() : null;
+        } while (startKey != null && !deadline.nearlyUsedUp());
+        log.info("Legacy personal reasons: " + scanned + " rows scanned, " + migrated + " moved, " + merged
+                + " merged into an existing reason");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("scanned", scanned);
+        result.put("migrated", migrated);
+        result.put("merged", merged);
+        if (startKey != null) {
+            Map<String, String> next = new LinkedHashMap<>();
+            startKey.forEach((name, value) -> next.put(name, value.s()));
+            result.put(LAST_EVALUATED_KEY, next);
+        }
+        return result;
+    }
+
+    enum Outcome { MIGRATED, MERGED, SKIPPED }
+
+    /**
+     * A personal-reason row whose sort key is not under its company's prefix.
+     */
+    static boolean isLegacy(Map<String, AttributeValue> row) {
+        AttributeValue companyId = row.get("company_id");
+        AttributeValue sortKey = row.get("company_cause_id");
+        AttributeValue reason = row.get("personal_reason");
+        return companyId != null && companyId.s() != null && sortKey != null && sortKey.s() != null
+                && reason != null && reason.s() != null && !sortKey.s().startsWith(companyId.s() + "#");
+    }
+
+    Outcome migrate(Map<String, AttributeValue> row) {
+        Map<String, AttributeValue> legacyKey = Map.of(
+                "user_id", row.get("user_id"),
+                "company_cause_id", row.get("company_cause_id"));
+        Map<String, AttributeValue> normalized = new HashMap<>(row);
+        normalized.put("company_cause_id", AttributeValue.fromS(
+                UserBoycottsView.personalReasonKey(row.get("company_id").s(), row.get("personal_reason").s())));
+        Delete delete = Delete.builder()
+                .tableName("user_boycotts")
+                .key(legacyKey)
+                .conditionExpression("attribute_exists(company_cause_id)")
+                .build();
+        try {
+            dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
+                    .transactItems(
+                            TransactWriteItem.builder().put(Put.builder()
+                                    .tableName("user_boycotts")
+                                    .item(normalized)
+                                    .conditionExpression("attribute_not_exists(company_cause_id)")
+                                    .build()).build(),
+                            TransactWriteItem.builder().delete(delete).build())
+                    .build());
+            return Outcome.MIGRATED;
+        } catch (TransactionCanceledException e) {
+            if (failedCondition(e, 1)) {
+                // another run moved it first
+                return Outcome.SKIPPED;
+            }
+            if (!failedCondition(e, 0)) {
+                throw e;
+            }
+        }
+        // the reason is already recorded under the normalized key, so the legacy row only duplicates it
+        try {
+            dynamoDb.deleteItem(DeleteItemRequest.builder()
+                    .tableName(delete.tableName())
+                    .key(delete.key())
+                    .conditionExpression(delete.conditionExpression())
+                    .build());
+            return Outcome.MERGED;
+        } catch (ConditionalCheckFailedException e) {
+            return Outcome.SKIPPED;
+        }
+    }
+
+    private static boolean failedCondition(TransactionCanceledException e, int action) {
+        return e.hasCancellationReasons() && e.cancellationReasons().size() > action
+                && "ConditionalCheckFailed".equals(e.cancellationReasons().get(action).code());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, AttributeValue> startKey(Map<String, Object> input) {
+        Object startKey = input == null ? null : input.get(START_KEY);
+        if (!(startKey instanceof Map<?, ?> values) || values.isEmpty()) {
+            return null;
+        }
+        Map<String, AttributeValue> key = new HashMap<>();
+        ((Map<String, Object>) values).forEach((name, value) -> key.put(name, AttributeValue.fromS(String.valueOf(value))));
+        return key;
+    }
+}
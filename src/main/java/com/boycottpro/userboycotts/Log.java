@@ -0,0 +1,156 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One JSON object per log line, so CloudWatch Logs Insights can filter on
+ * level, request_id and sub. Lines below LOG_LEVEL (INFO) are dropped before
+ * their message is built: the Supplier overloads are for messages that cost
+ * something to put together. LOG_DEBUG_SAMPLE_PERCENT (0) of invocations log
+ * at DEBUG regardless, to see the detail of a few requests without paying for
+ * it on all of them.
+ *
+ * A Log belongs to one invocation: the handler begins it with the request id
+ * and hands it to everything that logs for the request, so nothing is shared
+ * between invocations and the request's lines stay correlated on whichever
+ * SDK or virtual thread they are written. forUser gives the lines of the
+ * authenticated user; the SQS handler, which records several users at once,
+ * takes one per message. NO_REQUEST is for work outside any invocation, such
+ * as priming before a snapshot.
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    static final Level LEVEL = level(Env.string("LOG_LEVEL", "INFO"));
+    static final int DEBUG_SAMPLE_PERCENT = Env.integer("LOG_DEBUG_SAMPLE_PERCENT", 0);
+    static final Consumer<String> STDOUT = System.out::println;
+
+    public static final Log NO_REQUEST = new Log(null, null, false, STDOUT);
+
+    private final String requestId;
+    private final String user;
+    private final boolean debugSampled;
+    private final Consumer<String> sink;
+
+    private Log(String requestId, String user, boolean debugSampled, Consumer<String> sink) {
+        this.requestId = requestId;
+        this.user = user;
+        this.debugSampled = debugSampled;
+        this.sink = sink;
+    }
+
+    public static Log begin(Context context) {
+        return begin(context, STDOUT);
+    }
+
+    /**
+     * Starts the log of an invocation, writing its lines to sink, and decides
+     * whether it is sampled at DEBUG.
+     */
+    public static Log begin(Context context, Consumer<String> sink) {
+        return new Log(context == null ? null : context.getAwsRequestId(), null,
+                DEBUG_SAMPLE_PERCENT > 0 && ThreadLocalRandom.current().nextInt(100) < DEBUG_SAMPLE_PERCENT, sink);
+    }
+
+    /**
+     * The same invocation's log with sub named on every line.
+     */
+    public Log forUser(String sub) {
+        return new Log(requestId, sub, debugSampled, sink);
+    }
+
+    public boolean enabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 || (level == Level.DEBUG && debugSampled);
+    }
+
+    public void debug(Supplier<String> message) {
+        if (enabled(Level.DEBUG)) {
+            emit(Level.DEBUG, -1, null, message.get(), null);
+        }
+    }
+
+    public void info(String message) {
+        if (enabled(Level.INFO)) {
+            emit(Level.INFO, -1, null, message, null);
+        }
+    }
+
+    public void warn(String message, Throwable failure) {
+        if (enabled(Level.WARN)) {
+            emit(Level.WARN, -1, null, message, failure);
+        }
+    }
+
+    public void warn(Supplier<String> message, Throwable failure) {
+        if (enabled(Level.WARN)) {
+            emit(Level.WARN, -1, null, message.get(), failure);
+        }
+    }
+
+    public void error(Supplier<String> message, Throwable failure) {
+        if (enabled(Level.ERROR)) {
+            emit(Level.ERROR, -1, null, message.get(), failure);
+        }
+    }
+
+    /**
+     * An error at the given source line, for the user when sub is set and the
+     * log's user otherwise.
+     */
+    public void error(int line, String sub, String message) {
+        if (enabled(Level.ERROR)) {
+            emit(Level.ERROR, line, sub, message, null);
+        }
+    }
+
+    public void error(int line, String sub, Supplier<String> message) {
+        if (enabled(Level.ERROR)) {
+            emit(Level.ERROR, line, sub, message.get(), null);
+        }
+    }
+
+    private void emit(Level level, int line, String sub, String message, Throwable failure) {
+        StringWriter writer = new StringWriter(160);
+        try (JsonGenerator generator = BoycottFormReader.JSON.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("level", level.name());
+            generator.writeStringField("message", message);
+            if (line >= 0) {
+                generator.writeNumberField("line", line);
+            }
+            String who = sub != null ? sub : user;
+            if (who != null) {
+                generator.writeStringField("sub", who);
+            }
+            if (requestId != null) {
+                generator.writeStringField("request_id", requestId);
+            }
+            if (failure != null) {
+                generator.writeStringField("error_type", failure.getClass().getSimpleName());
+                generator.writeStringField("error", failure.getMessage());
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sink.accept(writer.toString());
+    }
+
+    private static Level level(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
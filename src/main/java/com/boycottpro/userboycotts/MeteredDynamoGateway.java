@@ -0,0 +1,67 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Gateway decorator that counts and times every DynamoDB call by operation
+ * in the invocation's Metrics. A call is timed until its future completes,
+ * whether it succeeded or not.
+ */
+class MeteredDynamoGateway implements DynamoGateway {
+
+    private final DynamoGateway delegate;
+    private final Metrics metrics;
+
+    MeteredDynamoGateway(DynamoGateway delegate, Metrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    private <T> CompletableFuture<T> metered(String operation, Supplier<CompletableFuture<T>> call) {
+        long started = System.nanoTime();
+        return call.get().whenComplete((response, failure) -> metrics.call(operation, started));
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return metered("GetItem", () -> delegate.getItem(request));
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        return metered("Query", () -> delegate.query(request));
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return metered("BatchGetItem", () -> delegate.batchGetItem(request));
+    }
+
+    @Override
+    public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+        return metered("TransactWriteItems", () -> delegate.transactWriteItems(request));
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return metered("UpdateItem", () -> delegate.updateItem(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return metered("DeleteItem", () -> delegate.deleteItem(request));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> offload(Supplier<T> work) {
+        return delegate.offload(work);
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis) {
+        return delegate.delay(millis);
+    }
+}
@@ -0,0 +1,194 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * The metrics of one invocation, written as a single CloudWatch Embedded
+ * Metric Format line when the invocation finishes, so CloudWatch extracts them
+ * from the log without any call to PutMetricData.
+ *
+ * The only dimensions are Operation (the handler) and Outcome (the status
+ * code, or OK/PartialFailure for a queue batch); the request id is written as
+ * a property so a metric can be traced back to its log lines without becoming
+ * a dimension. Phase timers add up, so a phase entered twice reports its total;
+ * DynamoDB latencies keep every call, as EMF allows a list of values.
+ * METRICS_NAMESPACE ("BoycottPro/UserBoycotts") names the namespace and
+ * METRICS_ENABLED=false turns the line off. The handler that begins the
+ * invocation hands in where the line goes, standard output in Lambda.
+ */
+public final class Metrics {
+
+    static final String NAMESPACE = Env.string("METRICS_NAMESPACE", "BoycottPro/UserBoycotts");
+    static final boolean ENABLED = Env.bool("METRICS_ENABLED", true);
+    private static final String MILLISECONDS = "Milliseconds";
+    private static final String COUNT = "Count";
+
+    static final Consumer<String> STDOUT = System.out::println;
+
+    public static final Metrics NONE = new Metrics(null, null, false, STDOUT);
+
+    private final String operation;
+    private final String requestId;
+    private final boolean enabled;
+    private final Consumer<String> sink;
+    private final Map<String, String> units = new LinkedHashMap<>();
+    private final Map<String, List<Double>> values = new LinkedHashMap<>();
+
+    public Metrics(String operation, Context context, Consumer<String> sink) {
+        this(operation, context == null ? null : context.getAwsRequestId(), ENABLED, sink);
+    }
+
+    private Metrics(String operation, String requestId, boolean enabled, Consumer<String> sink) {
+        this.operation = operation;
+        this.requestId = requestId;
+        this.enabled = enabled;
+        this.sink = sink;
+    }
+
+    /**
+     * Adds the time since startedNanos (a System.nanoTime reading) to a phase.
+     */
+    public void time(String name, long startedNanos) {
+        add(name, MILLISECONDS, millisSince(startedNanos), true);
+    }
+
+    /**
+     * Times a phase that is in flight: the time runs from startedNanos, read
+     * before its calls were issued, until the future completes. A blocking
+     * gateway has finished the calls before the future exists, so the reading
+     * cannot be taken here.
+     */
+    public <T> CompletableFuture<T> time(String name, long startedNanos, CompletableFuture<T> phase) {
+        if (!enabled) {
+            return phase;
+        }
+        return phase.whenComplete((value, failure) -> time(name, startedNanos));
+    }
+
+    public void count(String name, double amount) {
+        add(name, COUNT, amount, true);
+    }
+
+    /**
+     * One DynamoDB call that started at startedNanos: counted as
+     * &lt;Operation&gt;Calls, its latency kept in &lt;Operation&gt;Latency.
+     */
+    public void call(String dynamoOperation, long startedNanos) {
+        add(dynamoOperation + "Calls", COUNT, 1, true);
+        add(dynamoOperation + "Latency", MILLISECONDS, millisSince(startedNanos), false);
+    }
+
+    /**
+     * The gateway with every call counted and timed; the gateway itself when
+     * metrics are off.
+     */
+    public DynamoGateway meter(DynamoGateway gateway) {
+        return enabled ? new MeteredDynamoGateway(gateway, this) : gateway;
+    }
+
+    /**
+     * Writes the EMF line for an invocation that ended with the given outcome.
+     */
+    public void flush(String outcome) {
+        if (!enabled) {
+            return;
+        }
+        count("Requests", 1);
+        String line;
+        synchronized (this) {
+            line = emf(outcome);
+        }
+        sink.accept(line);
+    }
+
+    /**
+     * Flushes with the response's status code as the outcome and returns the
+     * response.
+     */
+    public APIGatewayProxyResponseEvent flush(APIGatewayProxyResponseEvent response) {
+        flush(Integer.toString(response.getStatusCode()));
+        return response;
+    }
+
+    private synchronized void add(String name, String unit, double value, boolean accumulate) {
+        if (!enabled) {
+            return;
+        }
+        units.putIfAbsent(name, unit);
+        List<Double> recorded = values.computeIfAbsent(name, key -> new ArrayList<>(1));
+        if (accumulate && !recorded.isEmpty()) {
+            recorded.set(0, recorded.get(0) + value);
+        } else {
+            recorded.add(value);
+        }
+    }
+
+    private String emf(String outcome) {
+        StringWriter writer = new StringWriter(512);
+        try (JsonGenerator generator = BoycottFormReader.JSON.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("_aws");
+            generator.writeNumberField("Timestamp", System.currentTimeMillis());
+            generator.writeArrayFieldStart("CloudWatchMetrics");
+            generator.writeStartObject();
+            generator.writeStringField("Namespace", NAMESPACE);
+            generator.writeArrayFieldStart("Dimensions");
+            generator.writeStartArray();
+            generator.writeString("Operation");
+            generator.writeEndArray();
+            generator.writeStartArray();
+            generator.writeString("Operation");
+            generator.writeString("Outcome");
+            generator.writeEndArray();
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("Metrics");
+            for (Map.Entry<String, String> metric : units.entrySet()) {
+                generator.writeStartObject();
+                generator.writeStringField("Name", metric.getKey());
+                generator.writeStringField("Unit", metric.getValue());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.writeStringField("Operation", operation);
+            generator.writeStringField("Outcome", outcome);
+            if (requestId != null) {
+                generator.writeStringField("request_id", requestId);
+            }
+            for (Map.Entry<String, List<Double>> metric : values.entrySet()) {
+                List<Double> recorded = metric.getValue();
+                if (recorded.size() == 1) {
+                    generator.writeNumberField(metric.getKey(), recorded.get(0));
+                } else {
+                    generator.writeArrayFieldStart(metric.getKey());
+                    for (double value : recorded) {
+                        generator.writeNumber(value);
+                    }
+                    generator.writeEndArray();
+                }
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    private static double millisSince(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1_000_000.0;
+    }
+}
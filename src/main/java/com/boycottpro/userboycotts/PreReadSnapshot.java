@@ -0,0 +1,161 @@
+package com.boycottpro.userboycotts;
+
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory view of every item the per-reason loop needs to look at, fetched
+ * up front with BatchGetItem instead of one GetItem/Query per check.
+ */
+public class PreReadSnapshot {
+
+    static final int MAX_KEYS_PER_BATCH = 100;
+    static final int MAX_UNPROCESSED_RETRIES = 5;
+    static final long BASE_BACKOFF_MILLIS = 25;
+
+    private static final Map<String, List<String>> KEY_ATTRIBUTES = Map.of(
+            "user_causes", List.of("user_id", "cause_id"),
+            "causes", List.of("cause_id")
+    );
+    private static final Map<String, String> PROJECTIONS = Map.of(
+            "user_causes", "user_id, cause_id",
+            "causes", "cause_id, cause_desc"
+    );
+
+    private final Map<String, Map<String, Map<String, AttributeValue>>> items;
+    private final Map<String, String> cachedCauses;
+    private final ValidationCache causeCache;
+
+    private PreReadSnapshot(Map<String, Map<String, Map<String, AttributeValue>>> items,
+                            Map<String, String> cachedCauses, ValidationCache causeCache) {
+        this.items = items;
+        this.cachedCauses = cachedCauses;
+        this.causeCache = causeCache;
+    }
+
+    /**
+     * Causes whose description is already in the validation cache are not read.
+     * The cache is consulted once per cause here and the answer is kept, so a
+     * hit is counted once and an entry that expires before isValidCause does
+     * not turn a vouched cause invalid.
+     */
+    public static PreReadSnapshot load(DynamoGateway dynamoDb, String userId, List<AddBoycottForm.Reason> reasons,
+                                       ValidationCache causeCache, Metrics metrics) {
+        return DynamoGateway.await(loadAsync(dynamoDb, userId, reasons, causeCache, metrics));
+    }
+
+    /**
+     * Same as load, with the batches of up to 100 keys read concurrently.
+     */
+    public static CompletableFuture<PreReadSnapshot> loadAsync(DynamoGateway dynamoDb, String userId,
+                                                               List<AddBoycottForm.Reason> reasons,
+                                                               ValidationCache causeCache, Metrics metrics) {
+        Map<String, Map<String, Map<String, AttributeValue>>> keys = new LinkedHashMap<>();
+        Map<String, String> cachedCauses = new HashMap<>();
+        for (AddBoycottForm.Reason reason : reasons) {
+            String causeId = reason.getCause_id();
+            addKey(keys, "user_causes", Map.of(
+                    "user_id", AttributeValue.fromS(userId),
+                    "cause_id", AttributeValue.fromS(causeId)));
+            if (reason.getCause_desc() != null && reason.getCause_desc().equals(cachedCauses.get(causeId))) {
+                continue;
+            }
+            if (causeCache.isValid(causeId, reason.getCause_desc(), metrics)) {
+                cachedCauses.put(causeId, reason.getCause_desc());
+            } else {
+                addKey(keys, "causes", Map.of(
+                        "cause_id", AttributeValue.fromS(causeId)));
+            }
+        }
+        Map<String, Map<String, Map<String, AttributeValue>>> found = new ConcurrentHashMap<>();
+        List<Map.Entry<String, Map<String, AttributeValue>>> pending = new ArrayList<>();
+        keys.forEach((table, tableKeys) -> tableKeys.values()
+                .forEach(key -> pending.add(Map.entry(table, key))));
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        for (int start = 0; start < pending.size(); start += MAX_KEYS_PER_BATCH) {
+            batches.add(fetch(dynamoDb, requestItems(
+                    pending.subList(start, Math.min(start + MAX_KEYS_PER_BATCH, pending.size()))), found, 0));
+        }
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new))
+                .thenApply(done -> new PreReadSnapshot(found, cachedCauses, causeCache));
+    }
+
+    private static void addKey(Map<String, Map<String, Map<String, AttributeValue>>> keys,
+                               String table, Map<String, AttributeValue> key) {
+        // BatchGetItem rejects requests that repeat a key, so collapse duplicate reasons here
+        keys.computeIfAbsent(table, t -> new LinkedHashMap<>()).putIfAbsent(keyString(table, key), key);
+    }
+
+    private static Map<String, KeysAndAttributes> requestItems(List<Map.Entry<String, Map<String, AttributeValue>>> batch) {
+        Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+        Map<String, List<Map<String, AttributeValue>>> byTable = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, AttributeValue>> entry : batch) {
+            byTable.computeIfAbsent(entry.getKey(), t -> new ArrayList<>()).add(entry.getValue());
+        }
+        byTable.forEach((table, tableKeys) -> requestItems.put(table, KeysAndAttributes.builder()
+                .keys(tableKeys)
+                .projectionExpression(PROJECTIONS.get(table))
+                .build()));
+        return requestItems;
+    }
+
+    private static CompletableFuture<Void> fetch(DynamoGateway dynamoDb, Map<String, KeysAndAttributes> requestItems,
+                                                 Map<String, Map<String, Map<String, AttributeValue>>> found,
+                                                 int attempt) {
+        return dynamoDb.batchGetItem(BatchGetItemRequest.builder().requestItems(requestItems).build())
+                .thenCompose(response -> {
+                    if (response.hasResponses()) {
+                        response.responses().forEach((table, tableItems) -> tableItems.forEach(item ->
+                                found.computeIfAbsent(table, t -> new ConcurrentHashMap<>())
+                                        .put(keyString(table, item), item)));
+                    }
+                    if (!response.hasUnprocessedKeys() || response.unprocessedKeys().isEmpty()) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    int next = attempt + 1;
+                    if (next > MAX_UNPROCESSED_RETRIES) {
+                        return CompletableFuture.<Void>failedFuture(
+                                new RuntimeException("unable to read existing boycott state, unprocessed keys remain"));
+                    }
+                    Map<String, KeysAndAttributes> unprocessed = new HashMap<>(response.unprocessedKeys());
+                    return dynamoDb.delay(BASE_BACKOFF_MILLIS << (next - 1))
+                            .thenCompose(ready -> fetch(dynamoDb, unprocessed, found, next));
+                });
+    }
+
+    private static String keyString(String table, Map<String, AttributeValue> item) {
+        StringBuilder sb = new StringBuilder();
+        for (String attribute : KEY_ATTRIBUTES.get(table)) {
+            AttributeValue value = item.get(attribute);
+            sb.append(value == null ? "" : value.s()).append('\u0000');
+        }
+        return sb.toString();
+    }
+
+    private Map<String, AttributeValue> get(String table, Map<String, AttributeValue> key) {
+        return items.getOrDefault(table, Map.of()).get(keyString(table, key));
+    }
+
+    public boolean isValidCause(String causeId, String causeDesc) {
+        Map<String, AttributeValue> cause = get("causes", Map.of("cause_id", AttributeValue.fromS(causeId)));
+        if (cause == null) {
+            // not read because the cache already vouched for it at load time (or the cause does not exist)
+            return causeDesc != null && causeDesc.equals(cachedCauses.get(causeId));
+        }
+        boolean valid = cause.containsKey("cause_desc") && cause.get("cause_desc").s().equals(causeDesc);
+        if (valid) {
+            causeCache.remember(causeId, causeDesc);
+        }
+        return valid;
+    }
+
+    public boolean userIsFollowingCause(String userId, String causeId) {
+        return get("user_causes", Map.of(
+                "user_id", AttributeValue.fromS(userId),
+                "cause_id", AttributeValue.fromS(causeId))) != null;
+    }
+}
@@ -0,0 +1,83 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the request path once without writing anything, so that the classes it
+ * touches are loaded and the hot methods have been through the interpreter
+ * before the SnapStart snapshot is taken, or before a scale-out container
+ * takes its first real request.
+ *
+ * A scheduled warm-up ping is an event whose resource is "warmup" (an
+ * EventBridge rule with constant input {"resource": "warmup"}).
+ */
+final class Priming {
+
+    static final String WARMUP_RESOURCE = "warmup";
+    private static final String PRIMING_ID = "__priming__";
+    private static final String SAMPLE_BODY = "{\"company_id\":\"" + PRIMING_ID + "\",\"company_name\":\"Priming\","
+            + "\"reasons\":[{\"cause_id\":\"" + PRIMING_ID + "\",\"cause_desc\":\"Priming\"}],"
+            + "\"personal_reason\":\"Priming\"}";
+
+    private Priming() {
+    }
+
+    static boolean isWarmup(APIGatewayProxyRequestEvent event) {
+        return event != null && WARMUP_RESOURCE.equals(event.getResource());
+    }
+
+    /**
+     * Never throws: a failed priming step only costs the first real request
+     * the time it would have spent anyway.
+     */
+    static void prime(ObjectMapper objectMapper, DynamoGateway dynamoDb, Log log) {
+        try {
+            AddBoycottForm form = objectMapper.readValue(SAMPLE_BODY, AddBoycottForm.class);
+            String now = Instant.now().toString();
+            List<TransactionBatcher.WriteUnit> units = new ArrayList<>();
+            for (AddBoycottForm.Reason reason : form.getReasons()) {
+                List<TransactWriteItem> actions = new ArrayList<>();
+                actions.add(BoycottActions.causeBoycott(PRIMING_ID, form.getCompany_id(), form.getCompany_name(),
+                        reason.getCause_id(), reason.getCause_desc(), now));
+                actions.addAll(BoycottActions.followCause(PRIMING_ID, reason.getCause_id(), reason.getCause_desc(), now));
+                actions.add(BoycottActions.causeCompanyStats(form.getCompany_id(), form.getCompany_name(),
+                        reason.getCause_id(), reason.getCause_desc()));
+                units.add(new TransactionBatcher.WriteUnit("cause: " + reason.getCause_id(), actions));
+            }
+            units.add(new TransactionBatcher.WriteUnit("personal reason: " + form.getPersonal_reason(),
+                    BoycottActions.personalReason(PRIMING_ID, form.getCompany_id(), form.getCompany_name(),
+                            form.getPersonal_reason(), now)));
+            List<TransactWriteItem> riders = BoycottActions.firstBoycottRiders(PRIMING_ID, form.getCompany_id(), now);
+            for (List<TransactionBatcher.WriteUnit> chunk : TransactionBatcher.pack(units, riders)) {
+                List<TransactWriteItem> actions = new ArrayList<>(riders);
+                chunk.forEach(unit -> actions.addAll(unit.getActions()));
+                TransactWriteItemsRequest.builder().transactItems(actions).build();
+            }
+            Responses.someRecorded(List.of("Priming"));
+        } catch (Exception e) {
+            log.warn("Priming of the request path failed", e);
+        }
+        try {
+            // a read of a key that never exists loads the marshallers, signer and HTTP stack and opens a connection
+            DynamoGateway.await(dynamoDb.getItem(GetItemRequest.builder()
+                    .tableName("companies")
+                    .key(Map.of("company_id", AttributeValue.fromS(PRIMING_ID)))
+                    .projectionExpression("company_id")
+                    .build()));
+        } catch (SdkException e) {
+            log.warn("Priming read failed", e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Records boycotts submitted through SQS, for buffering traffic spikes. Each
+ * message body is an AddBoycottForm with user_id set by the producer, which
+ * has already authenticated the user. Records go through the same
+ * BoycottRecorder as the API; outside the sync execution mode they are
+ * recorded concurrently, one virtual thread per record.
+ *
+ * Unless COUNTER_UPDATES=stream leaves them to CounterStreamHandler, the
+ * counter increments of each transaction are written to the CounterOutbox in
+ * that transaction, and once every record is done the outbox entries of the
+ * batch are drained, coalesced into one "ADD n" per company or cause, while
+ * the deadline leaves room.
+ *
+ * A message that can never be recorded (an unreadable body, no user_id or
+ * company_id, an invalid company) is logged and dropped: redelivering it would
+ * only fail the same way until the queue gave up on it. Only messages that had
+ * a write fail or were left unfinished when the invocation ran low on time are
+ * reported, so only those are redelivered, along with the messages whose
+ * outbox entries were not drained. A redelivered message finds its committed
+ * rows already there and records only the rest, and drains the entries its
+ * earlier deliveries left.
+ */
+public class QueuedUserBoycottsHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    static final String OPERATION = "QueuedUserBoycotts";
+    private static final ExecutorService RECORDS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final DynamoGateway gateway;
+    private final boolean concurrentRecords;
+    private final ShardedCounters counters = ShardedCounters.SHARED;
+    private boolean countersFromStream = BoycottRecorder.COUNTERS_FROM_STREAM;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Consumer<String> logSink = Log.STDOUT;
+    private Consumer<String> metricsSink = Metrics.STDOUT;
+
+    public QueuedUserBoycottsHandler() {
+        this.gateway = DynamoDbClients.configuredGateway(DynamoDbClients.shared());
+        this.concurrentRecords = !(gateway instanceof SyncDynamoGateway);
+    }
+
+    public QueuedUserBoycottsHandler(DynamoDbClient dynamoDb) {
+        this.gateway = new SyncDynamoGateway(dynamoDb);
+        this.concurrentRecords = false;
+    }
+
+    QueuedUserBoycottsHandler withCountersFromStream(boolean countersFromStream) {
+        this.countersFromStream = countersFromStream;
+        return this;
+    }
+
+    QueuedUserBoycottsHandler withLogSink(Consumer<String> logSink) {
+        this.logSink = logSink;
+        return this;
+    }
+
+    QueuedUserBoycottsHandler withMetricsSink(Consumer<String> metricsSink) {
+        this.metricsSink = metricsSink;
+        return this;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
+        Log log = Log.begin(context, logSink);
+        Metrics metrics = new Metrics(OPERATION, context, metricsSink);
+        CapacityBudget capacity = new CapacityBudget();
+        DynamoGateway gateway = capacity.track(metrics.meter(this.gateway));
+        Deadline deadline = Deadline.from(context);
+        Map<SQSEvent.SQSMessage, CompletableFuture<List<CounterOutbox.Entry>>> inFlight = new LinkedHashMap<>();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            // a record spends its whole run waiting on its own calls, so it gets a virtual thread rather than a
+            // thread of the async gateway's blocking pool
+            inFlight.put(message, concurrentRecords
+                    ? CompletableFuture.supplyAsync(() -> record(message, gateway, deadline, metrics, log), RECORDS)
+                    : CompletableFuture.completedFuture(null).thenApply(ignored -> record(message, gateway, deadline, metrics, log)));
+        }
+        List<CounterOutbox.Entry> entries = new ArrayList<>();
+        Set<String> failed = new LinkedHashSet<>();
+        List<String> dropped = new ArrayList<>();
+        inFlight.forEach((message, recorded) -> {
+            try {
+                entries.addAll(DynamoGateway.await(recorded));
+            } catch (RuntimeException e) {
+                MessageFailure failure = e instanceof MessageFailure messageFailure ? messageFailure
+                        : new MessageFailure(e.getMessage(), null, true, List.of(), e);
+                entries.addAll(failure.committed);
+                Log messageLog = failure.user == null ? log : log.forUser(failure.user);
+                if (failure.redeliver) {
+                    messageLog.warn(() -> "Failed to record message " + message.getMessageId(), failure);
+                    failed.add(message.getMessageId());
+                } else {
+                    messageLog.warn(() -> "Dropped message " + message.getMessageId()
+                            + ", it can never be recorded", failure);
+                    dropped.add(message.getMessageId());
+                }
+            }
+        });
+        // the entries left stay in the outbox, and redelivering their messages drains them
+        for (String messageId : CounterOutbox.drain(deadline.bound(gateway), entries, deadline, log)) {
+            if (dropped.contains(messageId)) {
+                log.error(() -> "Counter outbox entries of dropped message " + messageId + " were not applied", null);
+            } else {
+                failed.add(messageId);
+            }
+        }
+        List<SQSBatchResponse.BatchItemFailure> failures = failed.stream()
+                .map(SQSBatchResponse.BatchItemFailure::new).toList();
+        capacity.report(metrics, log);
+        metrics.count("Messages", event.getRecords().size());
+        metrics.count("FailedMessages", failures.size());
+        metrics.count("DroppedMessages", dropped.size());
+        metrics.flush(failures.isEmpty() ? "OK" : "PartialFailure");
+        return new SQSBatchResponse(failures);
+    }
+
+    /**
+     * Records one message and returns the outbox entries to drain for it:
+     * those of what it committed and, on a redelivery, those its earlier
+     * deliveries left. Throws a MessageFailure when it was not fully recorded.
+     */
+    private List<CounterOutbox.Entry> record(SQSEvent.SQSMessage message, DynamoGateway gateway, Deadline deadline,
+                                             Metrics metrics, Log log) {
+        AddBoycottForm input;
+        try {
+            long parsing = System.nanoTime();
+            input = objectMapper.readValue(message.getBody(), AddBoycottForm.class);
+            metrics.time("ParseTime", parsing);
+        } catch (Exception e) {
+            throw new MessageFailure("unreadable message: " + e.getMessage(), null, false, List.of(), e);
+        }
+        String userId = input.getUser_id();
+        if (userId == null || userId.isBlank() || input.getCompany_id() == null) {
+            throw new MessageFailure("user_id and company_id are required", userId, false, List.of(), null);
+        }
+        DynamoGateway bounded = deadline.bound(gateway);
+        List<CounterOutbox.Entry> entries = new ArrayList<>();
+        BoycottRecorder recorder = new BoycottRecorder(bounded, counters, countersFromStream)
+                .withDeadline(deadline)
+                .withMetrics(metrics)
+                .withLog(log.forUser(userId));
+        if (!countersFromStream) {
+            recorder.withCounterOutbox(new CounterOutbox(message.getMessageId()));
+        }
+        BoycottRecorder.Outcome outcome;
+        try {
+            // read before recording, so this delivery's own entries are not read back
+            if (!countersFromStream && redelivered(message)) {
+                entries.addAll(CounterOutbox.pending(bounded, message.getMessageId()));
+            }
+            outcome = recorder.record(userId, List.of(input));
+        } catch (RuntimeException e) {
+            throw new MessageFailure(e.getMessage(), userId, true, entries, e);
+        }
+        entries.addAll(outcome.getOutboxEntries());
+        BoycottRecorder.CompanyResult company = outcome.getCompanies().get(0);
+        if (BoycottRecorder.INVALID_COMPANY.equals(company.getStatus())) {
+            throw new MessageFailure("not a valid company!", userId, false, entries, null);
+        }
+        if (!outcome.getErrors().isEmpty() || outcome.hasUnprocessed()) {
+            // drain what did commit; the redelivery will see those rows as duplicates
+            throw new MessageFailure(outcome.hasUnprocessed() ? "ran out of time"
+                    : String.join("; ", outcome.getErrors()), userId, true, entries, null);
+        }
+        return entries;
+    }
+
+    /**
+     * Whether SQS delivered the message before, so an earlier delivery may
+     * have left outbox entries.
+     */
+    private static boolean redelivered(SQSEvent.SQSMessage message) {
+        Map<String, String> attributes = message.getAttributes();
+        String receiveCount = attributes == null ? null : attributes.get("ApproximateReceiveCount");
+        return receiveCount != null && !"1".equals(receiveCount.trim());
+    }
+
+    /**
+     * Why a message was not fully recorded, for whom, and whether a
+     * redelivery could do better. committed holds the outbox entries to drain
+     * for it all the same.
+     */
+    private static final class MessageFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final String user;
+        private final boolean redeliver;
+        // only read in the invocation that threw it
+        private final transient List<CounterOutbox.Entry> committed;
+
+        private MessageFailure(String message, String user, boolean redeliver, List<CounterOutbox.Entry> committed,
+                               Throwable cause) {
+            super(message, cause);
+            this.user = user;
+            this.redeliver = redeliver;
+            this.committed = committed;
+        }
+    }
+}
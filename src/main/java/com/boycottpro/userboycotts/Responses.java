@@ -0,0 +1,115 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The handlers' JSON responses. Bodies that never change are serialized once
+ * and every response shares one immutable header map; the bodies that do
+ * vary are written field by field with a streaming generator, so no Map is
+ * built only to be taken apart again by the ObjectMapper.
+ *
+ * Each call returns a new event: callers, IdempotencyStore among them, may
+ * set headers on what they get back.
+ */
+final class Responses {
+
+    static final Map<String, String> JSON_HEADERS = Map.of("Content-Type", "application/json");
+
+    static final Fixed WARM = new Fixed(200, "warm");
+    static final Fixed UNAUTHORIZED = new Fixed(401, "Unauthorized");
+    static final Fixed ALL_RECORDED = new Fixed(200, "All boycotts recorded successfully.");
+    static final Fixed NO_NEW_BOYCOTTS = new Fixed(409, "No new boycotts were recorded. Possible duplicates.");
+
+    private Responses() {
+    }
+
+    /**
+     * A constant {"message": ...} response, serialized when the class loads.
+     */
+    static final class Fixed {
+        private final int status;
+        private final String message;
+        private final String body;
+
+        private Fixed(int status, String message) {
+            this.status = status;
+            this.message = message;
+            this.body = object(generator -> generator.writeStringField("message", message));
+        }
+
+        String message() {
+            return message;
+        }
+
+        APIGatewayProxyResponseEvent event() {
+            return json(status, body);
+        }
+    }
+
+    interface Fields {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    static APIGatewayProxyResponseEvent json(int status, String body) {
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(status)
+                .withHeaders(JSON_HEADERS)
+                .withBody(body);
+    }
+
+    static APIGatewayProxyResponseEvent message(int status, String message) {
+        return json(status, object(generator -> generator.writeStringField("message", message)));
+    }
+
+    /**
+     * The 5xx shape: {"error": ...}.
+     */
+    static APIGatewayProxyResponseEvent error(int status, String error) {
+        return json(status, object(generator -> generator.writeStringField("error", error)));
+    }
+
+    /**
+     * 207 for a submission where some boycotts were recorded, with the
+     * failures as a list rather than folded into the message.
+     */
+    static APIGatewayProxyResponseEvent someRecorded(Collection<String> errors) {
+        return json(207, object(generator -> {
+            generator.writeStringField("message", "Some boycotts recorded.");
+            strings(generator, "errors", errors);
+        }));
+    }
+
+    static APIGatewayProxyResponseEvent json(int status, Fields fields) {
+        return json(status, object(fields));
+    }
+
+    static void strings(JsonGenerator generator, String field, Collection<String> values) throws IOException {
+        generator.writeArrayFieldStart(field);
+        for (String value : values) {
+            generator.writeString(value);
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * A JSON object holding the given fields.
+     */
+    static String object(Fields fields) {
+        StringWriter writer = new StringWriter(128);
+        try (JsonGenerator generator = BoycottFormReader.JSON.createGenerator(writer)) {
+            generator.writeStartObject();
+            fields.write(generator);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+}
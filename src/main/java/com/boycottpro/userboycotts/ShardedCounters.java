@@ -0,0 +1,216 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Write sharding for the boycott_count and follower_count counters. A hot
+ * counter's increments are redirected from the base item to one of N items in
+ * counter_shards, keyed "<table>#<key values>#<attribute>#<shard>" so every
+ * shard sits on its own partition. The true value of a counter is the base
+ * attribute plus every shard; see read.
+ *
+ * COUNTER_MODE chooses when to shard: "single" (default) never, "adaptive"
+ * once a counter was cancelled with TransactionConflict or throttling, for
+ * COUNTER_HOT_TTL_SECONDS (900), and "sharded" always. COUNTER_SHARDS (10)
+ * sets N and COUNTER_SHARD_SELECTION picks the shard: "random" (default) or
+ * "hash" of the user id. A sharded cause_company_stats increment does not
+ * seed company_name and cause_desc, so "sharded" expects those rows to exist.
+ */
+public class ShardedCounters {
+
+    static final String SHARD_TABLE = "counter_shards";
+    static final String SHARD_KEY = "counter_id";
+    static final String SHARD_VALUE = "counter_value";
+    private static final Map<String, String> COUNTER_ATTRIBUTES = Map.of(
+            "companies", "boycott_count",
+            "causes", "follower_count",
+            "cause_company_stats", "boycott_count"
+    );
+    private static final Set<String> CONTENTION_CODES = Set.of(
+            "TransactionConflict", "ThrottlingError", "ProvisionedThroughputExceeded");
+
+    static final ShardedCounters SHARED = fromEnvironment();
+
+    enum Mode { SINGLE, ADAPTIVE, SHARDED }
+
+    private final Mode mode;
+    private final int shards;
+    private final boolean hashSelection;
+    private final long hotTtlMillis;
+    private final LongSupplier clock;
+    private final Map<String, Long> hotUntil = new ConcurrentHashMap<>();
+
+    ShardedCounters(Mode mode, int shards, boolean hashSelection, long hotTtlMillis, LongSupplier clock) {
+        this.mode = mode;
+        this.shards = Math.max(1, shards);
+        this.hashSelection = hashSelection;
+        this.hotTtlMillis = hotTtlMillis;
+        this.clock = clock;
+    }
+
+    static ShardedCounters single() {
+        return new ShardedCounters(Mode.SINGLE, 1, false, 0, System::currentTimeMillis);
+    }
+
+    static ShardedCounters fromEnvironment() {
+        Mode mode;
+        try {
+            mode = Mode.valueOf(Env.string("COUNTER_MODE", "single").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            mode = Mode.SINGLE;
+        }
+        return new ShardedCounters(mode,
+                Env.integer("COUNTER_SHARDS", 10),
+                "hash".equalsIgnoreCase(Env.string("COUNTER_SHARD_SELECTION", "random")),
+                Env.integer("COUNTER_HOT_TTL_SECONDS", 900) * 1000L,
+                System::currentTimeMillis);
+    }
+
+    /**
+     * The counter an action increments, or null when it is not a counter update.
+     */
+    static String counterId(TransactWriteItem action) {
+        Update update = action.update();
+        if (update == null || !COUNTER_ATTRIBUTES.containsKey(update.tableName())) {
+            return null;
+        }
+        return counterId(update.tableName(), update.key());
+    }
+
+    static String counterAttribute(String table) {
+        return COUNTER_ATTRIBUTES.get(table);
+    }
+
+    static String counterId(String table, Map<String, AttributeValue> key) {
+        StringBuilder sb = new StringBuilder(table);
+        new TreeMap<>(key).values().forEach(value -> sb.append('#').append(value.s()));
+        return sb.append('#').append(COUNTER_ATTRIBUTES.get(table)).toString();
+    }
+
+    public boolean isHot(String counterId) {
+        return switch (mode) {
+            case SINGLE -> false;
+            case SHARDED -> true;
+            case ADAPTIVE -> {
+                Long until = hotUntil.get(counterId);
+                if (until != null && until <= clock.getAsLong()) {
+                    hotUntil.remove(counterId, until);
+                    until = null;
+                }
+                yield until != null;
+            }
+        };
+    }
+
+    /**
+     * Looks at why a transaction was cancelled and marks every counter whose
+     * action hit a conflict or throttling as hot. Returns true if any was.
+     * Marks that have expired are swept first, so the map only ever holds the
+     * counters that were contended within the last COUNTER_HOT_TTL_SECONDS.
+     */
+    public boolean recordContention(List<TransactWriteItem> sent, TransactionCanceledException e) {
+        if (mode != Mode.ADAPTIVE || !e.hasCancellationReasons()) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        hotUntil.values().removeIf(until -> until <= now);
+        boolean marked = false;
+        List<CancellationReason> reasons = e.cancellationReasons();
+        for (int i = 0; i < reasons.size() && i < sent.size(); i++) {
+            String counterId = counterId(sent.get(i));
+            if (counterId != null && CONTENTION_CODES.contains(reasons.get(i).code())) {
+                hotUntil.put(counterId, now + hotTtlMillis);
+                marked = true;
+            }
+        }
+        return marked;
+    }
+
+    int hotCounters() {
+        return hotUntil.size();
+    }
+
+    /**
+     * Rewrites the increments of hot counters into shard increments. Every
+     * other action, and the order, is left as it is so cancellation reasons
+     * still line up with what the caller built.
+     */
+    public List<TransactWriteItem> route(List<TransactWriteItem> actions, String shardSeed) {
+        if (mode == Mode.SINGLE) {
+            return actions;
+        }
+        List<TransactWriteItem> routed = new ArrayList<>(actions.size());
+        for (TransactWriteItem action : actions) {
+            String counterId = counterId(action);
+            routed.add(counterId != null && isHot(counterId)
+                    ? shardIncrement(counterId, action.update().expressionAttributeValues().get(":inc"), shardSeed)
+                    : action);
+        }
+        return routed;
+    }
+
+    private TransactWriteItem shardIncrement(String counterId, AttributeValue delta, String shardSeed) {
+        return TransactWriteItem.builder()
+                .update(Update.builder()
+                        .tableName(SHARD_TABLE)
+                        .key(Map.of(SHARD_KEY, AttributeValue.fromS(counterId + "#" + shardFor(counterId, shardSeed))))
+                        .updateExpression("SET " + SHARD_VALUE + " = if_not_exists(" + SHARD_VALUE + ", :zero) + :inc")
+                        .expressionAttributeValues(Map.of(
+                                ":zero", AttributeValue.fromN("0"),
+                                ":inc", delta
+                        ))
+                        .build())
+                .build();
+    }
+
+    int shardFor(String counterId, String shardSeed) {
+        if (!hashSelection || shardSeed == null) {
+            return ThreadLocalRandom.current().nextInt(shards);
+        }
+        byte[] bytes = (shardSeed + "#" + counterId).getBytes(StandardCharsets.UTF_8);
+        return Math.floorMod(Arrays.hashCode(bytes), shards);
+    }
+
+    /**
+     * Current value of a counter: the base item's attribute plus all of its
+     * shards. Reads every shard regardless of mode, since any container may
+     * have sharded the counter.
+     */
+    public long read(DynamoGateway dynamoDb, String table, Map<String, AttributeValue> key) {
+        String attribute = COUNTER_ATTRIBUTES.get(table);
+        String counterId = counterId(table, key);
+        List<Map<String, AttributeValue>> shardKeys = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            shardKeys.add(Map.of(SHARD_KEY, AttributeValue.fromS(counterId + "#" + shard)));
+        }
+        Map<String, KeysAndAttributes> requestItems = new HashMap<>(Map.of(
+                table, KeysAndAttributes.builder().keys(List.of(key)).projectionExpression(attribute).build(),
+                SHARD_TABLE, KeysAndAttributes.builder().keys(shardKeys).projectionExpression(SHARD_VALUE).build()));
+        long total = 0;
+        for (int attempt = 0; !requestItems.isEmpty(); attempt++) {
+            if (attempt > PreReadSnapshot.MAX_UNPROCESSED_RETRIES) {
+                throw new RuntimeException("unable to read counter " + counterId + ", unprocessed keys remain");
+            }
+            if (attempt > 0) {
+                DynamoGateway.await(dynamoDb.delay(PreReadSnapshot.BASE_BACKOFF_MILLIS << (attempt - 1)));
+            }
+            BatchGetItemResponse response = DynamoGateway.await(dynamoDb.batchGetItem(
+                    BatchGetItemRequest.builder().requestItems(requestItems).build()));
+            for (Map.Entry<String, List<Map<String, AttributeValue>>> entry : response.responses().entrySet()) {
+                String valueAttribute = SHARD_TABLE.equals(entry.getKey()) ? SHARD_VALUE : attribute;
+                for (Map<String, AttributeValue> item : entry.getValue()) {
+                    AttributeValue value = item.get(valueAttribute);
+                    total += value == null ? 0 : Long.parseLong(value.n());
+                }
+            }
+            requestItems = new HashMap<>(response.unprocessedKeys());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,257 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import com.boycottpro.utilities.JwtUtility;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The same endpoint as AddUserBoycottsHandler, taking the raw proxy event
+ * instead of letting the runtime bind it. The envelope is read in one
+ * streaming pass that keeps only resource, headers, the authorizer claims and
+ * the body, and the body is decoded by BoycottFormReader instead of the
+ * ObjectMapper, so no reflection runs per request.
+ *
+ * Requests over STREAM_MAX_REQUEST_BYTES (262144) are answered with 413 as
+ * soon as the limit is crossed, and a malformed envelope or body with 400,
+ * before anything is read from DynamoDB. Everything after that is the
+ * delegate's: idempotency, the deadline and the responses are the same.
+ */
+public class StreamingAddUserBoycottsHandler implements RequestStreamHandler {
+
+    static final int MAX_REQUEST_BYTES = Env.integer("STREAM_MAX_REQUEST_BYTES", 262144);
+
+    private final AddUserBoycottsHandler delegate;
+    private Consumer<String> logSink = Log.STDOUT;
+    private Consumer<String> metricsSink = Metrics.STDOUT;
+
+    public StreamingAddUserBoycottsHandler() {
+        this.delegate = new AddUserBoycottsHandler();
+    }
+
+    public StreamingAddUserBoycottsHandler(DynamoDbClient dynamoDb) {
+        this.delegate = new AddUserBoycottsHandler(dynamoDb);
+    }
+
+    StreamingAddUserBoycottsHandler(AddUserBoycottsHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    StreamingAddUserBoycottsHandler withLogSink(Consumer<String> logSink) {
+        this.logSink = logSink;
+        delegate.withLogSink(logSink);
+        return this;
+    }
+
+    StreamingAddUserBoycottsHandler withMetricsSink(Consumer<String> metricsSink) {
+        this.metricsSink = metricsSink;
+        delegate.withMetricsSink(metricsSink);
+        return this;
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        write(output, handle(input, context, Log.begin(context, logSink)));
+    }
+
+    private APIGatewayProxyResponseEvent handle(InputStream input, Context context, Log log) {
+        Metrics metrics = new Metrics(AddUserBoycottsHandler.OPERATION, context, metricsSink);
+        // ParseTime covers the envelope too, which the runtime binds for the other handler
+        long parsing = System.nanoTime();
+        APIGatewayProxyRequestEvent event;
+        try {
+            event = readEnvelope(new LimitedInputStream(input, MAX_REQUEST_BYTES));
+        } catch (RequestTooLargeException e) {
+            log.error(81, null, e.getMessage());
+            return metrics.flush(Responses.message(413, "Request is larger than " + MAX_REQUEST_BYTES + " bytes."));
+        } catch (IOException | IllegalArgumentException e) {
+            log.error(84, null, () -> "Malformed request: " + e.getMessage());
+            return metrics.flush(Responses.message(400, "Malformed request."));
+        }
+        if (Priming.isWarmup(event)) {
+            return delegate.handleRequest(event, context);
+        }
+        String sub = JwtUtility.getSubFromRestEvent(event);
+        if (sub == null) {
+            log.error(92, sub, "user is Unauthorized");
+            return metrics.flush(Responses.UNAUTHORIZED.event());
+        }
+        AddBoycottForm form;
+        try {
+            form = BoycottFormReader.read(event.getBody());
+        } catch (IOException e) {
+            log.error(99, sub, () -> "Malformed body: " + e.getMessage());
+            return metrics.flush(Responses.message(400, "Malformed request body."));
+        }
+        metrics.time("ParseTime", parsing);
+        return metrics.flush(delegate.handle(event, context, body -> form, metrics, log));
+    }
+
+    /**
+     * Reads the proxy event, skipping every field the handler does not use.
+     */
+    static APIGatewayProxyRequestEvent readEnvelope(InputStream input) throws IOException {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        boolean base64 = false;
+        try (JsonParser parser = BoycottFormReader.JSON.createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new BoycottFormReader.MalformedRequestException("the event is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "resource" -> event.setResource(text(parser));
+                    case "body" -> event.setBody(text(parser));
+                    case "isBase64Encoded" -> base64 = value == JsonToken.VALUE_TRUE;
+                    case "headers" -> event.setHeaders(strings(parser));
+                    case "requestContext" -> event.setRequestContext(requestContext(parser));
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        if (base64 && event.getBody() != null) {
+            event.setBody(new String(Base64.getDecoder().decode(event.getBody()), StandardCharsets.UTF_8));
+        }
+        return event;
+    }
+
+    private static APIGatewayProxyRequestEvent.ProxyRequestContext requestContext(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        APIGatewayProxyRequestEvent.ProxyRequestContext requestContext = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("authorizer".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                Map<String, Object> authorizer = new HashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    parser.nextToken();
+                    if ("claims".equals(name)) {
+                        authorizer.put("claims", strings(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                requestContext.setAuthorizer(authorizer);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return requestContext;
+    }
+
+    /**
+     * A flat object of scalar values; nested values are skipped.
+     */
+    private static Map<String, String> strings(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                values.put(name, parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return values;
+    }
+
+    private static String text(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            throw new BoycottFormReader.MalformedRequestException("expected a string at " + parser.currentLocation());
+        }
+        return parser.getText();
+    }
+
+    static void write(OutputStream output, APIGatewayProxyResponseEvent response) throws IOException {
+        try (JsonGenerator generator = BoycottFormReader.JSON.createGenerator(output)) {
+            generator.writeStartObject();
+            generator.writeNumberField("statusCode", response.getStatusCode());
+            generator.writeObjectFieldStart("headers");
+            if (response.getHeaders() != null) {
+                for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                    generator.writeStringField(header.getKey(), header.getValue());
+                }
+            }
+            generator.writeEndObject();
+            generator.writeStringField("body", response.getBody());
+            generator.writeBooleanField("isBase64Encoded", false);
+            generator.writeEndObject();
+        }
+    }
+
+    static final class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Fails the read as soon as more than the limit has come through.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long read;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws RequestTooLargeException {
+            read += n;
+            if (read > limit) {
+                throw new RequestTooLargeException("request exceeds " + limit + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Gateway over the blocking client. Each call runs on the caller's thread and
+ * returns an already completed future.
+ */
+public class SyncDynamoGateway implements DynamoGateway {
+
+    private final DynamoDbClient dynamoDb;
+
+    public SyncDynamoGateway(DynamoDbClient dynamoDb) {
+        this.dynamoDb = dynamoDb;
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return offload(() -> dynamoDb.getItem(request));
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        return offload(() -> dynamoDb.query(request));
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return offload(() -> dynamoDb.batchGetItem(request));
+    }
+
+    @Override
+    public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+        return offload(() -> dynamoDb.transactWriteItems(request));
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return offload(() -> dynamoDb.updateItem(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return offload(() -> dynamoDb.deleteItem(request));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> offload(Supplier<T> work) {
+        try {
+            return CompletableFuture.completedFuture(work.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis) {
+        try {
+            Thread.sleep(millis);
+            return CompletableFuture.completedFuture(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(new RuntimeException(e));
+        }
+    }
+}
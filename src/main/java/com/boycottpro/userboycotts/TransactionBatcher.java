@@ -0,0 +1,477 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Packs the write units of a submission into as few TransactWriteItems calls
+ * as DynamoDB allows. A unit is the group of actions for one reason and is
+ * never split across transactions. Units rejected by their condition check are
+ * reported as duplicates and the rest of the transaction is resent; any other
+ * failure makes the units retry one at a time so the caller can still report
+ * per-reason results.
+ *
+ * A single unit that was throttled or lost a transaction conflict is retried
+ * after a jittered backoff, up to TRANSACTION_MAX_RETRIES (2) times and only
+ * while the deadline leaves room. Once the deadline is nearly used up no new
+ * transaction is started and the units left are reported as unprocessed.
+ * A transaction cut off by the deadline may still have committed, so its
+ * units are reported as unprocessed too rather than resent one by one.
+ *
+ * With a CounterOutbox, the counter updates of each transaction are replaced
+ * by one outbox entry holding them, written in the same transaction.
+ */
+public class TransactionBatcher {
+
+    static final int MAX_ACTIONS_PER_TRANSACTION = 100;
+    static final long MAX_TRANSACTION_BYTES = 4L * 1024 * 1024;
+    static final int MAX_RETRIES = Env.integer("TRANSACTION_MAX_RETRIES", 2);
+    static final long RETRY_BASE_MILLIS = Env.integer("TRANSACTION_RETRY_BASE_MS", 50);
+    private static final Set<String> RETRYABLE_CODES = Set.of(
+            "TransactionConflict", "ThrottlingError", "ProvisionedThroughputExceeded", "RequestLimitExceeded");
+
+    private final DynamoGateway dynamoDb;
+    private final ShardedCounters counters;
+    private final String shardSeed;
+    private final Deadline deadline;
+    private CounterOutbox outbox;
+    private Log log = Log.NO_REQUEST;
+
+    public TransactionBatcher(DynamoGateway dynamoDb) {
+        this(dynamoDb, ShardedCounters.single(), null);
+    }
+
+    public TransactionBatcher(DynamoGateway dynamoDb, ShardedCounters counters, String shardSeed) {
+        this(dynamoDb, counters, shardSeed, Deadline.NONE);
+    }
+
+    /**
+     * Counter increments are routed through counters on every send, so a
+     * counter that turns hot mid-request is sharded on the next attempt.
+     */
+    public TransactionBatcher(DynamoGateway dynamoDb, ShardedCounters counters, String shardSeed, Deadline deadline) {
+        this.dynamoDb = dynamoDb;
+        this.counters = counters;
+        this.shardSeed = shardSeed;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Writes the counter increments to the outbox instead of the counters.
+     */
+    public TransactionBatcher withCounterOutbox(CounterOutbox outbox) {
+        this.outbox = outbox;
+        return this;
+    }
+
+    /**
+     * The invocation's log, for the retries and resends at DEBUG.
+     */
+    public TransactionBatcher withLog(Log log) {
+        this.log = log;
+        return this;
+    }
+
+    public static class WriteUnit {
+        private final List<String> groups;
+        private final String description;
+        private final List<TransactWriteItem> actions;
+        private final long estimatedBytes;
+
+        public WriteUnit(String description, List<TransactWriteItem> actions) {
+            this("", description, actions);
+        }
+
+        /**
+         * The group (a company) decides which riders travel with the unit.
+         */
+        public WriteUnit(String group, String description, List<TransactWriteItem> actions) {
+            this(List.of(group), description, actions);
+        }
+
+        /**
+         * A unit in several groups (its company and the cause it has the user
+         * follow) can carry the riders of any of them.
+         */
+        public WriteUnit(List<String> groups, String description, List<TransactWriteItem> actions) {
+            this.groups = List.copyOf(groups);
+            this.description = description;
+            this.actions = List.copyOf(actions);
+            this.estimatedBytes = estimateBytes(actions);
+        }
+
+        public List<String> getGroups() {
+            return groups;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public List<TransactWriteItem> getActions() {
+            return actions;
+        }
+    }
+
+    public static class Result {
+        private final List<WriteUnit> committed = Collections.synchronizedList(new ArrayList<>());
+        private final List<WriteUnit> duplicates = Collections.synchronizedList(new ArrayList<>());
+        private final Map<WriteUnit, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final List<WriteUnit> unprocessed = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> ridersCommitted = ConcurrentHashMap.newKeySet();
+        private final List<CounterOutbox.Entry> outboxEntries = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger retries = new AtomicInteger();
+
+        public List<WriteUnit> getCommitted() {
+            return committed;
+        }
+
+        public List<WriteUnit> getDuplicates() {
+            return duplicates;
+        }
+
+        public Map<WriteUnit, String> getFailures() {
+            return failures;
+        }
+
+        /**
+         * Units never sent because the deadline was nearly used up.
+         */
+        public List<WriteUnit> getUnprocessed() {
+            return unprocessed;
+        }
+
+        public List<String> getErrors() {
+            synchronized (failures) {
+                return new ArrayList<>(failures.values());
+            }
+        }
+
+        public boolean anySuccess() {
+            return !committed.isEmpty();
+        }
+
+        public boolean ridersCommitted() {
+            return !ridersCommitted.isEmpty();
+        }
+
+        public boolean ridersCommitted(String group) {
+            return ridersCommitted.contains(group);
+        }
+
+        /**
+         * The outbox entries written by the transactions that committed.
+         */
+        public List<CounterOutbox.Entry> getOutboxEntries() {
+            return outboxEntries;
+        }
+
+        /**
+         * Transactions resent after a backoff or with their counters sharded.
+         */
+        public int getRetries() {
+            return retries.get();
+        }
+    }
+
+    /**
+     * Commits every unit. Riders are actions that must go out with the first
+     * transaction that succeeds (for example the company boycott_count
+     * increment) and are dropped if nothing commits or if one of them fails
+     * its condition check.
+     */
+    public Result commit(List<WriteUnit> units, List<TransactWriteItem> riders) {
+        return commit(units, riders.isEmpty() ? Map.of() : Map.of("", riders));
+    }
+
+    /**
+     * Same, with riders kept per group: a group's riders go out with the first
+     * transaction that commits one of that group's units.
+     */
+    public Result commit(List<WriteUnit> units, Map<String, List<TransactWriteItem>> riders) {
+        Result result = new Result();
+        Map<String, List<TransactWriteItem>> pendingRiders = new HashMap<>();
+        riders.forEach((group, actions) -> {
+            if (!actions.isEmpty()) {
+                pendingRiders.put(group, actions);
+            }
+        });
+        List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+        for (List<WriteUnit> chunk : pack(units, riders)) {
+            if (chunk.stream().noneMatch(unit -> unit.groups.stream().anyMatch(pendingRiders::containsKey))) {
+                // no riders left to place for these units, so the chunk is independent of the others
+                inFlight.add(dynamoDb.offload(() -> {
+                    commitGroup(chunk, new HashMap<>(), result);
+                    return null;
+                }));
+            } else {
+                commitGroup(chunk, pendingRiders, result);
+            }
+        }
+        inFlight.forEach(DynamoGateway::await);
+        return result;
+    }
+
+    private void commitGroup(List<WriteUnit> group, Map<String, List<TransactWriteItem>> pendingRiders, Result result) {
+        List<WriteUnit> remaining = new ArrayList<>(group);
+        boolean rerouted = false;
+        int retries = 0;
+        while (!remaining.isEmpty()) {
+            if (deadline.nearlyUsedUp()) {
+                result.unprocessed.addAll(remaining);
+                return;
+            }
+            List<String> riderGroups = riderGroups(remaining, pendingRiders);
+            List<TransactWriteItem> actions = new ArrayList<>();
+            List<Object> owners = new ArrayList<>();
+            riderGroups.forEach(riderGroup -> pendingRiders.get(riderGroup).forEach(rider -> {
+                actions.add(rider);
+                owners.add(riderGroup);
+            }));
+            remaining.forEach(unit -> unit.actions.forEach(action -> {
+                actions.add(action);
+                owners.add(unit);
+            }));
+            CounterOutbox.Entry entry = outbox == null ? null : outbox.divert(actions, owners);
+            List<TransactWriteItem> sent = counters.route(actions, shardSeed);
+            try {
+                DynamoGateway.await(dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
+                        .transactItems(sent).build()));
+                result.committed.addAll(remaining);
+                if (entry != null) {
+                    result.outboxEntries.add(entry);
+                }
+                for (String riderGroup : riderGroups) {
+                    pendingRiders.remove(riderGroup);
+                    result.ridersCommitted.add(riderGroup);
+                }
+                return;
+            } catch (TransactionCanceledException e) {
+                Conflicts conflicts = conditionFailures(owners, e);
+                if (conflicts == null) {
+                    if (counters.recordContention(sent, e) && !rerouted) {
+                        // a counter was too hot for its single item: resend once with it sharded
+                        log.debug(() -> "Resending with sharded counters after " + e.getMessage());
+                        rerouted = true;
+                        result.retries.incrementAndGet();
+                        continue;
+                    }
+                    if (remaining.size() == 1 && retryable(e) && backOff(retries)) {
+                        retries++;
+                        result.retries.incrementAndGet();
+                        continue;
+                    }
+                    if (deadline.nearlyUsedUp()) {
+                        result.unprocessed.addAll(remaining);
+                        return;
+                    }
+                    isolate(remaining, pendingRiders, result, e);
+                    return;
+                }
+                // the conditional Puts found existing rows: drop those units and resend the rest
+                result.duplicates.addAll(conflicts.units);
+                remaining.removeAll(conflicts.units);
+                // another request already wrote those riders' marker, so they must not go out at all
+                conflicts.riderGroups.forEach(pendingRiders::remove);
+            } catch (RuntimeException e) {
+                if (e instanceof ApiCallTimeoutException || deadline.nearlyUsedUp()) {
+                    // the outcome is unknown: resending would report rows that did commit as duplicates
+                    result.unprocessed.addAll(remaining);
+                    return;
+                }
+                if (remaining.size() == 1 && retryable(e) && backOff(retries)) {
+                    retries++;
+                    result.retries.incrementAndGet();
+                    continue;
+                }
+                isolate(remaining, pendingRiders, result, e);
+                return;
+            }
+        }
+    }
+
+    private static boolean retryable(RuntimeException e) {
+        if (e instanceof TransactionCanceledException canceled) {
+            return canceled.hasCancellationReasons() && canceled.cancellationReasons().stream()
+                    .anyMatch(reason -> RETRYABLE_CODES.contains(reason.code()));
+        }
+        return e instanceof ProvisionedThroughputExceededException || e instanceof RequestLimitExceededException
+                || (e instanceof DynamoDbException dynamoDbException && dynamoDbException.isThrottlingException());
+    }
+
+    /**
+     * Waits a full-jitter backoff before retry number retries + 1, or returns
+     * false when the retries are used up or the wait would eat into the
+     * deadline's reserve.
+     */
+    private boolean backOff(int retries) {
+        if (retries >= MAX_RETRIES) {
+            return false;
+        }
+        long backoff = ThreadLocalRandom.current().nextLong((RETRY_BASE_MILLIS << retries) + 1);
+        if (!deadline.hasRoom(backoff)) {
+            return false;
+        }
+        log.debug(() -> "Retry " + (retries + 1) + " in " + backoff + " ms");
+        DynamoGateway.await(dynamoDb.delay(backoff));
+        return true;
+    }
+
+    private void isolate(List<WriteUnit> group, Map<String, List<TransactWriteItem>> pendingRiders, Result result,
+                         RuntimeException failure) {
+        if (group.size() == 1) {
+            WriteUnit unit = group.get(0);
+            result.failures.put(unit, "Failed to record boycott for " + unit.description + " -> " + failure.getMessage());
+            return;
+        }
+        log.debug(() -> "Sending " + group.size() + " units one by one after " + failure.getMessage());
+        for (WriteUnit unit : group) {
+            commitGroup(List.of(unit), pendingRiders, result);
+        }
+    }
+
+    private static class Conflicts {
+        private final List<WriteUnit> units = new ArrayList<>();
+        private final Set<String> riderGroups = new HashSet<>();
+    }
+
+    /**
+     * Maps the cancellation reasons back onto the riders and units that were
+     * sent, owners holding the rider group or unit of every action sent.
+     * Returns what failed its condition check when that is the only thing
+     * that went wrong, or null when anything else (throttling, conflicts,
+     * validation, an outbox entry) cancelled the transaction.
+     */
+    private static Conflicts conditionFailures(List<Object> owners, TransactionCanceledException e) {
+        if (!e.hasCancellationReasons()) {
+            return null;
+        }
+        List<CancellationReason> reasons = e.cancellationReasons();
+        Conflicts conflicts = new Conflicts();
+        for (int i = 0; i < reasons.size(); i++) {
+            String code = reasons.get(i).code();
+            if (code == null || "None".equals(code)) {
+                continue;
+            }
+            if (!"ConditionalCheckFailed".equals(code) || i >= owners.size()) {
+                return null;
+            }
+            Object owner = owners.get(i);
+            if (owner instanceof WriteUnit unit) {
+                if (!conflicts.units.contains(unit)) {
+                    conflicts.units.add(unit);
+                }
+            } else if (owner instanceof String riderGroup) {
+                conflicts.riderGroups.add(riderGroup);
+            } else {
+                return null;
+            }
+        }
+        return conflicts.units.isEmpty() && conflicts.riderGroups.isEmpty() ? null : conflicts;
+    }
+
+    private static List<String> riderGroups(List<WriteUnit> units, Map<String, List<TransactWriteItem>> pendingRiders) {
+        List<String> groups = new ArrayList<>();
+        for (WriteUnit unit : units) {
+            for (String group : unit.groups) {
+                if (pendingRiders.containsKey(group) && !groups.contains(group)) {
+                    groups.add(group);
+                }
+            }
+        }
+        return groups;
+    }
+
+    static List<List<WriteUnit>> pack(List<WriteUnit> units, List<TransactWriteItem> riders) {
+        return pack(units, Map.of("", riders));
+    }
+
+    /**
+     * First-fit packing in submission order. Room for a group's riders is
+     * reserved in every chunk holding one of its units, since it is not known
+     * up front which one will carry them.
+     */
+    static List<List<WriteUnit>> pack(List<WriteUnit> units, Map<String, List<TransactWriteItem>> riders) {
+        List<List<WriteUnit>> chunks = new ArrayList<>();
+        List<WriteUnit> current = new ArrayList<>();
+        Set<String> groups = new HashSet<>();
+        int actions = 0;
+        long bytes = 0;
+        for (WriteUnit unit : units) {
+            List<TransactWriteItem> unitRiders = newRiders(unit, riders, groups);
+            if (!current.isEmpty() && (actions + unit.actions.size() + unitRiders.size() > MAX_ACTIONS_PER_TRANSACTION
+                    || bytes + unit.estimatedBytes + estimateBytes(unitRiders) > MAX_TRANSACTION_BYTES)) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                groups.clear();
+                unitRiders = newRiders(unit, riders, groups);
+                actions = 0;
+                bytes = 0;
+            }
+            current.add(unit);
+            groups.addAll(unit.groups);
+            actions += unit.actions.size() + unitRiders.size();
+            bytes += unit.estimatedBytes + estimateBytes(unitRiders);
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private static List<TransactWriteItem> newRiders(WriteUnit unit, Map<String, List<TransactWriteItem>> riders,
+                                                     Set<String> groups) {
+        List<TransactWriteItem> added = new ArrayList<>();
+        for (String group : unit.groups) {
+            if (!groups.contains(group)) {
+                added.addAll(riders.getOrDefault(group, List.of()));
+            }
+        }
+        return added;
+    }
+
+    static long estimateBytes(List<TransactWriteItem> actions) {
+        long total = 0;
+        for (TransactWriteItem action : actions) {
+            if (action.put() != null) {
+                total += utf8(action.put().tableName()) + attributesBytes(action.put().item())
+                        + utf8(action.put().conditionExpression())
+                        + attributesBytes(action.put().expressionAttributeValues());
+            }
+            if (action.update() != null) {
+                total += utf8(action.update().tableName()) + attributesBytes(action.update().key())
+                        + utf8(action.update().updateExpression())
+                        + utf8(action.update().conditionExpression())
+                        + attributesBytes(action.update().expressionAttributeValues());
+            }
+            if (action.delete() != null) {
+                total += utf8(action.delete().tableName()) + attributesBytes(action.delete().key());
+            }
+            if (action.conditionCheck() != null) {
+                total += utf8(action.conditionCheck().tableName()) + attributesBytes(action.conditionCheck().key())
+                        + utf8(action.conditionCheck().conditionExpression());
+            }
+        }
+        return total;
+    }
+
+    private static long attributesBytes(Map<String, AttributeValue> attributes) {
+        long total = 0;
+        for (Map.Entry<String, AttributeValue> entry : attributes.entrySet()) {
+            AttributeValue value = entry.getValue();
+            total += utf8(entry.getKey()) + (value.s() != null ? utf8(value.s()) : utf8(value.n()) + 1);
+        }
+        return total;
+    }
+
+    private static long utf8(String value) {
+        return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,139 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Request-scoped view of a user's user_boycotts rows. The rows for a company
+ * are read once, on first use, with a key-range query over "<company_id>#"
+ * and every later check for that company is answered from memory. A request
+ * about many companies can instead read the whole partition once; see
+ * loadAllAsync.
+ *
+ * Personal reasons written before the normalized key existed were keyed
+ * "<reason>#<company_id>", outside the company's range;
+ * LegacyPersonalReasonMigration moves them into it, so no check here reads
+ * beyond the range.
+ *
+ * A read that fails, including a Query page the CapacityBudget refused,
+ * fails every check waiting on it. Answering "no rows" instead would let the
+ * conditional Puts catch duplicate rows, but not the company and cause
+ * counters a user's first boycott increments.
+ */
+public class UserBoycottsView {
+
+    private final DynamoGateway dynamoDb;
+    private final String userId;
+    private final Map<String, CompletableFuture<Set<String>>> sortKeysByCompany = new ConcurrentHashMap<>();
+
+    public UserBoycottsView(DynamoGateway dynamoDb, String userId) {
+        this.dynamoDb = dynamoDb;
+        this.userId = userId;
+    }
+
+    public boolean hasAnyBoycott(String companyId) {
+        return !rowsFor(companyId).isEmpty();
+    }
+
+    public boolean hasCauseBoycott(String companyId, String causeId) {
+        return rowsFor(companyId).contains(companyId + "#" + causeId);
+    }
+
+    public boolean hasPersonalReason(String companyId, String personalReason) {
+        return rowsFor(companyId).contains(personalReasonKey(companyId, personalReason));
+    }
+
+    /**
+     * Starts the read for a company without waiting for it; the checks above
+     * then wait on the same read instead of issuing another.
+     */
+    public CompletableFuture<Boolean> hasAnyBoycottAsync(String companyId) {
+        return load(companyId).thenApply(rows -> !rows.isEmpty());
+    }
+
+    /**
+     * Reads the user's entire partition with one paginated query and answers
+     * every given company from it, instead of one query
+     * per company.
+     */
+    public CompletableFuture<Void> loadAllAsync(Collection<String> companyIds) {
+        Map<String, AttributeValue> values = Map.of(":uid", AttributeValue.fromS(userId));
+        List<Map<String, AttributeValue>> items = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<List<Map<String, AttributeValue>>> all = page(QueryRequest.builder()
+                .tableName("user_boycotts")
+                .keyConditionExpression("user_id = :uid")
+                .expressionAttributeValues(values)
+                .projectionExpression("company_cause_id")
+                .build(), null, items);
+        for (String companyId : companyIds) {
+            sortKeysByCompany.putIfAbsent(companyId, all.thenApply(rows -> rows.stream()
+                    .map(row -> row.get("company_cause_id").s())
+                    .filter(sortKey -> sortKey.startsWith(companyId + "#"))
+                    .collect(Collectors.toSet())));
+        }
+        return all.thenAccept(rows -> { });
+    }
+
+    private Set<String> rowsFor(String companyId) {
+        return DynamoGateway.await(load(companyId));
+    }
+
+    private CompletableFuture<Set<String>> load(String companyId) {
+        return sortKeysByCompany.computeIfAbsent(companyId, id -> {
+            Map<String, AttributeValue> values = Map.of(
+                    ":uid", AttributeValue.fromS(userId),
+                    ":prefix", AttributeValue.fromS(id + "#"));
+            List<Map<String, AttributeValue>> items = Collections.synchronizedList(new ArrayList<>());
+            return page(QueryRequest.builder()
+                    .tableName("user_boycotts")
+                    .keyConditionExpression("user_id = :uid AND begins_with(company_cause_id, :prefix)")
+                    .expressionAttributeValues(values)
+                    .projectionExpression("company_cause_id")
+                    .build(), null, items)
+                    .thenApply(rows -> rows.stream()
+                            .map(row -> row.get("company_cause_id").s())
+                            .collect(Collectors.toSet()));
+        });
+    }
+
+    /**
+     * Every page of the query, from startKey on, added to items.
+     */
+    private CompletableFuture<List<Map<String, AttributeValue>>> page(QueryRequest request,
+                                                                      Map<String, AttributeValue> startKey,
+                                                                      List<Map<String, AttributeValue>> items) {
+        return dynamoDb.query(request.toBuilder().exclusiveStartKey(startKey).build())
+                .thenCompose(response -> {
+                    items.addAll(response.items());
+                    boolean more = response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty();
+                    return more ? page(request, response.lastEvaluatedKey(), items)
+                            : CompletableFuture.completedFuture(items);
+                });
+    }
+
+    /**
+     * Sort key for a personal-reason row: case and whitespace are folded before
+     * hashing so the same reason always lands on the same key, and the company
+     * prefix keeps it inside the range this view reads.
+     */
+    static String personalReasonKey(String companyId, String personalReason) {
+        String normalized = normalize(personalReason);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+            return companyId + "#personal#" + HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String normalize(String personalReason) {
+        return personalReason.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
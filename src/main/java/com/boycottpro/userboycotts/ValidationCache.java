@@ -0,0 +1,82 @@
+package com.boycottpro.userboycotts;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded, TTL-evicting record of (id, name/description) pairs that already
+ * passed validation. The instances are static so they survive across warm
+ * invocations of the same container; only successful validations are kept.
+ *
+ * Size and TTL come from VALIDATION_CACHE_MAX_ENTRIES (default 1000) and
+ * VALIDATION_CACHE_TTL_SECONDS (default 300). Lookups are counted in the
+ * invocation's metrics as &lt;name&gt;CacheHits and &lt;name&gt;CacheMisses.
+ */
+public class ValidationCache {
+
+    static final ValidationCache COMPANIES = fromEnvironment("Company");
+    static final ValidationCache CAUSES = fromEnvironment("Cause");
+
+    private final String name;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private record Entry(String value, long expiresAt) {
+    }
+
+    ValidationCache(String name, int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ValidationCache.this.maxEntries;
+            }
+        };
+    }
+
+    static ValidationCache fromEnvironment(String name) {
+        return new ValidationCache(name,
+                Env.integer("VALIDATION_CACHE_MAX_ENTRIES", 1000),
+                Env.integer("VALIDATION_CACHE_TTL_SECONDS", 300) * 1000L,
+                System::currentTimeMillis);
+    }
+
+    /**
+     * True when this exact pair was validated within the TTL. Anything else
+     * counts as a miss and the caller has to go to DynamoDB.
+     */
+    public boolean isValid(String id, String value, Metrics metrics) {
+        boolean hit = isValid(id, value);
+        metrics.count(name + (hit ? "CacheHits" : "CacheMisses"), 1);
+        return hit;
+    }
+
+    synchronized boolean isValid(String id, String value) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.expiresAt() <= clock.getAsLong()) {
+            entries.remove(id);
+            entry = null;
+        }
+        return entry != null && entry.value().equals(value);
+    }
+
+    public synchronized void remember(String id, String value) {
+        if (maxEntries > 0 && ttlMillis > 0) {
+            entries.put(id, new Entry(value, clock.getAsLong() + ttlMillis));
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
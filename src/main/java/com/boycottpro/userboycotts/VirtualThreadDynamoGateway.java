@@ -0,0 +1,97 @@
+package com.boycottpro.userboycotts;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Gateway over the blocking client where every call runs on its own virtual
+ * thread, so independent calls overlap while the SDK code stays blocking.
+ * At most maxConcurrency calls are in flight per gateway; the rest wait on a
+ * virtual thread, not on the caller.
+ *
+ * Only the client calls take a permit. Work handed to offload runs on a
+ * virtual thread of its own without one: it typically issues calls through
+ * this gateway and waits for them, and holding a permit meanwhile would
+ * leave maxConcurrency such tasks waiting on each other.
+ */
+public class VirtualThreadDynamoGateway implements DynamoGateway {
+
+    private static final ExecutorService VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final DynamoDbClient dynamoDb;
+    private final Semaphore permits;
+
+    public VirtualThreadDynamoGateway(DynamoDbClient dynamoDb, int maxConcurrency) {
+        this.dynamoDb = dynamoDb;
+        this.permits = new Semaphore(Math.max(1, maxConcurrency));
+    }
+
+    @Override
+    public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+        return call(() -> dynamoDb.getItem(request));
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        return call(() -> dynamoDb.query(request));
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return call(() -> dynamoDb.batchGetItem(request));
+    }
+
+    @Override
+    public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+        return call(() -> dynamoDb.transactWriteItems(request));
+    }
+
+    @Override
+    public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+        return call(() -> dynamoDb.updateItem(request));
+    }
+
+    @Override
+    public CompletableFuture<DeleteItemResponse> deleteItem(DeleteItemRequest request) {
+        return call(() -> dynamoDb.deleteItem(request));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> offload(Supplier<T> work) {
+        return CompletableFuture.supplyAsync(work, VIRTUAL_THREADS);
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<T> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            try {
+                return work.get();
+            } finally {
+                permits.release();
+            }
+        }, VIRTUAL_THREADS);
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long millis) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }, VIRTUAL_THREADS);
+    }
+}
@@ -0,0 +1,22 @@
+package com.boycottpro.userboycotts.model;
+
+import java.util.List;
+
+public class BulkAddBoycottForm {
+    private List<AddBoycottForm> companies;
+
+    public List<AddBoycottForm> getCompanies() {
+        return companies;
+    }
+
+    public void setCompanies(List<AddBoycottForm> companies) {
+        this.companies = companies;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkAddBoycottForm{" +
+                "companies=" + companies +
+                '}';
+    }
+}
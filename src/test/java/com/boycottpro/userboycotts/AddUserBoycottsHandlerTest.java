@@ -3,18 +3,25 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import com.boycottpro.models.ResponseMessage;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
@@ -37,6 +44,31 @@ public class AddUserBoycottsHandlerTest {
     @BeforeEach
     public void setup() {
         objectMapper = new ObjectMapper();
+        ValidationCache.COMPANIES.clear();
+        ValidationCache.CAUSES.clear();
+    }
+
+    private static final String USER_ID = "11111111-2222-3333-4444-555555555555";
+
+    private static BatchGetItemResponse batchGetResponse(Map<String, List<Map<String, AttributeValue>>> responses) {
+        return BatchGetItemResponse.builder().responses(responses).build();
+    }
+
+    private static Map<String, AttributeValue> causeItem(String causeId, String causeDesc) {
+        return Map.of("cause_id", AttributeValue.fromS(causeId), "cause_desc", AttributeValue.fromS(causeDesc));
+    }
+
+    private static Map<String, AttributeValue> userCauseItem(String causeId) {
+        return Map.of("user_id", AttributeValue.fromS(USER_ID), "cause_id", AttributeValue.fromS(causeId));
+    }
+
+    private static TransactionCanceledException canceled(String... codes) {
+        return TransactionCanceledException.builder()
+                .message("Transaction cancelled")
+                .cancellationReasons(java.util.Arrays.stream(codes)
+                        .map(code -> CancellationReason.builder().code(code).build())
+                        .toList())
+                .build();
     }
 
     @Test
@@ -68,29 +100,99 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        Map<String, AttributeValue> cause2 = Map.of(
-                "cause_desc", AttributeValue.fromS("Environmental issues")
-        );
-        GetItemResponse cause2Response = GetItemResponse.builder()
-                .item(cause2)
-                .build();
-        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse)
-                        .thenReturn(cause1Response)
-                                .thenReturn(cause2Response);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
         when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class))).thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
         ResponseMessage message = objectMapper.readValue(response.getBody(), ResponseMessage.class);
         assertEquals(200, response.getStatusCode());
+        // both causes, the personal reason, the marker and the company increment go out in a single transaction
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(1)).transactWriteItems(captor.capture());
+        verify(dynamoDbMock, never()).updateItem(any(UpdateItemRequest.class));
+        assertTrue(captor.getValue().transactItems().stream()
+                .anyMatch(item -> item.update() != null && "companies".equals(item.update().tableName())));
+        Put marker = captor.getValue().transactItems().get(0).put();
+        // kept out of user_boycotts, so listings of the user's boycotts never see it
+        assertEquals(BoycottActions.MARKER_TABLE, marker.tableName());
+        assertEquals("comp1", marker.item().get("company_id").s());
+        assertFalse(marker.item().containsKey("company_cause_id"));
+        assertEquals("attribute_not_exists(company_id) OR expires_at < :now", marker.conditionExpression());
+        assertEquals(Long.parseLong(marker.expressionAttributeValues().get(":now").n()) + BoycottActions.MARKER_LEASE_SECONDS,
+                Long.parseLong(marker.item().get("expires_at").n()));
+    }
+
+    private static APIGatewayProxyRequestEvent authorizedEvent(String body) {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", USER_ID));
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+        return event;
+    }
+
+    @Test
+    public void testAsyncModeRecordsBoycotts() throws Exception {
+        DynamoDbAsyncClient asyncMock = mock(DynamoDbAsyncClient.class);
+        handler = AddUserBoycottsHandler.withAsyncClient(dynamoDbMock, asyncMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+                ]
+            }
+        """;
+        when(asyncMock.getItem(any(GetItemRequest.class))).thenReturn(CompletableFuture.completedFuture(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build()));
+        when(asyncMock.query(any(QueryRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(QueryResponse.builder().count(0).build()));
+        when(asyncMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(CompletableFuture.completedFuture(
+                batchGetResponse(Map.of("causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues"))))));
+        when(asyncMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(TransactWriteItemsResponse.builder().build()));
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        verify(asyncMock, times(1)).getItem(any(GetItemRequest.class));
+        verify(dynamoDbMock, never()).getItem(any(GetItemRequest.class));
+        verify(dynamoDbMock, never()).query(any(QueryRequest.class));
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+        verify(asyncMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testAsyncModeInvalidCompanyWritesNothing() {
+        DynamoDbAsyncClient asyncMock = mock(DynamoDbAsyncClient.class);
+        handler = AddUserBoycottsHandler.withAsyncClient(dynamoDbMock, asyncMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "not this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
+            }
+        """;
+        when(asyncMock.getItem(any(GetItemRequest.class))).thenReturn(CompletableFuture.completedFuture(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build()));
+        // the reads may or may not be issued before the validator answers
+        lenient().when(asyncMock.query(any(QueryRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(QueryResponse.builder().count(0).build()));
+        lenient().when(asyncMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(batchGetResponse(Map.of())));
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(500, response.getStatusCode());
+        assertTrue(response.getBody().contains("not a valid company!"));
+        verify(asyncMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
     }
 
     @Test
@@ -121,14 +223,9 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse)
-                .thenReturn(cause1Response);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
         when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(1).build());
 
         var response = handler.handleRequest(event, mock(Context.class));
@@ -163,14 +260,9 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse)
-                .thenReturn(cause1Response);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
         when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenThrow(new RuntimeException("Failed transaction", null));
@@ -207,30 +299,411 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        Map<String, AttributeValue> cause2 = Map.of(
-                "cause_desc", AttributeValue.fromS("Environmental issues")
-        );
-        GetItemResponse cause2Response = GetItemResponse.builder()
-                .item(cause2)
-                .build();
-        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenReturn(cause2Response);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
         when(dynamoDbMock.query(any(QueryRequest.class)))
                 .thenReturn(QueryResponse.builder().count(0).build());
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
-                .thenReturn(TransactWriteItemsResponse.builder().build())  // Success for c1
+                .thenThrow(new RuntimeException("Failed transaction", null)) // packed c1 + c2 fails
+                .thenReturn(TransactWriteItemsResponse.builder().build())  // Success for c1 on its own
                 .thenThrow(new RuntimeException("Failed transaction", null)); // Fail for c2
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(207, response.getStatusCode());
+        assertTrue(response.getBody().contains("c2"));
+        assertFalse(response.getBody().contains("cause: c1"));
+        verify(dynamoDbMock, times(3)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testLargeSubmissionSplitsOnTransactionActionLimit() throws Exception {
+        // 30 new causes x 4 actions each plus the 2 first-boycott riders do not fit in one 100-action transaction
+        StringBuilder reasons = new StringBuilder();
+        List<Map<String, AttributeValue>> causes = new java.util.ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            reasons.append(i == 0 ? "" : ",").append("{ \"cause_id\": \"c").append(i)
+                    .append("\", \"cause_desc\": \"desc ").append(i).append("\" }");
+            causes.add(causeItem("c" + i, "desc " + i));
+        }
+        String body = "{ \"company_id\": \"comp1\", \"company_name\": \"this company\", \"reasons\": ["
+                + reasons + "] }";
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company")))
+                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", causes)));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        for (TransactWriteItemsRequest request : captor.getAllValues()) {
+            assertTrue(request.transactItems().size() <= 100);
+        }
+        assertEquals(122, captor.getAllValues().stream().mapToInt(r -> r.transactItems().size()).sum());
+    }
+
+    @Test
+    public void testVirtualThreadModeAggregatesResultsAcrossChunks() throws Exception {
+        handler = AddUserBoycottsHandler.withVirtualThreads(dynamoDbMock, 4);
+        StringBuilder reasons = new StringBuilder();
+        List<Map<String, AttributeValue>> causes = new java.util.ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            reasons.append(i == 0 ? "" : ",").append("{ \"cause_id\": \"c").append(i)
+                    .append("\", \"cause_desc\": \"desc ").append(i).append("\" }");
+            causes.add(causeItem("c" + i, "desc " + i));
+        }
+        String body = "{ \"company_id\": \"comp1\", \"company_name\": \"this company\", \"reasons\": ["
+                + reasons + "] }";
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", causes)));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        // the first chunk carries the riders and commits; the second chunk and its per-unit retries all fail
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build())
+                .thenThrow(DynamoDbException.builder().message("boom").build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(207, response.getStatusCode());
+        // 24 units fit next to the riders, the other 6 are reported one by one
+        verify(dynamoDbMock, times(8)).transactWriteItems(any(TransactWriteItemsRequest.class));
+        JsonNode errors = objectMapper.readTree(response.getBody()).get("errors");
+        assertEquals(6, errors.size());
+        errors.forEach(error -> assertTrue(error.asText().startsWith("Failed to record boycott for cause")));
+    }
+
+    @Test
+    public void testVirtualThreadModeWithOnePermitCommitsEveryChunk() throws Exception {
+        handler = AddUserBoycottsHandler.withVirtualThreads(dynamoDbMock, 1);
+        StringBuilder reasons = new StringBuilder();
+        List<Map<String, AttributeValue>> causes = new java.util.ArrayList<>();
+        for (int i = 0; i < 80; i++) {
+            reasons.append(i == 0 ? "" : ",").append("{ \"cause_id\": \"c").append(i)
+                    .append("\", \"cause_desc\": \"desc ").append(i).append("\" }");
+            causes.add(causeItem("c" + i, "desc " + i));
+        }
+        String body = "{ \"company_id\": \"comp1\", \"company_name\": \"this company\", \"reasons\": ["
+                + reasons + "] }";
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", causes)));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        // the rider-free chunks run side by side and each waits on its own transaction, which needs the only permit
+        APIGatewayProxyResponseEvent response = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> handler.handleRequest(authorizedEvent(body), mock(Context.class)));
+
+        assertEquals(200, response.getStatusCode());
+        // 24 units next to the riders, then 25, 25 and 6
+        verify(dynamoDbMock, times(4)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testConflictOnCompanyCounterMovesItToShards() throws Exception {
+        ShardedCounters counters = new ShardedCounters(ShardedCounters.Mode.ADAPTIVE, 10, true, 60_000, System::currentTimeMillis);
+        handler = new AddUserBoycottsHandler(dynamoDbMock).withCounters(counters);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", List.of(causeItem("c1", "Labor rights")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        // marker, companies increment, the follow and its follower_count, then the two actions for c1
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "TransactionConflict", "None", "None", "None", "None"))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        Update increment = captor.getAllValues().get(1).transactItems().get(1).update();
+        assertEquals("counter_shards", increment.tableName());
+        assertTrue(increment.key().get("counter_id").s().startsWith("companies#comp1#boycott_count#"));
+        assertTrue(counters.isHot("companies#comp1#boycott_count"));
+        assertFalse(counters.isHot("causes#c1#follower_count"));
+        // the cause counters did not conflict and stay on their items
+        assertEquals("causes", captor.getAllValues().get(1).transactItems().get(3).update().tableName());
+    }
+
+    @Test
+    public void testStreamCounterModeWritesOnlyUserOwnedRows() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock).withCountersFromStream(true);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", List.of(causeItem("c1", "Labor rights")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        List<String> tables = captor.getValue().transactItems().stream()
+                .map(item -> item.put() != null ? item.put().tableName() : item.update().tableName())
+                .toList();
+        // the marker and the follow are riders and go first
+        assertEquals(List.of(BoycottActions.MARKER_TABLE, "user_causes", "user_boycotts"), tables);
+    }
+
+    @Test
+    public void testShardedCounterReadSumsBaseItemAndShards() {
+        ShardedCounters counters = new ShardedCounters(ShardedCounters.Mode.ADAPTIVE, 4, false, 60_000, System::currentTimeMillis);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "companies", List.of(Map.of("boycott_count", AttributeValue.fromN("5"))),
+                "counter_shards", List.of(
+                        Map.of("counter_value", AttributeValue.fromN("3")),
+                        Map.of("counter_value", AttributeValue.fromN("4"))))));
+
+        long total = counters.read(new SyncDynamoGateway(dynamoDbMock), "companies",
+                Map.of("company_id", AttributeValue.fromS("comp1")));
+
+        assertEquals(12, total);
+        ArgumentCaptor<BatchGetItemRequest> captor = ArgumentCaptor.forClass(BatchGetItemRequest.class);
+        verify(dynamoDbMock).batchGetItem(captor.capture());
+        assertEquals(4, captor.getValue().requestItems().get("counter_shards").keys().size());
+    }
+
+    @Test
+    public void testExpiredHotCountersAreSweptWhenAnotherIsMarked() {
+        long[] now = {0};
+        ShardedCounters counters = new ShardedCounters(ShardedCounters.Mode.ADAPTIVE, 4, false, 1000, () -> now[0]);
+        for (int i = 0; i < 3; i++) {
+            counters.recordContention(List.of(companyIncrement("comp" + i)), canceled("TransactionConflict"));
+        }
+        assertEquals(3, counters.hotCounters());
+
+        now[0] = 1000;
+        counters.recordContention(List.of(companyIncrement("comp3")), canceled("TransactionConflict"));
+
+        assertEquals(1, counters.hotCounters());
+        assertTrue(counters.isHot("companies#comp3#boycott_count"));
+    }
+
+    private static TransactWriteItem companyIncrement(String companyId) {
+        return TransactWriteItem.builder().update(Update.builder()
+                .tableName("companies")
+                .key(Map.of("company_id", AttributeValue.fromS(companyId)))
+                .updateExpression("SET boycott_count = if_not_exists(boycott_count, :zero) + :inc")
+                .build()).build();
+    }
+
+    @Test
+    public void testKnownRowsAreSkippedFromOneUserBoycottsRead() throws Exception {
+        // one paginated query on the user's company range answers every duplicate check
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+              ],
+              "personal_reason": "Existing reason"
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company")))
+                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
+        Map<String, AttributeValue> lastKey = Map.of(
+                "user_id", AttributeValue.fromS(USER_ID),
+                "company_cause_id", AttributeValue.fromS("comp1#c1"));
+        when(dynamoDbMock.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder()
+                        .items(Map.of("company_cause_id", AttributeValue.fromS("comp1#c1")))
+                        .lastEvaluatedKey(lastKey)
+                        .build())
+                .thenReturn(QueryResponse.builder()
+                        .items(Map.of("company_cause_id", AttributeValue.fromS(
+                                UserBoycottsView.personalReasonKey("comp1", "existing REASON"))))
+                        .build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<QueryRequest> queryCaptor = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(dynamoDbMock, times(2)).query(queryCaptor.capture());
+        assertEquals(lastKey, queryCaptor.getAllValues().get(1).exclusiveStartKey());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        // only c2 is sent and the company is not counted again
+        assertEquals(4, captor.getValue().transactItems().size());
+        assertTrue(captor.getValue().transactItems().stream()
+                .noneMatch(item -> item.update() != null && "companies".equals(item.update().tableName())));
+    }
+
+    @Test
+    public void testLosingFirstBoycottRaceDropsCompanyIncrement() throws Exception {
+        // a concurrent request wrote the user x company marker first: resend without the marker and increment
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" }
+              ],
+              "personal_reason": null
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company")))
+                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("ConditionalCheckFailed", "None", "None", "None", "None", "None"))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        List<TransactWriteItem> resent = captor.getAllValues().get(1).transactItems();
+        assertEquals(4, resent.size());
+        assertTrue(resent.stream().noneMatch(item -> item.update() != null && "companies".equals(item.update().tableName())));
+        assertTrue(resent.stream().noneMatch(item -> item.put() != null
+                && BoycottActions.MARKER_TABLE.equals(item.put().tableName())));
+    }
+
+    @Test
+    public void testWarmInvocationReusesValidatedCompanyAndCause() throws Exception {
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" }
+              ],
+              "personal_reason": null
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company")))
+                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        // the second pre-read does not ask for the cause, so it comes back without it
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", List.of(causeItem("c1", "Labor rights")))))
+                .thenReturn(batchGetResponse(Map.of()));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        List<String> lines = new java.util.ArrayList<>();
+        handler.withMetricsSink(lines::add);
+        assertEquals(200, handler.handleRequest(event, mock(Context.class)).getStatusCode());
+        assertEquals(200, handler.handleRequest(event, mock(Context.class)).getStatusCode());
+
+        // the company is read once, and the second pre-read no longer asks for the cause
+        verify(dynamoDbMock, times(1)).getItem(any(GetItemRequest.class));
+        ArgumentCaptor<BatchGetItemRequest> captor = ArgumentCaptor.forClass(BatchGetItemRequest.class);
+        verify(dynamoDbMock, times(2)).batchGetItem(captor.capture());
+        assertTrue(captor.getAllValues().get(0).requestItems().containsKey("causes"));
+        assertFalse(captor.getAllValues().get(1).requestItems().containsKey("causes"));
+        // one lookup per cache and invocation, reported with that invocation: the misses that led to
+        // the reads, then the hits that replaced them
+        assertEquals(2, lines.size());
+        JsonNode first = objectMapper.readTree(lines.get(0));
+        assertEquals(1, first.get("CompanyCacheMisses").asInt());
+        assertEquals(1, first.get("CauseCacheMisses").asInt());
+        assertNull(first.get("CompanyCacheHits"));
+        JsonNode second = objectMapper.readTree(lines.get(1));
+        assertEquals(1, second.get("CompanyCacheHits").asInt());
+        assertEquals(1, second.get("CauseCacheHits").asInt());
+        assertNull(second.get("CauseCacheMisses"));
+    }
+
+    @Test
+    public void testValidationCacheExpiresAndStaysBounded() {
+        long[] now = {0};
+        ValidationCache cache = new ValidationCache("Company", 2, 1000, () -> now[0]);
+        cache.remember("a", "A");
+        cache.remember("b", "B");
+        cache.remember("c", "C");
+        assertEquals(2, cache.size());
+        assertFalse(cache.isValid("a", "A"));
+        assertTrue(cache.isValid("c", "C"));
+        assertFalse(cache.isValid("c", "other name"));
+        now[0] = 1000;
+        assertFalse(cache.isValid("c", "C"));
     }
 
     @Test
@@ -257,57 +730,472 @@ public class AddUserBoycottsHandlerTest {
         }
     }
 
+    @Test
+    public void testWarmupEventPrimesAndReturnsEarly() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withResource("warmup");
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("warm"));
+        verify(dynamoDbMock).getItem(any(GetItemRequest.class));
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+        verify(dynamoDbMock, never()).query(any(QueryRequest.class));
+    }
+
+    @Test
+    public void testBeforeCheckpointSurvivesFailedPrimingRead() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
+                .thenThrow(DynamoDbException.builder().message("no network during checkpoint").build());
+
+        assertDoesNotThrow(() -> handler.beforeCheckpoint(null));
+
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    private static final String SIMPLE_BODY = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
+            }
+        """;
+
+    private static APIGatewayProxyRequestEvent withIdempotencyKey(APIGatewayProxyRequestEvent event, String key) {
+        return event.withHeaders(Map.of("idempotency-key", key));
+    }
+
+    private static ConditionalCheckFailedException existingRecord(Map<String, AttributeValue> item) {
+        return ConditionalCheckFailedException.builder().message("The conditional request failed").item(item).build();
+    }
+
+    @Test
+    public void testIdempotencyKeyStoresTheFinalResponse() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class))).thenReturn(UpdateItemResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(
+                withIdempotencyKey(authorizedEvent(SIMPLE_BODY), "retry-1"), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<UpdateItemRequest> captor = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(dynamoDbMock, times(2)).updateItem(captor.capture());
+        UpdateItemRequest claim = captor.getAllValues().get(0);
+        assertEquals(USER_ID + "#retry-1", claim.key().get("idempotency_key").s());
+        assertEquals("IN_PROGRESS", claim.expressionAttributeValues().get(":in_progress").s());
+        assertNotNull(claim.conditionExpression());
+        UpdateItemRequest stored = captor.getAllValues().get(1);
+        assertEquals("200", stored.expressionAttributeValues().get(":code").n());
+        assertEquals(response.getBody(), stored.expressionAttributeValues().get(":body").s());
+    }
+
+    @Test
+    public void testRetryWithIdempotencyKeyReplaysStoredResponse() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String storedBody = "{\"message\":\"All boycotts recorded successfully.\"}";
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class))).thenThrow(existingRecord(Map.of(
+                "status", AttributeValue.fromS("COMPLETED"),
+                "response_status", AttributeValue.fromN("200"),
+                "response_body", AttributeValue.fromS(storedBody))));
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(
+                withIdempotencyKey(authorizedEvent(SIMPLE_BODY), "retry-1"), mock(Context.class));
+
+        // the original 200, not a 409 from re-running the request
+        assertEquals(200, response.getStatusCode());
+        assertEquals(storedBody, response.getBody());
+        assertEquals("true", response.getHeaders().get("Idempotent-Replayed"));
+        verify(dynamoDbMock, never()).getItem(any(GetItemRequest.class));
+        verify(dynamoDbMock, never()).query(any(QueryRequest.class));
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testIdempotencyKeyInProgressOrReusedForAnotherRequestIsRefused() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
+                .thenThrow(existingRecord(Map.of("status", AttributeValue.fromS("IN_PROGRESS"))))
+                .thenThrow(existingRecord(Map.of(
+                        "status", AttributeValue.fromS("COMPLETED"),
+                        "request_hash", AttributeValue.fromS("hash of another body"))));
+
+        APIGatewayProxyResponseEvent inProgress = handler.handleRequest(
+                withIdempotencyKey(authorizedEvent(SIMPLE_BODY), "retry-1"), mock(Context.class));
+        APIGatewayProxyResponseEvent reused = handler.handleRequest(
+                withIdempotencyKey(authorizedEvent(SIMPLE_BODY), "retry-1"), mock(Context.class));
+
+        assertEquals(409, inProgress.getStatusCode());
+        assertTrue(inProgress.getBody().contains("still in progress"));
+        assertEquals(422, reused.getStatusCode());
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testServerErrorReleasesIdempotencyKey() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class))).thenReturn(UpdateItemResponse.builder().build());
+        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
+                .thenThrow(DynamoDbException.builder().message("companies unavailable").build());
+        when(dynamoDbMock.deleteItem(any(DeleteItemRequest.class))).thenReturn(DeleteItemResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(
+                withIdempotencyKey(authorizedEvent(SIMPLE_BODY), "retry-1"), mock(Context.class));
+
+        assertEquals(500, response.getStatusCode());
+        // the retry runs again instead of replaying the failure
+        verify(dynamoDbMock).deleteItem(any(DeleteItemRequest.class));
+        verify(dynamoDbMock, times(1)).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void testThrottledCauseIsRetriedWithinTheBudget() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(ProvisionedThroughputExceededException.builder().message("slow down").build())
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(30_000);
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(SIMPLE_BODY), context);
+
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        // every call carries a timeout that ends before the reserve
+        Duration timeout = captor.getAllValues().get(1).overrideConfiguration().orElseThrow().apiCallTimeout().orElseThrow();
+        assertTrue(timeout.toMillis() <= 30_000 - Deadline.RESERVE_MILLIS);
+        assertTrue(timeout.toMillis() > 20_000);
+    }
+
+    @Test
+    public void testRunningOutOfTimeReportsUnprocessedCauses() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+              ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        // the packed transaction is slow and fails, leaving less than the reserve for the per-cause retries
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(700);
+            throw DynamoDbException.builder().message("timed out").build();
+        });
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn((int) Deadline.RESERVE_MILLIS + 500);
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), context);
+
+        assertEquals(207, response.getStatusCode());
+        Map<?, ?> parsed = objectMapper.readValue(response.getBody(), Map.class);
+        assertEquals(List.of("c1", "c2"), parsed.get("unprocessed_causes"));
+        verify(dynamoDbMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testTransactionCutOffByTheDeadlineIsNotResent() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+              ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        // the transaction may have committed before the call timed out
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(ApiCallTimeoutException.create(1500));
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(207, response.getStatusCode());
+        Map<?, ?> parsed = objectMapper.readValue(response.getBody(), Map.class);
+        assertEquals(List.of("c1", "c2"), parsed.get("unprocessed_causes"));
+        assertFalse(parsed.containsKey("errors"));
+        verify(dynamoDbMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testRunningOutOfTimeReleasesIdempotencyKey() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+              ]
+            }
+        """;
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class))).thenReturn(UpdateItemResponse.builder().build());
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(700);
+            throw DynamoDbException.builder().message("timed out").build();
+        });
+        when(dynamoDbMock.deleteItem(any(DeleteItemRequest.class))).thenReturn(DeleteItemResponse.builder().build());
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn((int) Deadline.RESERVE_MILLIS + 500);
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(
+                withIdempotencyKey(authorizedEvent(body), "retry-1"), context);
+
+        assertEquals(207, response.getStatusCode());
+        assertTrue(response.getBody().contains("unprocessed_causes"));
+        // the 207 is not stored: the retry runs again and records what was left
+        verify(dynamoDbMock).deleteItem(any(DeleteItemRequest.class));
+        verify(dynamoDbMock, times(1)).updateItem(any(UpdateItemRequest.class));
+    }
+
     @Test
     public void testUnauthorizedUser() {
         // Test the unauthorized block coverage
         handler = new AddUserBoycottsHandler(dynamoDbMock);
 
-        // Create event without JWT token (or invalid token that returns null sub)
-        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
-        // No authorizer context, so JwtUtility.getSubFromRestEvent will return null
+        // Create event without JWT token (or invalid token that returns null sub)
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        // No authorizer context, so JwtUtility.getSubFromRestEvent will return null
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, null);
+
+        assertEquals(401, response.getStatusCode());
+        assertTrue(response.getBody().contains("Unauthorized"));
+    }
+
+    @Test
+    public void testErrorsAreLoggedAsJsonWithTheRequest() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "not this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        lenient().when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        lenient().when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of()));
+        Context context = mock(Context.class);
+        when(context.getAwsRequestId()).thenReturn("req-1");
+        List<String> lines = new java.util.ArrayList<>();
+        APIGatewayProxyResponseEvent response = handler.withLogSink(lines::add)
+                .handleRequest(authorizedEvent(body), context);
+        assertEquals(500, response.getStatusCode());
+
+        // the batcher's DEBUG lines are dropped at the default level
+        assertEquals(1, lines.size());
+        JsonNode line = objectMapper.readTree(lines.get(0));
+        assertEquals("ERROR", line.get("level").asText());
+        assertEquals("not a valid company!", line.get("message").asText());
+        assertEquals(USER_ID, line.get("sub").asText());
+        assertEquals("req-1", line.get("request_id").asText());
+        assertTrue(line.get("line").isInt());
+    }
+
+    @Test
+    public void testMetricsLineDescribesTheRequest() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+                ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        List<String> lines = new java.util.ArrayList<>();
+        handler.withMetricsSink(lines::add);
+        assertEquals(200, handler.handleRequest(authorizedEvent(body), mock(Context.class)).getStatusCode());
+
+        assertEquals(1, lines.size());
+        JsonNode emf = objectMapper.readTree(lines.get(0));
+        JsonNode directive = emf.get("_aws").get("CloudWatchMetrics").get(0);
+        assertEquals(Metrics.NAMESPACE, directive.get("Namespace").asText());
+        assertEquals("[[\"Operation\"],[\"Operation\",\"Outcome\"]]", directive.get("Dimensions").toString());
+        assertEquals("AddUserBoycotts", emf.get("Operation").asText());
+        assertEquals("200", emf.get("Outcome").asText());
+        // the company validator's read is counted although it bypasses the gateway
+        assertEquals(1, emf.get("GetItemCalls").asInt());
+        // the company's range answers the first-boycott check on its own
+        assertEquals(1, emf.get("QueryCalls").asInt());
+        assertEquals(1, emf.get("BatchGetItemCalls").asInt());
+        assertEquals(1, emf.get("TransactWriteItemsCalls").asInt());
+        assertEquals(0, emf.get("TransactionRetries").asInt());
+        assertEquals(2, emf.get("ReasonsRecorded").asInt());
+        assertEquals(0, emf.get("ReasonsSkipped").asInt());
+        for (String timer : List.of("ParseTime", "CompanyValidationTime", "PreCheckTime", "TransactionTime")) {
+            assertTrue(emf.get(timer).isNumber(), timer);
+        }
+        // every metric written is declared in the directive
+        List<String> declared = new java.util.ArrayList<>();
+        directive.get("Metrics").forEach(metric -> declared.add(metric.get("Name").asText()));
+        assertTrue(declared.containsAll(List.of("Requests", "TransactWriteItemsLatency", "ParseTime")));
+    }
+
+    @Test
+    public void testPhaseTimersIncludeCallsTheBlockingClientAlreadyFinished() throws Exception {
+        handler = new AddUserBoycottsHandler(dynamoDbMock);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(30);
+            return GetItemResponse.builder().item(Map.of("company_name", AttributeValue.fromS("this company"))).build();
+        });
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(30);
+            return QueryResponse.builder().count(0).build();
+        });
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(batchGetResponse(Map.of("causes", List.of(causeItem("c1", "Labor rights")))));
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        List<String> lines = new java.util.ArrayList<>();
+        handler.withMetricsSink(lines::add);
+
+        assertEquals(200, handler.handleRequest(authorizedEvent(body), mock(Context.class)).getStatusCode());
 
-        APIGatewayProxyResponseEvent response = handler.handleRequest(event, null);
+        // the sync gateway answers before the phase's future exists, so the clock has to start before the calls
+        JsonNode emf = objectMapper.readTree(lines.get(0));
+        assertTrue(emf.get("CompanyValidationTime").asDouble() >= 30, emf.toString());
+        assertTrue(emf.get("PreCheckTime").asDouble() >= 30, emf.toString());
+    }
 
-        assertEquals(401, response.getStatusCode());
-        assertTrue(response.getBody().contains("Unauthorized"));
+    private static ConsumedCapacity capacity(String table, double units) {
+        return ConsumedCapacity.builder().tableName(table).capacityUnits(units).build();
     }
 
     @Test
-    public void testJsonProcessingExceptionInResponse() throws Exception {
-        // Test JsonProcessingException coverage in response method by using reflection
+    public void testConsumedCapacityIsRequestedAndReported() throws Exception {
         handler = new AddUserBoycottsHandler(dynamoDbMock);
-
-        // Use reflection to access the private response method
-        java.lang.reflect.Method responseMethod = AddUserBoycottsHandler.class.getDeclaredMethod("response", int.class, Object.class);
-        responseMethod.setAccessible(true);
-
-        // Create an object that will cause JsonProcessingException
-        Object problematicObject = new Object() {
-            public Object writeReplace() throws java.io.ObjectStreamException {
-                throw new java.io.NotSerializableException("Not serializable");
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
             }
-        };
-
-        // Create a circular reference object that will cause JsonProcessingException
-        Map<String, Object> circularMap = new HashMap<>();
-        circularMap.put("self", circularMap);
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company")))
+                .consumedCapacity(capacity("companies", 0.5)).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0)
+                .consumedCapacity(capacity("user_boycotts", 0.5)).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights"))))
+                .consumedCapacity(capacity("causes", 0.5), capacity("user_causes", 0.5)).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class))).thenReturn(TransactWriteItemsResponse
+                .builder().consumedCapacity(capacity("user_boycotts", 2.0), capacity("companies", 2.0)).build());
+        List<String> lines = new java.util.ArrayList<>();
+        handler.withMetricsSink(lines::add);
+        assertEquals(200, handler.handleRequest(authorizedEvent(body), mock(Context.class)).getStatusCode());
+
+        ArgumentCaptor<GetItemRequest> company = ArgumentCaptor.forClass(GetItemRequest.class);
+        verify(dynamoDbMock).getItem(company.capture());
+        assertEquals(ReturnConsumedCapacity.INDEXES, company.getValue().returnConsumedCapacity());
+        ArgumentCaptor<QueryRequest> query = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(dynamoDbMock).query(query.capture());
+        assertTrue(query.getAllValues().stream()
+                .allMatch(request -> request.returnConsumedCapacity() == ReturnConsumedCapacity.INDEXES));
+        ArgumentCaptor<TransactWriteItemsRequest> transaction = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(transaction.capture());
+        assertEquals(ReturnConsumedCapacity.INDEXES, transaction.getValue().returnConsumedCapacity());
+        JsonNode emf = objectMapper.readTree(lines.get(0));
+        assertEquals(6.0, emf.get("ConsumedCapacity").asDouble());
+        assertEquals(2.5, emf.get("user_boycottsConsumedCapacity").asDouble());
+        assertEquals(2.5, emf.get("companiesConsumedCapacity").asDouble());
+    }
 
-        // This should trigger the JsonProcessingException -> RuntimeException path
-        RuntimeException exception = assertThrows(RuntimeException.class, () -> {
-            try {
-                responseMethod.invoke(handler, 500, circularMap);
-            } catch (java.lang.reflect.InvocationTargetException e) {
-                if (e.getCause() instanceof RuntimeException) {
-                    throw (RuntimeException) e.getCause();
-                }
-                throw new RuntimeException(e.getCause());
+    @Test
+    public void testUsedUpCapacityBudgetFailsTheSubmissionOfAUserWithBoycotts() {
+        handler = new AddUserBoycottsHandler(dynamoDbMock).withCapacityBudget(10);
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ]
             }
-        });
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        // the user already boycotts comp1, and the first page alone costs more than the budget
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder()
+                .items(Map.of("company_cause_id", AttributeValue.fromS("comp1#c9")))
+                .lastEvaluatedKey(Map.of("user_id", AttributeValue.fromS(USER_ID),
+                        "company_cause_id", AttributeValue.fromS("comp1#c9")))
+                .consumedCapacity(capacity("user_boycotts", 64.0)).build());
+        lenient().when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        // the second page is never sent, and without it comp1 would be counted as a first boycott again
+        assertEquals(500, response.getStatusCode());
+        assertTrue(response.getBody().contains("Capacity budget"), response.getBody());
+        verify(dynamoDbMock, times(1)).query(any(QueryRequest.class));
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
 
-        // Verify it's ultimately caused by JsonProcessingException
-        Throwable cause = exception.getCause();
-        assertTrue(cause instanceof JsonProcessingException,
-                "Expected JsonProcessingException, got: " + cause.getClass().getSimpleName());
+    @Test
+    public void testJsonProcessingExceptionInResponse() {
+        // a body that cannot be written surfaces as an unchecked exception, which the handlers turn into a 500
+        java.io.UncheckedIOException exception = assertThrows(java.io.UncheckedIOException.class,
+                () -> Responses.json(207, generator -> {
+                    generator.writeStringField("message", "half written");
+                    throw new JsonProcessingException("Not serializable") { };
+                }));
+
+        assertTrue(exception.getCause() instanceof JsonProcessingException,
+                "Expected JsonProcessingException, got: " + exception.getCause().getClass().getSimpleName());
     }
 
     @Test
@@ -350,7 +1238,7 @@ public class AddUserBoycottsHandlerTest {
 
     @Test
     public void testUserAlreadyHasSpecificBoycott() throws Exception {
-        // Test lines 68-69: User already has specific boycott
+        // User already has specific boycott: the conditional Put is rejected
         String body = """
             {
               "user_id": null,
@@ -378,34 +1266,21 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response);
-
-        // Mock to simulate existing specific boycott
-        Map<String, AttributeValue> specificBoycott = Map.of(
-                "user_id", AttributeValue.fromS("11111111-2222-3333-4444-555555555555"),
-                "company_cause_id", AttributeValue.fromS("comp1#c1")
-        );
-        QueryResponse specificBoycottResponse = QueryResponse.builder()
-                .items(specificBoycott)
-                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
+        // marker + companies and follow + follower_count riders, then the c1 user_boycotts Put fails its
+        // attribute_not_exists condition
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "None", "None", "None", "ConditionalCheckFailed", "None"));
 
-        // First query: userHasAnyBoycott (returns empty - no boycott yet)
-        // Second query: userHasSpecificBoycott (returns specific boycott)
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(QueryResponse.builder().count(0).build())  // userHasAnyBoycott
-                .thenReturn(specificBoycottResponse); // userHasSpecificBoycott
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(409, response.getStatusCode()); // No new boycotts recorded
         assertTrue(response.getBody().contains("No new boycotts were recorded"));
+        verify(dynamoDbMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
     }
 
     @Test
@@ -438,15 +1313,9 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Different description")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Different description")))));
 
         when(dynamoDbMock.query(any(QueryRequest.class)))
                 .thenReturn(QueryResponse.builder().count(0).build());
@@ -457,7 +1326,7 @@ public class AddUserBoycottsHandlerTest {
 
     @Test
     public void testUserAlreadyFollowingCause() throws Exception {
-        // Test lines 91, 115: User already following cause, cause_company_stats record exists
+        // User already following cause
         String body = """
             {
               "user_id": null,
@@ -485,47 +1354,25 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
 
-        // Mock for findCauseCompanyRecord (returns existing record)
-        Map<String, AttributeValue> causeCompanyRecord = Map.of(
-                "cause_id", AttributeValue.fromS("c1"),
-                "company_id", AttributeValue.fromS("comp1")
-        );
-        GetItemResponse causeCompanyResponse = GetItemResponse.builder()
-                .item(causeCompanyRecord)
-                .build();
-
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenReturn(causeCompanyResponse); // findCauseCompanyRecord returns true
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "user_causes", List.of(userCauseItem("c1")),
+                "causes", List.of(causeItem("c1", "Labor rights")))));
 
-        // First query: userHasAnyBoycott
-        // Second query: userHasSpecificBoycott (returns false)
-        // Third query: userIsFollowingCause (returns true - already following)
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(QueryResponse.builder().count(0).build())  // userHasAnyBoycott
-                .thenReturn(QueryResponse.builder().count(0).build())  // userHasSpecificBoycott
-                .thenReturn(QueryResponse.builder().count(1).build()); // userIsFollowingCause
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
-                .thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(200, response.getStatusCode());
     }
 
     @Test
-    public void testCauseCompanyRecordDoesNotExist() throws Exception {
-        // Test lines 134-147: Create new cause_company_stats record
+    public void testCauseCompanyStatsIsUpserted() throws Exception {
+        // cause_company_stats is written with one if_not_exists upsert, never a Put
         String body = """
             {
               "user_id": null,
@@ -553,31 +1400,28 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
 
-        // Mock for findCauseCompanyRecord (returns no item - record doesn't exist)
-        GetItemResponse noCauseCompanyResponse = GetItemResponse.builder().build();
-
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenReturn(noCauseCompanyResponse); // findCauseCompanyRecord returns false
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
 
         when(dynamoDbMock.query(any(QueryRequest.class)))
                 .thenReturn(QueryResponse.builder().count(0).build());
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
-                .thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        List<TransactWriteItem> stats = captor.getValue().transactItems().stream()
+                .filter(item -> (item.put() != null && "cause_company_stats".equals(item.put().tableName()))
+                        || (item.update() != null && "cause_company_stats".equals(item.update().tableName())))
+                .toList();
+        assertEquals(1, stats.size());
+        assertNotNull(stats.get(0).update());
+        assertTrue(stats.get(0).update().updateExpression().contains("company_name = if_not_exists(company_name, :cname)"));
     }
 
     @Test
@@ -618,16 +1462,14 @@ public class AddUserBoycottsHandlerTest {
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
-                .thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(200, response.getStatusCode());
     }
 
     @Test
-    public void testFindCauseCompanyRecordException() throws Exception {
-        // Test lines 251-253: DynamoDbException in findCauseCompanyRecord
+    public void testPreReadRetriesUnprocessedKeys() throws Exception {
+        // BatchGetItem hands back some keys as unprocessed; they must be fetched again
         String body = """
             {
               "user_id": null,
@@ -655,33 +1497,31 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
 
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenThrow(DynamoDbException.builder().message("DynamoDB error").build()); // findCauseCompanyRecord throws exception
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        BatchGetItemResponse partial = BatchGetItemResponse.builder()
+                .unprocessedKeys(Map.of("causes", KeysAndAttributes.builder()
+                        .keys(Map.of("cause_id", AttributeValue.fromS("c1")))
+                        .build()))
+                .build();
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class)))
+                .thenReturn(partial)
+                .thenReturn(batchGetResponse(Map.of(
+                        "causes", List.of(causeItem("c1", "Labor rights")))));
 
         when(dynamoDbMock.query(any(QueryRequest.class)))
                 .thenReturn(QueryResponse.builder().count(0).build());
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
-                .thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
-        assertEquals(200, response.getStatusCode()); // Should still succeed, findCauseCompanyRecord returns false on exception
+        assertEquals(200, response.getStatusCode());
+        verify(dynamoDbMock, times(2)).batchGetItem(any(BatchGetItemRequest.class));
     }
 
     @Test
-    public void testUserHasAnyBoycottException() throws Exception {
-        // Test lines 272-274: DynamoDbException in userHasAnyBoycott
+    public void testPreReadGivesUpOnPersistentUnprocessedKeys() throws Exception {
         String body = """
             {
               "user_id": null,
@@ -709,44 +1549,119 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
+
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .unprocessedKeys(Map.of("causes", KeysAndAttributes.builder()
+                        .keys(Map.of("cause_id", AttributeValue.fromS("c1")))
+                        .build()))
+                .build());
+        when(dynamoDbMock.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder().count(0).build());
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        assertEquals(500, response.getStatusCode());
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testDuplicateReasonsAreWrittenOnce() throws Exception {
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c1", "cause_desc": "Labor rights" }
+              ],
+              "personal_reason": null
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        Map<String, AttributeValue> company = Map.of(
+                "company_name", AttributeValue.fromS("this company")
         );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(company)
                 .build();
-        GetItemResponse noCauseCompanyResponse = GetItemResponse.builder().build();
-
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenReturn(noCauseCompanyResponse);
 
-        // First query: userHasAnyBoycott throws DynamoDbException
-        // Second query: userHasSpecificBoycott
-        // Third query: userIsFollowingCause
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenThrow(DynamoDbException.builder().message("DynamoDB error").build()) // userHasAnyBoycott exception
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasSpecificBoycott
-                .thenReturn(QueryResponse.builder().count(0).build()); // userIsFollowingCause
-
+                .thenReturn(QueryResponse.builder().count(0).build());
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
-        assertEquals(200, response.getStatusCode()); // Should still succeed
+        assertEquals(200, response.getStatusCode());
+        verify(dynamoDbMock, times(1)).batchGetItem(any(BatchGetItemRequest.class));
+        verify(dynamoDbMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testUserHasAnyBoycottException() throws Exception {
+        // Test lines 272-274: DynamoDbException in userHasAnyBoycott
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" }
+              ],
+              "personal_reason": null
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        Map<String, AttributeValue> company = Map.of(
+                "company_name", AttributeValue.fromS("this company")
+        );
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(company)
+                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        lenient().when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
+
+        when(dynamoDbMock.query(any(QueryRequest.class)))
+                .thenThrow(DynamoDbException.builder().message("DynamoDB error").build()); // userHasAnyBoycott exception
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        // without the user's rows the first-boycott counters cannot be decided, so nothing is written
+        assertEquals(500, response.getStatusCode());
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
     }
 
     @Test
-    public void testUserHasPersonalReasonException() throws Exception {
-        // Test lines 312-315: DynamoDbException in userHasPersonalReason
+    public void testPersonalReasonKeyIsNormalized() throws Exception {
+        // the personal-reason row is keyed by company and a case/whitespace-folded hash of the text
         String body = """
             {
               "user_id": null,
               "company_id": "comp1",
               "company_name" : "this company",
               "reasons": [],
-              "personal_reason": "My personal reason"
+              "personal_reason": "  My   PERSONAL reason "
             }
         """;
 
@@ -767,24 +1682,30 @@ public class AddUserBoycottsHandlerTest {
                 .build();
         when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
 
-        // First query: userHasAnyBoycott
-        // Second query: userHasPersonalReason throws exception
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasAnyBoycott
-                .thenThrow(DynamoDbException.builder().message("DynamoDB error").build()); // userHasPersonalReason exception
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
-                .thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
-        assertEquals(200, response.getStatusCode()); // Should still succeed, userHasPersonalReason returns false on exception
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        Put personalPut = captor.getValue().transactItems().stream()
+                .map(TransactWriteItem::put)
+                .filter(put -> put != null && put.item().containsKey("personal_reason"))
+                .findFirst().orElseThrow();
+        String key = personalPut.item().get("company_cause_id").s();
+        assertTrue(key.startsWith("comp1#personal#"));
+        assertEquals(UserBoycottsView.personalReasonKey("comp1", "my personal reason"), key);
+        assertEquals("attribute_not_exists(company_cause_id)", personalPut.conditionExpression());
+        verify(dynamoDbMock, times(1)).query(any(QueryRequest.class));
     }
 
     @Test
     public void testUserHasPersonalReasonWithMatch() throws Exception {
-        // Test lines 303-307: userHasPersonalReason finds matching personal reason
+        // the personal reason already exists: its conditional Put is rejected
         String body = """
             {
               "user_id": null,
@@ -812,29 +1733,61 @@ public class AddUserBoycottsHandlerTest {
                 .build();
         when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
 
-        // Mock userHasPersonalReason to return a matching record
-        Map<String, AttributeValue> personalReasonRecord = Map.of(
-                "user_id", AttributeValue.fromS("11111111-2222-3333-4444-555555555555"),
-                "company_id", AttributeValue.fromS("comp1"),
-                "personal_reason", AttributeValue.fromS("Existing reason")
+        when(dynamoDbMock.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
+        // marker + companies riders, the normalized-key Put, then the legacy-key ConditionCheck
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "None", "ConditionalCheckFailed", "None"));
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        assertEquals(409, response.getStatusCode()); // No new boycotts recorded
+    }
+
+    @Test
+    public void testLegacyPersonalReasonRowIsTreatedAsDuplicate() throws Exception {
+        // a row written under the old "<reason>#<company_id>" key fails the ConditionCheck
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [],
+              "personal_reason": "Existing reason"
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        Map<String, AttributeValue> company = Map.of(
+                "company_name", AttributeValue.fromS("this company")
         );
-        QueryResponse personalReasonResponse = QueryResponse.builder()
-                .items(personalReasonRecord)
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(company)
                 .build();
-
-        // First query: userHasAnyBoycott
-        // Second query: userHasPersonalReason (returns matching personal reason)
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasAnyBoycott
-                .thenReturn(personalReasonResponse); // userHasPersonalReason returns match
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "None", "None", "ConditionalCheckFailed"));
 
         var response = handler.handleRequest(event, mock(Context.class));
-        assertEquals(409, response.getStatusCode()); // No new boycotts recorded
+        assertEquals(409, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        ConditionCheck legacy = captor.getValue().transactItems().get(3).conditionCheck();
+        assertEquals("Existing reason#comp1", legacy.key().get("company_cause_id").s());
     }
 
     @Test
     public void testUserHasAnyBoycottMatches() throws Exception {
-        // Test line 270: userHasAnyBoycott finds matching company_id
+        // the user already has a row under the company's sort-key prefix
         String body = """
             {
               "user_id": null,
@@ -862,44 +1815,70 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        GetItemResponse noCauseCompanyResponse = GetItemResponse.builder().build();
-
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenReturn(noCauseCompanyResponse);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights")))));
 
         // Mock userHasAnyBoycott to return matching company_id
         Map<String, AttributeValue> existingBoycott = Map.of(
-                "user_id", AttributeValue.fromS("11111111-2222-3333-4444-555555555555"),
-                "company_id", AttributeValue.fromS("comp1")
+                "company_cause_id", AttributeValue.fromS("comp1#c9")
         );
         QueryResponse userBoycottResponse = QueryResponse.builder()
                 .items(existingBoycott)
                 .build();
 
-        // First query: userHasAnyBoycott (returns matching boycott)
-        // Second query: userHasSpecificBoycott
-        // Third query: userIsFollowingCause
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(userBoycottResponse) // userHasAnyBoycott returns match
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasSpecificBoycott
-                .thenReturn(QueryResponse.builder().count(0).build()); // userIsFollowingCause
+                .thenReturn(userBoycottResponse); // userHasAnyBoycott returns match
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        // updateItem should NOT be called since userHasBoycott is true
+        // the companies increment should NOT ride along since userHasBoycott is true
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(200, response.getStatusCode());
-        // Verify updateItem was NOT called
         verify(dynamoDbMock, never()).updateItem(any(UpdateItemRequest.class));
+        ArgumentCaptor<QueryRequest> queryCaptor = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(dynamoDbMock).query(queryCaptor.capture());
+        assertEquals("user_id = :uid AND begins_with(company_cause_id, :prefix)",
+                queryCaptor.getValue().keyConditionExpression());
+        assertEquals("comp1#", queryCaptor.getValue().expressionAttributeValues().get(":prefix").s());
+        assertEquals("company_cause_id", queryCaptor.getValue().projectionExpression());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        assertTrue(captor.getValue().transactItems().stream()
+                .noneMatch(item -> item.update() != null && "companies".equals(item.update().tableName())));
+    }
+
+    @Test
+    public void testPersonalReasonIsCheckedWithinTheCompanyRangeOnly() throws Exception {
+        // legacy "<reason>#<company_id>" rows are moved into the range by LegacyPersonalReasonMigration
+        String body = """
+            {
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [],
+              "personal_reason": "bad   labor "
+            }
+        """;
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().items(Map.of(
+                "company_cause_id", AttributeValue.fromS(UserBoycottsView.personalReasonKey("comp1", "Bad Labor")))).build());
+
+        var response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+        assertEquals(409, response.getStatusCode());
+        ArgumentCaptor<QueryRequest> queries = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(dynamoDbMock).query(queries.capture());
+        assertEquals(QueryRequest.builder()
+                .tableName("user_boycotts")
+                .keyConditionExpression("user_id = :uid AND begins_with(company_cause_id, :prefix)")
+                .expressionAttributeValues(Map.of(
+                        ":uid", AttributeValue.fromS(USER_ID),
+                        ":prefix", AttributeValue.fromS("comp1#")))
+                .projectionExpression("company_cause_id")
+                .returnConsumedCapacity(ReturnConsumedCapacity.INDEXES)
+                .build(), queries.getValue());
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
     }
 
     @Test
@@ -932,42 +1911,17 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
-        GetItemResponse causeCompanyResponse = GetItemResponse.builder()
-                .item(Map.of("cause_id", AttributeValue.fromS("c1")))
-                .build();
 
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response)
-                .thenReturn(causeCompanyResponse);
-
-        // Mock userIsFollowingCause to return matching cause
-        Map<String, AttributeValue> followingCause = Map.of(
-                "user_id", AttributeValue.fromS("11111111-2222-3333-4444-555555555555"),
-                "cause_id", AttributeValue.fromS("c1")
-        );
-        QueryResponse followingResponse = QueryResponse.builder()
-                .items(followingCause)
-                .build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "user_causes", List.of(userCauseItem("c1")),
+                "causes", List.of(causeItem("c1", "Labor rights")))));
 
-        // First query: userHasAnyBoycott
-        // Second query: userHasSpecificBoycott
-        // Third query: userIsFollowingCause (returns match)
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasAnyBoycott
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasSpecificBoycott
-                .thenReturn(followingResponse); // userIsFollowingCause returns match
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
 
         when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
                 .thenReturn(TransactWriteItemsResponse.builder().build());
-        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
-                .thenReturn(UpdateItemResponse.builder().build());
 
         var response = handler.handleRequest(event, mock(Context.class));
         assertEquals(200, response.getStatusCode());
@@ -975,7 +1929,7 @@ public class AddUserBoycottsHandlerTest {
 
     @Test
     public void testGeneralExceptionHandling() throws Exception {
-        // Test lines 219-221: General exception handling
+        // a body that is not JSON is the caller's mistake, answered as StreamingAddUserBoycottsHandler answers it
         String invalidJson = "{ invalid json";
 
         APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(invalidJson);
@@ -988,22 +1942,22 @@ public class AddUserBoycottsHandlerTest {
         event.setRequestContext(rc);
 
         var response = handler.handleRequest(event, mock(Context.class));
-        assertEquals(500, response.getStatusCode());
-        assertTrue(response.getBody().contains("Unexpected server error"));
+        assertEquals(400, response.getStatusCode());
+        assertTrue(response.getBody().contains("Malformed request body."));
+        verifyNoInteractions(dynamoDbMock);
     }
 
     @Test
-    public void testUserHasSpecificBoycottMatches() throws Exception {
-        // Test line 290: userHasSpecificBoycott returns non-empty items
-        // This is already covered by testUserAlreadyHasSpecificBoycott above
-        // Just ensuring explicit coverage of line 290
+    public void testDuplicateCauseIsDroppedAndRestIsResent() throws Exception {
+        // c1 already exists, c2 is new: the transaction is resent without c1 and the result is a plain 200
         String body = """
             {
               "user_id": null,
               "company_id": "comp1",
               "company_name" : "this company",
               "reasons": [
-                  { "cause_id": "c1", "cause_desc": "Labor rights" }
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
               ],
               "personal_reason": null
             }
@@ -1024,34 +1978,76 @@ public class AddUserBoycottsHandlerTest {
         GetItemResponse companyResponse = GetItemResponse.builder()
                 .item(company)
                 .build();
-        Map<String, AttributeValue> cause1 = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor rights")
-        );
-        GetItemResponse cause1Response = GetItemResponse.builder()
-                .item(cause1)
-                .build();
 
-        when(dynamoDbMock.getItem(any(GetItemRequest.class)))
-                .thenReturn(companyResponse)
-                .thenReturn(cause1Response);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
+        when(dynamoDbMock.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "None", "None", "None", "None", "None",
+                        "ConditionalCheckFailed", "None", "None", "None"))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        var response = handler.handleRequest(event, mock(Context.class));
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        List<TransactWriteItem> resent = captor.getAllValues().get(1).transactItems();
+        assertEquals(6, resent.size());
+        assertTrue(resent.stream().noneMatch(item -> item.put() != null
+                && "user_boycotts".equals(item.put().tableName())
+                && "comp1#c1".equals(item.put().item().get("company_cause_id").s())));
+    }
+
+    @Test
+    public void testThrottledCauseIsReportedNotTreatedAsDuplicate() throws Exception {
+        String body = """
+            {
+              "user_id": null,
+              "company_id": "comp1",
+              "company_name" : "this company",
+              "reasons": [
+                  { "cause_id": "c1", "cause_desc": "Labor rights" },
+                  { "cause_id": "c2", "cause_desc": "Environmental issues" }
+              ],
+              "personal_reason": null
+            }
+        """;
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
 
-        // Mock to simulate existing specific boycott
-        Map<String, AttributeValue> specificBoycott = Map.of(
-                "user_id", AttributeValue.fromS("11111111-2222-3333-4444-555555555555"),
-                "company_cause_id", AttributeValue.fromS("comp1#c1")
+        Map<String, AttributeValue> company = Map.of(
+                "company_name", AttributeValue.fromS("this company")
         );
-        QueryResponse specificBoycottResponse = QueryResponse.builder()
-                .items(specificBoycott)
+        GetItemResponse companyResponse = GetItemResponse.builder()
+                .item(company)
                 .build();
 
-        // First query: userHasAnyBoycott
-        // Second query: userHasSpecificBoycott (returns specific boycott)
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(companyResponse);
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batchGetResponse(Map.of(
+                "causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Environmental issues")))));
         when(dynamoDbMock.query(any(QueryRequest.class)))
-                .thenReturn(QueryResponse.builder().count(0).build()) // userHasAnyBoycott
-                .thenReturn(specificBoycottResponse); // userHasSpecificBoycott returns item
+                .thenReturn(QueryResponse.builder().count(0).build()); // userHasAnyBoycott
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "None", "None", "None", "ThrottlingError", "None",
+                        "None", "None", "None", "None")) // packed c1 + c2
+                .thenThrow(canceled("None", "None", "None", "None", "ThrottlingError", "None")) // c1 alone
+                .thenThrow(canceled("None", "None", "None", "None", "ThrottlingError", "None")) // c1, first retry
+                .thenThrow(canceled("None", "None", "None", "None", "ThrottlingError", "None")) // c1, second retry
+                .thenReturn(TransactWriteItemsResponse.builder().build()); // c2 alone
 
         var response = handler.handleRequest(event, mock(Context.class));
-        assertEquals(409, response.getStatusCode());
+        assertEquals(207, response.getStatusCode());
+        assertTrue(response.getBody().contains("c1"));
+        verify(dynamoDbMock, times(5)).transactWriteItems(any(TransactWriteItemsRequest.class));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,378 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class BulkAddUserBoycottsHandlerTest {
+
+    private static final String USER_ID = "11111111-2222-3333-4444-555555555555";
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    private BulkAddUserBoycottsHandler handler;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeEach
+    public void setup() {
+        handler = new BulkAddUserBoycottsHandler(dynamoDbMock);
+        ValidationCache.COMPANIES.clear();
+        ValidationCache.CAUSES.clear();
+    }
+
+    private static APIGatewayProxyRequestEvent authorizedEvent(String body) {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(body);
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", USER_ID));
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+        return event;
+    }
+
+    /**
+     * Answers the company validator with the given company_id -> company_name pairs.
+     */
+    private void companies(Map<String, String> names) {
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenAnswer(invocation -> {
+            GetItemRequest request = invocation.getArgument(0);
+            String name = names.get(request.key().get("company_id").s());
+            return name == null ? GetItemResponse.builder().build()
+                    : GetItemResponse.builder().item(Map.of("company_name", AttributeValue.fromS(name))).build();
+        });
+    }
+
+    private static Map<String, AttributeValue> causeItem(String causeId, String causeDesc) {
+        return Map.of("cause_id", AttributeValue.fromS(causeId), "cause_desc", AttributeValue.fromS(causeDesc));
+    }
+
+    private static long count(TransactWriteItemsRequest request, String table) {
+        return request.transactItems().stream()
+                .filter(item -> table.equals(item.put() != null ? item.put().tableName()
+                        : item.update() != null ? item.update().tableName() : null))
+                .count();
+    }
+
+    private static long markers(TransactWriteItemsRequest request) {
+        return request.transactItems().stream()
+                .filter(item -> item.put() != null && BoycottActions.MARKER_TABLE.equals(item.put().tableName()))
+                .count();
+    }
+
+    @Test
+    public void testCompaniesShareOneReadAndOneTransaction() throws Exception {
+        String body = """
+            {
+              "companies": [
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] },
+                { "company_id": "comp2", "company_name": "Two",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] },
+                { "company_id": "comp3", "company_name": "Three", "personal_reason": "Mine" },
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] }
+              ]
+            }
+        """;
+        companies(Map.of("comp1", "One", "comp2", "Two", "comp3", "Three"));
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights")))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        // one query over the whole partition instead of one per company
+        ArgumentCaptor<QueryRequest> query = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(dynamoDbMock, times(1)).query(query.capture());
+        assertEquals("user_id = :uid", query.getValue().keyConditionExpression());
+        verify(dynamoDbMock, times(1)).batchGetItem(any(BatchGetItemRequest.class));
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(1)).transactWriteItems(captor.capture());
+        TransactWriteItemsRequest sent = captor.getValue();
+        assertEquals(3, markers(sent));
+        assertEquals(3, count(sent, "companies"));
+        // the repeated comp1 entry is merged and c1 is followed once for both companies
+        assertEquals(3, count(sent, "user_boycotts"));
+        assertEquals(1, count(sent, "user_causes"));
+        assertEquals(1, count(sent, "causes"));
+
+        JsonNode results = objectMapper.readTree(response.getBody()).get("results");
+        assertEquals(3, results.size());
+        assertEquals("comp1", results.get(0).get("company_id").asText());
+        assertEquals("recorded", results.get(0).get("status").asText());
+        assertEquals("recorded", results.get(1).get("causes").get("c1").asText());
+        assertEquals("recorded", results.get(2).get("personal_reasons").get("Mine").asText());
+    }
+
+    @Test
+    public void testMixedResultsAreReportedPerCompanyAndCause() throws Exception {
+        String body = """
+            {
+              "companies": [
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" },
+                               { "cause_id": "c2", "cause_desc": "Climate" },
+                               { "cause_id": "c3", "cause_desc": "Made up" } ] },
+                { "company_id": "comp2", "company_name": "Not two" }
+              ]
+            }
+        """;
+        companies(Map.of("comp1", "One", "comp2", "Two"));
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Climate"))))
+                .build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder()
+                .items(Map.of("company_cause_id", AttributeValue.fromS("comp1#c1")),
+                        Map.of("company_cause_id", AttributeValue.fromS("comp9#c2")))
+                .build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(207, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        // comp1 already has a row, so it gets no marker; comp2 is skipped entirely
+        assertEquals(0, markers(captor.getValue()));
+        assertEquals(1, count(captor.getValue(), "user_boycotts"));
+
+        JsonNode results = objectMapper.readTree(response.getBody()).get("results");
+        JsonNode causes = results.get(0).get("causes");
+        assertEquals("recorded", results.get(0).get("status").asText());
+        assertEquals("duplicate", causes.get("c1").asText());
+        assertEquals("recorded", causes.get("c2").asText());
+        assertEquals("invalid_cause", causes.get("c3").asText());
+        assertEquals("invalid_company", results.get(1).get("status").asText());
+    }
+
+    @Test
+    public void testLostFirstBoycottRaceDropsOnlyThatCompanysRiders() {
+        String body = """
+            {
+              "companies": [
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] },
+                { "company_id": "comp2", "company_name": "Two",
+                  "reasons": [ { "cause_id": "c2", "cause_desc": "Climate" } ] }
+              ]
+            }
+        """;
+        companies(Map.of("comp1", "One", "comp2", "Two"));
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Climate"))))
+                .build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        // comp1's marker (the first rider) already exists
+        List<String> codes = new ArrayList<>(Collections.nCopies(12, "None"));
+        codes.set(0, "ConditionalCheckFailed");
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(TransactionCanceledException.builder()
+                        .message("Transaction cancelled")
+                        .cancellationReasons(codes.stream().map(code -> CancellationReason.builder().code(code).build()).toList())
+                        .build())
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        TransactWriteItemsRequest resent = captor.getAllValues().get(1);
+        assertEquals(10, resent.transactItems().size());
+        List<String> companies = resent.transactItems().stream()
+                .filter(item -> item.update() != null && "companies".equals(item.update().tableName()))
+                .map(item -> item.update().key().get("company_id").s())
+                .toList();
+        assertEquals(List.of("comp2"), companies);
+    }
+
+    @Test
+    public void testFollowGoesOutWithWhicheverCompanyRecordsTheCause() throws Exception {
+        String body = """
+            {
+              "companies": [
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] },
+                { "company_id": "comp2", "company_name": "Two",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] }
+              ]
+            }
+        """;
+        companies(Map.of("comp1", "One", "comp2", "Two"));
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights")))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        // comp1's riders, the follow of c1 and comp2's riders, then comp1's c1 row turns out to exist already
+        List<String> codes = new ArrayList<>(Collections.nCopies(10, "None"));
+        codes.set(6, "ConditionalCheckFailed");
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(TransactionCanceledException.builder()
+                        .message("Transaction cancelled")
+                        .cancellationReasons(codes.stream().map(code -> CancellationReason.builder().code(code).build()).toList())
+                        .build())
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(200, response.getStatusCode());
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(captor.capture());
+        // the follow is not lost with comp1's unit: it goes out with comp2's
+        TransactWriteItemsRequest resent = captor.getAllValues().get(1);
+        assertEquals(1, count(resent, "user_causes"));
+        assertEquals(1, count(resent, "causes"));
+        assertEquals(1, markers(resent));
+
+        JsonNode results = objectMapper.readTree(response.getBody()).get("results");
+        assertEquals("duplicate", results.get(0).get("causes").get("c1").asText());
+        assertEquals("recorded", results.get(1).get("causes").get("c1").asText());
+    }
+
+    private static boolean writes(TransactWriteItemsRequest request, String companyCauseId) {
+        return request.transactItems().stream().anyMatch(item -> item.put() != null
+                && "user_boycotts".equals(item.put().tableName())
+                && companyCauseId.equals(item.put().item().get("company_cause_id").s()));
+    }
+
+    @Test
+    public void testFailedCauseLeavesItsCompanyPartiallyRecorded() throws Exception {
+        String body = """
+            {
+              "companies": [
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" },
+                               { "cause_id": "c2", "cause_desc": "Climate" } ] },
+                { "company_id": "comp2", "company_name": "Two",
+                  "reasons": [ { "cause_id": "c3", "cause_desc": "Privacy" } ] }
+              ]
+            }
+        """;
+        companies(Map.of("comp1", "One", "comp2", "Two"));
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Climate"),
+                        causeItem("c3", "Privacy")))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        // every transaction carrying comp1's c2 row fails for a reason that is not a duplicate
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class))).thenAnswer(invocation -> {
+            if (writes(invocation.getArgument(0), "comp1#c2")) {
+                throw InternalServerErrorException.builder().message("Internal server error").build();
+            }
+            return TransactWriteItemsResponse.builder().build();
+        });
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), mock(Context.class));
+
+        assertEquals(207, response.getStatusCode());
+        // the packed transaction, then each unit on its own
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(4)).transactWriteItems(captor.capture());
+        List<TransactWriteItemsRequest> sent = captor.getAllValues();
+        assertTrue(writes(sent.get(1), "comp1#c1"));
+        assertEquals(1, markers(sent.get(1)));
+        assertTrue(writes(sent.get(2), "comp1#c2"));
+        assertTrue(writes(sent.get(3), "comp2#c3"));
+        assertEquals(1, markers(sent.get(3)));
+
+        JsonNode results = objectMapper.readTree(response.getBody()).get("results");
+        assertEquals("Some boycotts recorded.", objectMapper.readTree(response.getBody()).get("message").asText());
+        JsonNode comp1 = results.get(0);
+        assertEquals(BoycottRecorder.PARTIAL, comp1.get("status").asText());
+        assertEquals("recorded", comp1.get("causes").get("c1").asText());
+        assertEquals(BoycottRecorder.FAILED, comp1.get("causes").get("c2").asText());
+        assertEquals(1, comp1.get("errors").size());
+        assertTrue(comp1.get("errors").get(0).asText().contains("Internal server error"));
+        assertEquals("recorded", results.get(1).get("status").asText());
+        assertEquals(0, results.get(1).get("errors").size());
+    }
+
+    @Test
+    public void testCompaniesLeftWhenTimeRunsOutAreUnprocessed() throws Exception {
+        String body = """
+            {
+              "companies": [
+                { "company_id": "comp1", "company_name": "One",
+                  "reasons": [ { "cause_id": "c1", "cause_desc": "Labor rights" } ] },
+                { "company_id": "comp2", "company_name": "Two",
+                  "reasons": [ { "cause_id": "c2", "cause_desc": "Climate" } ] },
+                { "company_id": "comp3", "company_name": "Three", "personal_reason": "Mine" }
+              ]
+            }
+        """;
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn((int) Deadline.RESERVE_MILLIS + 300);
+        companies(Map.of("comp1", "One", "comp2", "Two", "comp3", "Three"));
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(causeItem("c1", "Labor rights"), causeItem("c2", "Climate"))))
+                .build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        // the packed transaction fails, and comp1's unit on its own takes the rest of the budget
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(InternalServerErrorException.builder().message("Internal server error").build())
+                .thenAnswer(invocation -> {
+                    Thread.sleep(400);
+                    return TransactWriteItemsResponse.builder().build();
+                });
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(body), context);
+
+        assertEquals(207, response.getStatusCode());
+        verify(dynamoDbMock, times(2)).transactWriteItems(any(TransactWriteItemsRequest.class));
+        JsonNode results = objectMapper.readTree(response.getBody()).get("results");
+        assertEquals("recorded", results.get(0).get("status").asText());
+        assertEquals(BoycottRecorder.UNPROCESSED, results.get(1).get("status").asText());
+        assertEquals(BoycottRecorder.UNPROCESSED, results.get(1).get("causes").get("c2").asText());
+        assertEquals(BoycottRecorder.UNPROCESSED, results.get(2).get("status").asText());
+        assertEquals(BoycottRecorder.UNPROCESSED, results.get(2).get("personal_reasons").get("Mine").asText());
+        // nothing was tried and failed, so no errors are reported
+        assertEquals(0, results.get(1).get("errors").size());
+        assertEquals(0, results.get(2).get("errors").size());
+    }
+
+    @Test
+    public void testEmptyAndOversizedRequestsAreRejected() {
+        APIGatewayProxyResponseEvent empty = handler.handleRequest(
+                authorizedEvent("{\"companies\": []}"), mock(Context.class));
+        StringBuilder body = new StringBuilder("{\"companies\": [");
+        for (int i = 0; i <= BulkAddUserBoycottsHandler.MAX_COMPANIES; i++) {
+            body.append(i == 0 ? "" : ",").append("{\"company_id\": \"comp").append(i).append("\"}");
+        }
+        APIGatewayProxyResponseEvent oversized = handler.handleRequest(
+                authorizedEvent(body.append("]}").toString()), mock(Context.class));
+
+        assertEquals(400, empty.getStatusCode());
+        assertEquals(400, oversized.getStatusCode());
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testUnauthorizedUser() {
+        APIGatewayProxyResponseEvent response = handler.handleRequest(
+                new APIGatewayProxyRequestEvent().withBody("{\"companies\": []}"), mock(Context.class));
+
+        assertEquals(401, response.getStatusCode());
+        verifyNoInteractions(dynamoDbMock);
+    }
+}
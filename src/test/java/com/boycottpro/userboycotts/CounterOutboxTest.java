@@ -0,0 +1,117 @@
+package com.boycottpro.userboycotts;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class CounterOutboxTest {
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    private static CounterOutbox.Entry entry(String messageId, String entryId, String companyId) {
+        CounterDeltas deltas = new CounterDeltas();
+        deltas.add("companies", Map.of("company_id", AttributeValue.fromS(companyId)), "boycott_count", 1, Map.of());
+        return new CounterOutbox.Entry(messageId, entryId, deltas);
+    }
+
+    private static TransactionCanceledException canceled(String... codes) {
+        return TransactionCanceledException.builder()
+                .message("Transaction cancelled")
+                .cancellationReasons(Arrays.stream(codes).map(code -> CancellationReason.builder().code(code).build()).toList())
+                .build();
+    }
+
+    private Set<String> drain(List<CounterOutbox.Entry> entries) {
+        return CounterOutbox.drain(new SyncDynamoGateway(dynamoDbMock), entries, Deadline.NONE, Log.NO_REQUEST);
+    }
+
+    @Test
+    public void testActionsWithoutCountersAreLeftAlone() {
+        TransactWriteItem row = TransactWriteItem.builder()
+                .put(Put.builder().tableName("user_boycotts").item(Map.of("user_id", AttributeValue.fromS("u1"))).build())
+                .build();
+        List<TransactWriteItem> actions = new ArrayList<>(List.of(row));
+        List<Object> owners = new ArrayList<>(List.of("row"));
+
+        assertNull(new CounterOutbox("m1").divert(actions, owners));
+
+        assertEquals(List.of(row), actions);
+        assertEquals(List.of("row"), owners);
+    }
+
+    @Test
+    public void testPendingEntriesAreReadAcrossPages() {
+        CounterOutbox.Entry first = entry("m1", "e1", "comp1");
+        CounterOutbox.Entry second = entry("m1", "e2", "comp2");
+        when(dynamoDbMock.query(any(QueryRequest.class)))
+                .thenReturn(QueryResponse.builder().items(first.put().put().item()).lastEvaluatedKey(first.key()).build())
+                // an empty key ends the paging as surely as a missing one
+                .thenReturn(QueryResponse.builder().items(second.put().put().item()).lastEvaluatedKey(Map.of()).build());
+
+        List<CounterOutbox.Entry> pending = CounterOutbox.pending(new SyncDynamoGateway(dynamoDbMock), "m1");
+
+        assertEquals(List.of("e1", "e2"), pending.stream().map(CounterOutbox.Entry::entryId).toList());
+        assertEquals(1, pending.get(1).deltas().amount(ShardedCounters.counterId("companies",
+                Map.of("company_id", AttributeValue.fromS("comp2")))));
+        ArgumentCaptor<QueryRequest> queries = ArgumentCaptor.forClass(QueryRequest.class);
+        verify(dynamoDbMock, times(2)).query(queries.capture());
+        assertTrue(queries.getAllValues().get(0).consistentRead());
+        assertEquals(first.key(), queries.getAllValues().get(1).exclusiveStartKey());
+    }
+
+    @Test
+    public void testEntryReadTwiceIsAppliedOnce() {
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        assertEquals(Set.of(), drain(List.of(entry("m1", "e1", "comp1"), entry("m1", "e1", "comp1"))));
+
+        ArgumentCaptor<TransactWriteItemsRequest> drained = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(drained.capture());
+        List<TransactWriteItem> actions = drained.getValue().transactItems();
+        assertEquals(2, actions.size());
+        assertEquals("1", actions.get(0).update().expressionAttributeValues().get(":n").n());
+        assertEquals("e1", actions.get(1).delete().key().get("entry_id").s());
+    }
+
+    @Test
+    public void testNothingIsSentOnceEveryEntryWasDrainedElsewhere() {
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("None", "ConditionalCheckFailed"));
+
+        assertEquals(Set.of(), drain(List.of(entry("m1", "e1", "comp1"))));
+
+        verify(dynamoDbMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testCancellationNotCausedByADeleteLeavesTheEntries() {
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                // the counter update itself failed its condition
+                .thenThrow(canceled("ConditionalCheckFailed", "None"))
+                .thenThrow(canceled("None", "TransactionConflict"))
+                .thenThrow(TransactionCanceledException.builder().message("Transaction cancelled").build());
+
+        assertEquals(Set.of("m1"), drain(List.of(entry("m1", "e1", "comp1"))));
+        assertEquals(Set.of("m2"), drain(List.of(entry("m2", "e2", "comp1"))));
+        assertEquals(Set.of("m3"), drain(List.of(entry("m3", "e3", "comp1"))));
+
+        verify(dynamoDbMock, times(3)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+}
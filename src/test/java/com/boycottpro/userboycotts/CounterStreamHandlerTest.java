@@ -0,0 +1,199 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.StreamRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class CounterStreamHandlerTest {
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    /**
+     * Builds synthetic stream batches the way Lambda delivers them: one
+     * record per row change, sequence numbers increasing in batch order.
+     */
+    private static class StreamBatch {
+        private final List<DynamodbEvent.DynamodbStreamRecord> records = new ArrayList<>();
+        private long sequence = 1000;
+
+        StreamBatch insert(String table, String... attributes) {
+            return add("INSERT", table, attributes);
+        }
+
+        StreamBatch add(String eventName, String table, String... attributes) {
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> image = new HashMap<>();
+            for (int i = 0; i < attributes.length; i += 2) {
+                image.put(attributes[i],
+                        new com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue().withS(attributes[i + 1]));
+            }
+            DynamodbEvent.DynamodbStreamRecord record = new DynamodbEvent.DynamodbStreamRecord();
+            record.setEventName(eventName);
+            record.setEventSourceARN("arn:aws:dynamodb:us-east-1:123456789012:table/" + table + "/stream/2024-01-01T00:00:00.000");
+            record.setDynamodb(new StreamRecord().withNewImage(image).withSequenceNumber(Long.toString(sequence++)));
+            records.add(record);
+            return this;
+        }
+
+        DynamodbEvent build() {
+            DynamodbEvent event = new DynamodbEvent();
+            event.setRecords(records);
+            return event;
+        }
+    }
+
+    private static Map<String, Update> byKey(TransactWriteItemsRequest request) {
+        Map<String, Update> byKey = new HashMap<>();
+        request.transactItems().forEach(item -> byKey.put(ShardedCounters.counterId(item), item.update()));
+        return byKey;
+    }
+
+    private static StreamBatch follows(int causes) {
+        StreamBatch batch = new StreamBatch();
+        for (int i = 0; i < causes; i++) {
+            batch.insert("user_causes", "user_id", "u1", "cause_id", "c" + i);
+        }
+        return batch;
+    }
+
+    @Test
+    public void testBatchIsCoalescedIntoOneAddPerCounter() {
+        DynamodbEvent event = new StreamBatch()
+                .insert("user_company_boycotts", "user_id", "u1", "company_id", "comp1")
+                .insert("user_boycotts", "user_id", "u1", "company_id", "comp1", "company_name", "Comp",
+                        "cause_id", "c1", "cause_desc", "Labor", "company_cause_id", "comp1#c1")
+                .insert("user_causes", "user_id", "u1", "cause_id", "c1")
+                .insert("user_boycotts", "user_id", "u2", "company_id", "comp1", "company_name", "Comp",
+                        "cause_id", "c1", "cause_desc", "Labor", "company_cause_id", "comp1#c1")
+                .insert("user_causes", "user_id", "u2", "cause_id", "c1")
+                .insert("user_boycotts", "user_id", "u2", "company_id", "comp1", "company_name", "Comp",
+                        "cause_id", "c2", "cause_desc", "Climate", "company_cause_id", "comp1#c2")
+                // a lapsed marker taken over by a later first boycott counts as well
+                .add("MODIFY", "user_company_boycotts", "user_id", "u3", "company_id", "comp1")
+                // personal reasons and anything else but inserts do not count, nor does the marker's TTL expiry
+                .insert("user_boycotts", "user_id", "u2", "company_id", "comp1", "personal_reason", "mine",
+                        "company_cause_id", "comp1#personal#abc")
+                .add("MODIFY", "user_causes", "user_id", "u3", "cause_id", "c1")
+                .add("REMOVE", "user_company_boycotts", "user_id", "u9", "company_id", "comp1")
+                .build();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        StreamsEventResponse response = new CounterStreamHandler(dynamoDbMock).handleRequest(event, mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        // the four counters go out together in one transaction
+        ArgumentCaptor<TransactWriteItemsRequest> captor = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(captor.capture());
+        verify(dynamoDbMock, never()).updateItem(any(UpdateItemRequest.class));
+        Map<String, Update> updates = byKey(captor.getValue());
+        assertEquals(4, updates.size());
+        assertEquals("2", updates.get("companies#comp1#boycott_count").expressionAttributeValues().get(":n").n());
+        assertEquals("2", updates.get("causes#c1#follower_count").expressionAttributeValues().get(":n").n());
+        Update stats = updates.get("cause_company_stats#c1#comp1#boycott_count");
+        assertEquals("2", stats.expressionAttributeValues().get(":n").n());
+        assertEquals("SET cause_desc = if_not_exists(cause_desc, :cause_desc), "
+                + "company_name = if_not_exists(company_name, :company_name) ADD boycott_count :n", stats.updateExpression());
+        assertEquals("1", updates.get("cause_company_stats#c2#comp1#boycott_count").expressionAttributeValues().get(":n").n());
+        assertEquals("ADD follower_count :n", updates.get("causes#c1#follower_count").updateExpression());
+    }
+
+    @Test
+    public void testFailedRunIsReportedByItsFirstRecordAndNothingAfterIsSent() {
+        DynamodbEvent event = follows(101).build();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(ProvisionedThroughputExceededException.builder().message("slow down").build());
+
+        StreamsEventResponse response = new CounterStreamHandler(dynamoDbMock).handleRequest(event, mock(Context.class));
+
+        // none of the batch was applied, so the retry starts from the first record
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals("1000", response.getBatchItemFailures().get(0).getItemIdentifier());
+        verify(dynamoDbMock).transactWriteItems(any(TransactWriteItemsRequest.class));
+        verify(dynamoDbMock, never()).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void testRunsAreCutAtTheTransactionLimitAndAppliedInOrder() {
+        DynamodbEvent event = follows(101)
+                .insert("user_causes", "user_id", "u2", "cause_id", "c100")
+                .build();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
+                .thenThrow(ProvisionedThroughputExceededException.builder().message("slow down").build());
+
+        StreamsEventResponse response = new CounterStreamHandler(dynamoDbMock).handleRequest(event, mock(Context.class));
+
+        // the first 100 counters committed; the retry resumes at the 101st, whose run also holds the second c100 follow
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals("1100", response.getBatchItemFailures().get(0).getItemIdentifier());
+        ArgumentCaptor<TransactWriteItemsRequest> transaction = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock).transactWriteItems(transaction.capture());
+        assertEquals(100, transaction.getValue().transactItems().size());
+        ArgumentCaptor<UpdateItemRequest> update = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(dynamoDbMock).updateItem(update.capture());
+        assertEquals("2", update.getValue().expressionAttributeValues().get(":n").n());
+    }
+
+    @Test
+    public void testEmptyBatchWritesNothing() {
+        StreamsEventResponse response = new CounterStreamHandler(dynamoDbMock)
+                .handleRequest(new StreamBatch().build(), mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testOnlyRecordsThatStandForACounterAreApplied() {
+        DynamodbEvent event = new StreamBatch()
+                .add("REMOVE", "user_causes", "user_id", "u1", "cause_id", "c1")
+                .add("MODIFY", "user_boycotts", "user_id", "u1", "company_id", "comp1", "cause_id", "c1")
+                .insert("user_causes", "user_id", "u1", "cause_id", "c2")
+                .insert("user_causes", "user_id", "u1", "cause_id", "c3")
+                .insert("user_company_boycotts", "user_id", "u1")
+                .insert("user_boycotts", "user_id", "u1", "company_id", "comp1", "company_cause_id", "comp1#personal#ab")
+                .insert("user_boycotts", "user_id", "u1", "cause_id", "c1")
+                .insert("user_causes", "user_id", "u1")
+                .insert("idempotency_records", "idempotency_key", "u1#k1")
+                .insert("user_causes", "user_id", "u1", "cause_id", "c1")
+                .build();
+        event.getRecords().get(2).setDynamodb(null);
+        event.getRecords().get(3).getDynamodb().setNewImage(null);
+
+        StreamsEventResponse response = new CounterStreamHandler(dynamoDbMock).handleRequest(event, mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        // only the last record counts, so its lone counter goes out as a plain update
+        ArgumentCaptor<UpdateItemRequest> update = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(dynamoDbMock).updateItem(update.capture());
+        assertEquals("causes", update.getValue().tableName());
+        assertEquals("c1", update.getValue().key().get("cause_id").s());
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testTableNameFromStreamArn() {
+        assertEquals("user_causes", CounterStreamHandler.tableName(
+                "arn:aws:dynamodb:us-east-1:123456789012:table/user_causes/stream/2024-01-01T00:00:00.000"));
+        assertEquals("user_causes", CounterStreamHandler.tableName("arn:aws:dynamodb:us-east-1:123456789012:table/user_causes"));
+        assertEquals("", CounterStreamHandler.tableName(null));
+        assertEquals("", CounterStreamHandler.tableName("arn:aws:sqs:us-east-1:123456789012:queue"));
+    }
+}
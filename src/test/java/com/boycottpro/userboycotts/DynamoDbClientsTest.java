@@ -0,0 +1,95 @@
+package com.boycottpro.userboycotts;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.ContainerCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class DynamoDbClientsTest {
+
+    private static DynamoDbClients.HttpSettings settings(String client, boolean keepAlive) {
+        return new DynamoDbClients.HttpSettings(client, 8, Duration.ofMillis(500), Duration.ofSeconds(30),
+                keepAlive, Duration.ofSeconds(10));
+    }
+
+    @Test
+    public void testUrlConnectionClientIsBuiltWhenPicked() {
+        try (SdkHttpClient client = DynamoDbClients.httpClient(settings(DynamoDbClients.URL_CONNECTION, true))) {
+            assertInstanceOf(UrlConnectionHttpClient.class, client);
+        }
+    }
+
+    @Test
+    public void testCrtClientIsBuiltWithAndWithoutKeepAlive() {
+        try (SdkHttpClient keepAlive = DynamoDbClients.httpClient(settings(DynamoDbClients.CRT, true));
+             SdkHttpClient plain = DynamoDbClients.httpClient(settings(DynamoDbClients.CRT, false))) {
+            assertInstanceOf(AwsCrtHttpClient.class, keepAlive);
+            assertInstanceOf(AwsCrtHttpClient.class, plain);
+        }
+    }
+
+    @Test
+    public void testAsyncClientIsAlwaysCrt() {
+        try (SdkAsyncHttpClient keepAlive = DynamoDbClients.asyncHttpClient(settings(DynamoDbClients.URL_CONNECTION, true));
+             SdkAsyncHttpClient plain = DynamoDbClients.asyncHttpClient(settings(DynamoDbClients.CRT, false))) {
+            assertInstanceOf(AwsCrtAsyncHttpClient.class, keepAlive);
+            assertInstanceOf(AwsCrtAsyncHttpClient.class, plain);
+        }
+    }
+
+    @Test
+    public void testRemovedApacheClientIsRejected() {
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> DynamoDbClients.httpClient(settings("apache", true)));
+        assertTrue(e.getMessage().contains("apache"));
+    }
+
+    @Test
+    public void testBundledUrlConnectionClientIsTheDefault() {
+        // both clients are on the test class path; a packaged build carries only one
+        assertEquals(DynamoDbClients.URL_CONNECTION, DynamoDbClients.bundledClient());
+        assertFalse(DynamoDbClients.isPresent("software.amazon.awssdk.http.apache.ApacheHttpClient"));
+    }
+
+    @Test
+    public void testGatewayFollowsTheExecutionMode() {
+        DynamoDbClient dynamoDb = mock(DynamoDbClient.class);
+        assertInstanceOf(SyncDynamoGateway.class, DynamoDbClients.gateway("sync", 4, dynamoDb));
+        assertInstanceOf(SyncDynamoGateway.class, DynamoDbClients.gateway("anything else", 4, dynamoDb));
+        assertInstanceOf(VirtualThreadDynamoGateway.class, DynamoDbClients.gateway("Virtual", 4, dynamoDb));
+        assertInstanceOf(AsyncDynamoGateway.class, DynamoDbClients.gateway("async", 4, dynamoDb));
+    }
+
+    @Test
+    public void testContainerCredentialsAreUsedUnderSnapStart() {
+        assertInstanceOf(ContainerCredentialsProvider.class,
+                DynamoDbClients.credentialsProvider("http://169.254.170.2/v1/credentials"));
+        assertInstanceOf(EnvironmentVariableCredentialsProvider.class, DynamoDbClients.credentialsProvider(null));
+    }
+
+    @Test
+    public void testSharedClientsAreBuiltOnceAndReplacedOnRefresh() {
+        DynamoDbClient client = DynamoDbClients.shared();
+        DynamoDbAsyncClient asyncClient = DynamoDbClients.sharedAsync();
+        assertSame(client, DynamoDbClients.shared());
+        assertSame(asyncClient, DynamoDbClients.sharedAsync());
+
+        DynamoDbClients.refresh();
+
+        assertNotSame(client, DynamoDbClients.shared());
+        assertNotSame(asyncClient, DynamoDbClients.sharedAsync());
+        assertSame(DynamoDbClients.shared(), DynamoDbClients.shared());
+        assertNotNull(DynamoDbClients.configuredGateway(DynamoDbClients.shared()));
+    }
+}
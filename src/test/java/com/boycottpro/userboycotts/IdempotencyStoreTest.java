@@ -0,0 +1,104 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class IdempotencyStoreTest {
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    private IdempotencyStore store() {
+        return new IdempotencyStore(new SyncDynamoGateway(dynamoDbMock), () -> 1_700_000_000_000L, Log.NO_REQUEST);
+    }
+
+    private static APIGatewayProxyRequestEvent event(Map<String, String> headers) {
+        return new APIGatewayProxyRequestEvent().withHeaders(headers);
+    }
+
+    private static ConditionalCheckFailedException taken(Map<String, AttributeValue> item) {
+        return ConditionalCheckFailedException.builder().message("The conditional request failed").item(item).build();
+    }
+
+    @Test
+    public void testOnlyANonBlankIdempotencyKeyIsClaimed() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-Request-Id", "r1");
+        headers.put("Idempotency-Key", null);
+        assertNull(IdempotencyStore.header(event(headers)));
+        assertNull(IdempotencyStore.header(event(Map.of("idempotency-key", "  "))));
+        assertNull(IdempotencyStore.header(event(null)));
+        assertEquals("k1", IdempotencyStore.header(event(Map.of("IDEMPOTENCY-KEY", " k1 "))));
+
+        IdempotencyStore.Claim claim = store().claim("u1", event(Map.of("X-Request-Id", "r1")));
+
+        assertNull(claim.response());
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testOverlongKeyIsRefusedWithoutACall() {
+        String key = "k".repeat(IdempotencyStore.MAX_KEY_LENGTH + 1);
+
+        APIGatewayProxyResponseEvent response = store().claim("u1", event(Map.of(IdempotencyStore.HEADER, key))).response();
+
+        assertEquals(400, response.getStatusCode());
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testClaimTakenWithoutARecordToCompareIsStillInProgress() {
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
+                // no item came back, and then one whose completion stored no response
+                .thenThrow(taken(null))
+                .thenThrow(taken(Map.of("status", AttributeValue.fromS("COMPLETED"))));
+
+        assertEquals(409, store().claim("u1", event(Map.of(IdempotencyStore.HEADER, "k1"))).response().getStatusCode());
+        assertEquals(409, store().claim("u1", event(Map.of(IdempotencyStore.HEADER, "k1"))).response().getStatusCode());
+    }
+
+    @Test
+    public void testFailedClaimProcessesTheRequestWithoutAKey() {
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
+                .thenThrow(ProvisionedThroughputExceededException.builder().message("slow down").build());
+
+        IdempotencyStore.Claim claim = store().claim("u1", event(Map.of(IdempotencyStore.HEADER, "k1")));
+
+        assertNull(claim.response());
+        // with nothing claimed, completing it writes nothing
+        APIGatewayProxyResponseEvent done = new APIGatewayProxyResponseEvent().withStatusCode(200);
+        assertSame(done, claim.complete(done));
+        verify(dynamoDbMock, times(1)).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void testResponseWithoutABodyIsStoredAsEmptyAndAFailedStoreIsTolerated() {
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class)))
+                .thenReturn(UpdateItemResponse.builder().build())
+                .thenThrow(ProvisionedThroughputExceededException.builder().message("slow down").build());
+        IdempotencyStore.Claim claim = store().claim("u1",
+                event(Map.of(IdempotencyStore.HEADER, "k1")).withBody(null));
+        APIGatewayProxyResponseEvent done = new APIGatewayProxyResponseEvent().withStatusCode(204);
+
+        assertSame(done, claim.complete(done));
+
+        ArgumentCaptor<UpdateItemRequest> updates = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(dynamoDbMock, times(2)).updateItem(updates.capture());
+        assertEquals("", updates.getAllValues().get(1).expressionAttributeValues().get(":body").s());
+    }
+}
@@ -0,0 +1,159 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class LegacyPersonalReasonMigrationTest {
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    @InjectMocks
+    private LegacyPersonalReasonMigration migration;
+
+    private static Map<String, AttributeValue> row(String sortKey, String reason) {
+        return Map.of(
+                "user_id", AttributeValue.fromS("u1"),
+                "company_id", AttributeValue.fromS("comp1"),
+                "company_name", AttributeValue.fromS("this company"),
+                "company_cause_id", AttributeValue.fromS(sortKey),
+                "personal_reason", AttributeValue.fromS(reason),
+                "timestamp", AttributeValue.fromS("2024-01-01T00:00:00Z"));
+    }
+
+    private static TransactionCanceledException canceled(String... codes) {
+        return TransactionCanceledException.builder()
+                .message("Transaction cancelled")
+                .cancellationReasons(Arrays.stream(codes).map(code -> CancellationReason.builder().code(code).build()).toList())
+                .build();
+    }
+
+    @Test
+    public void testLegacyRowsAreMovedUnderTheirCompany() {
+        Map<String, AttributeValue> lastKey = Map.of(
+                "user_id", AttributeValue.fromS("u1"),
+                "company_cause_id", AttributeValue.fromS("Bad labor#comp1"));
+        when(dynamoDbMock.scan(any(ScanRequest.class)))
+                .thenReturn(ScanResponse.builder().items(
+                        row(UserBoycottsView.personalReasonKey("comp1", "Already moved"), "Already moved"),
+                        row("Bad labor#comp1", "Bad labor")).lastEvaluatedKey(lastKey).build())
+                .thenReturn(ScanResponse.builder().items(row("BAD LABOR #comp1", "BAD  labor ")).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build())
+                // the second spelling normalizes onto the row the first one was moved to
+                .thenThrow(canceled("ConditionalCheckFailed", "None"));
+
+        Map<String, Object> result = migration.handleRequest(Map.of(), mock(Context.class));
+
+        assertEquals(3, result.get("scanned"));
+        assertEquals(1, result.get("migrated"));
+        assertEquals(1, result.get("merged"));
+        assertFalse(result.containsKey(LegacyPersonalReasonMigration.LAST_EVALUATED_KEY));
+        ArgumentCaptor<ScanRequest> scans = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(dynamoDbMock, times(2)).scan(scans.capture());
+        // DynamoDB rejects a filter that names a key attribute
+        assertEquals(ScanRequest.builder()
+                .tableName("user_boycotts")
+                .filterExpression("attribute_exists(personal_reason)")
+                .limit(LegacyPersonalReasonMigration.PAGE_SIZE)
+                .build(), scans.getAllValues().get(0));
+        assertEquals(lastKey, scans.getAllValues().get(1).exclusiveStartKey());
+
+        ArgumentCaptor<TransactWriteItemsRequest> transactions = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(2)).transactWriteItems(transactions.capture());
+        List<TransactWriteItem> moved = transactions.getAllValues().get(0).transactItems();
+        Put put = moved.get(0).put();
+        assertEquals(UserBoycottsView.personalReasonKey("comp1", "Bad labor"), put.item().get("company_cause_id").s());
+        assertEquals("Bad labor", put.item().get("personal_reason").s());
+        assertEquals("this company", put.item().get("company_name").s());
+        assertEquals("attribute_not_exists(company_cause_id)", put.conditionExpression());
+        Delete delete = moved.get(1).delete();
+        assertEquals("Bad labor#comp1", delete.key().get("company_cause_id").s());
+        assertEquals("attribute_exists(company_cause_id)", delete.conditionExpression());
+
+        ArgumentCaptor<DeleteItemRequest> merged = ArgumentCaptor.forClass(DeleteItemRequest.class);
+        verify(dynamoDbMock).deleteItem(merged.capture());
+        assertEquals("BAD LABOR #comp1", merged.getValue().key().get("company_cause_id").s());
+    }
+
+    @Test
+    public void testRowMovedByAnotherRunIsSkipped() {
+        when(dynamoDbMock.scan(any(ScanRequest.class)))
+                .thenReturn(ScanResponse.builder().items(row("Bad labor#comp1", "Bad labor")).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("ConditionalCheckFailed", "ConditionalCheckFailed"));
+
+        Map<String, Object> result = migration.handleRequest(null, mock(Context.class));
+
+        assertEquals(0, result.get("migrated"));
+        assertEquals(0, result.get("merged"));
+        verify(dynamoDbMock, never()).deleteItem(any(DeleteItemRequest.class));
+    }
+
+    @Test
+    public void testOnlyPersonalReasonsOutsideTheirCompanyRangeAreLegacy() {
+        assertTrue(LegacyPersonalReasonMigration.isLegacy(row("Bad labor#comp1", "Bad labor")));
+        assertFalse(LegacyPersonalReasonMigration.isLegacy(row("comp1#personal#ab", "Bad labor")));
+        for (String missing : List.of("company_id", "company_cause_id", "personal_reason")) {
+            Map<String, AttributeValue> row = new HashMap<>(row("Bad labor#comp1", "Bad labor"));
+            row.remove(missing);
+            assertFalse(LegacyPersonalReasonMigration.isLegacy(row), missing);
+            row.put(missing, AttributeValue.fromN("1"));
+            assertFalse(LegacyPersonalReasonMigration.isLegacy(row), missing);
+        }
+    }
+
+    @Test
+    public void testCancellationForAnotherReasonFailsTheRun() {
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("TransactionConflict", "None"));
+
+        assertThrows(TransactionCanceledException.class,
+                () -> migration.migrate(row("Bad labor#comp1", "Bad labor")));
+        verify(dynamoDbMock, never()).deleteItem(any(DeleteItemRequest.class));
+    }
+
+    @Test
+    public void testDuplicateDeletedByAnotherRunIsSkipped() {
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenThrow(canceled("ConditionalCheckFailed", "None"));
+        when(dynamoDbMock.deleteItem(any(DeleteItemRequest.class)))
+                .thenThrow(ConditionalCheckFailedException.builder().message("The conditional request failed").build());
+
+        assertEquals(LegacyPersonalReasonMigration.Outcome.SKIPPED, migration.migrate(row("Bad labor#comp1", "Bad labor")));
+    }
+
+    @Test
+    public void testStopsBetweenPagesWhenOutOfTimeAndResumesFromTheKey() {
+        Context context = mock(Context.class);
+        // inside the reserve: one page is migrated, then the key to resume from comes back
+        when(context.getRemainingTimeInMillis()).thenReturn((int) Deadline.RESERVE_MILLIS / 2);
+        when(dynamoDbMock.scan(any(ScanRequest.class))).thenReturn(ScanResponse.builder().items(List.of())
+                .lastEvaluatedKey(Map.of(
+                        "user_id", AttributeValue.fromS("u2"),
+                        "company_cause_id", AttributeValue.fromS("x#comp9"))).build());
+
+        Map<String, Object> result = migration.handleRequest(Map.of(LegacyPersonalReasonMigration.START_KEY,
+                Map.of("user_id", "u1", "company_cause_id", "a#comp1")), context);
+
+        assertEquals(Map.of("user_id", "u2", "company_cause_id", "x#comp9"),
+                result.get(LegacyPersonalReasonMigration.LAST_EVALUATED_KEY));
+        ArgumentCaptor<ScanRequest> scan = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(dynamoDbMock, times(1)).scan(scan.capture());
+        assertEquals("a#comp1", scan.getValue().exclusiveStartKey().get("company_cause_id").s());
+    }
+}
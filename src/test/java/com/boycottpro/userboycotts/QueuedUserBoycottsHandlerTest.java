@@ -0,0 +1,321 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class QueuedUserBoycottsHandlerTest {
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    @BeforeEach
+    public void setup() {
+        ValidationCache.COMPANIES.clear();
+        ValidationCache.CAUSES.clear();
+    }
+
+    private static SQSEvent.SQSMessage message(String id, String body) {
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        message.setMessageId(id);
+        message.setBody(body);
+        return message;
+    }
+
+    private static SQSEvent.SQSMessage boycott(String id, String userId, String causeId) {
+        return message(id, """
+            {
+              "user_id": "%s",
+              "company_id": "comp1",
+              "company_name": "this company",
+              "reasons": [ { "cause_id": "%s", "cause_desc": "desc %s" } ]
+            }
+        """.formatted(userId, causeId, causeId));
+    }
+
+    private static SQSEvent event(SQSEvent.SQSMessage... messages) {
+        SQSEvent event = new SQSEvent();
+        event.setRecords(List.of(messages));
+        return event;
+    }
+
+    private void stubReads() {
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(
+                        Map.of("cause_id", AttributeValue.fromS("c1"), "cause_desc", AttributeValue.fromS("desc c1")),
+                        Map.of("cause_id", AttributeValue.fromS("c2"), "cause_desc", AttributeValue.fromS("desc c2")))))
+                .build());
+    }
+
+    private static boolean isCounter(TransactWriteItem item) {
+        return ShardedCounters.counterId(item) != null;
+    }
+
+    private static boolean isOutboxPut(TransactWriteItem item) {
+        return item.put() != null && CounterOutbox.TABLE.equals(item.put().tableName());
+    }
+
+    private static boolean isDrain(TransactWriteItemsRequest request) {
+        return request.transactItems().stream().anyMatch(item -> item.delete() != null
+                && CounterOutbox.TABLE.equals(item.delete().tableName()));
+    }
+
+    private static Map<String, String> amounts(TransactWriteItemsRequest drain) {
+        Map<String, String> amounts = new HashMap<>();
+        drain.transactItems().stream().filter(QueuedUserBoycottsHandlerTest::isCounter).forEach(item -> amounts.put(
+                ShardedCounters.counterId(item.update().tableName(), item.update().key()),
+                item.update().expressionAttributeValues().get(":n").n()));
+        return amounts;
+    }
+
+    private static Context remaining(long millis) {
+        Context context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn((int) millis);
+        return context;
+    }
+
+    @Test
+    public void testCounterIncrementsAreCoalescedAcrossRecords() {
+        stubReads();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).handleRequest(
+                event(boycott("m1", "u1", "c1"), boycott("m2", "u2", "c1"), boycott("m3", "u3", "c2")),
+                mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        ArgumentCaptor<TransactWriteItemsRequest> transactions = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(4)).transactWriteItems(transactions.capture());
+        verify(dynamoDbMock, never()).updateItem(any(UpdateItemRequest.class));
+        // each record's transaction writes its increments to the outbox rather than to the counters
+        List<TransactWriteItemsRequest> records = transactions.getAllValues().subList(0, 3);
+        for (TransactWriteItemsRequest record : records) {
+            assertTrue(record.transactItems().stream().noneMatch(QueuedUserBoycottsHandlerTest::isCounter));
+            assertEquals(1, record.transactItems().stream().filter(QueuedUserBoycottsHandlerTest::isOutboxPut).count());
+        }
+        assertEquals(Set.of("m1", "m2", "m3"), records.stream().flatMap(record -> record.transactItems().stream())
+                .filter(QueuedUserBoycottsHandlerTest::isOutboxPut)
+                .map(item -> item.put().item().get("message_id").s()).collect(java.util.stream.Collectors.toSet()));
+        // one drain applies the coalesced increments and deletes the three entries
+        TransactWriteItemsRequest drain = transactions.getAllValues().get(3);
+        assertTrue(isDrain(drain));
+        assertEquals(8, drain.transactItems().size());
+        assertEquals(3, drain.transactItems().stream().filter(item -> item.delete() != null).count());
+        assertEquals(Map.of(
+                "companies#comp1#boycott_count", "3",
+                "causes#c1#follower_count", "2",
+                "causes#c2#follower_count", "1",
+                "cause_company_stats#c1#comp1#boycott_count", "2",
+                "cause_company_stats#c2#comp1#boycott_count", "1"), amounts(drain));
+    }
+
+    @Test
+    public void testOnlyRetryableFailuresAreReportedAndTheRestDropped() throws Exception {
+        stubReads();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        when(dynamoDbMock.transactWriteItems(argThat((TransactWriteItemsRequest request) -> request.transactItems().stream()
+                .anyMatch(item -> item.put() != null && AttributeValue.fromS("u3").equals(item.put().item().get("user_id"))))))
+                .thenThrow(ProvisionedThroughputExceededException.builder().message("slow down").build());
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).withLogSink(lines::add).handleRequest(
+                event(boycott("m1", "u1", "c1"), message("m2", "{not json"), boycott("m3", "u3", "c1"),
+                        message("m4", "{\"company_id\": \"comp1\"}"),
+                        message("m5", "{\"user_id\": \"u5\", \"company_id\": \"comp1\", \"company_name\": \"other\"}")),
+                mock(Context.class));
+
+        // m2, m4 and m5 would fail the same way every time, so only the throttled m3 comes back
+        assertEquals(List.of("m3"), response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier).toList());
+        // only m1 committed, so only its increments are applied
+        ArgumentCaptor<TransactWriteItemsRequest> transactions = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, atLeastOnce()).transactWriteItems(transactions.capture());
+        List<TransactWriteItemsRequest> drains = transactions.getAllValues().stream()
+                .filter(QueuedUserBoycottsHandlerTest::isDrain).toList();
+        assertEquals(1, drains.size());
+        assertEquals(Map.of(
+                "companies#comp1#boycott_count", "1",
+                "causes#c1#follower_count", "1",
+                "cause_company_stats#c1#comp1#boycott_count", "1"), amounts(drains.get(0)));
+        assertEquals("m1", drains.get(0).transactItems().get(3).delete().key().get("message_id").s());
+        // the message lines name their user where the message did
+        ObjectMapper objectMapper = new ObjectMapper();
+        Map<String, JsonNode> byMessage = new HashMap<>();
+        for (String line : lines) {
+            JsonNode json = objectMapper.readTree(line);
+            String text = json.path("message").asText();
+            if (text.contains("message m")) {
+                byMessage.put(text.substring(text.indexOf("message m") + "message ".length()).split("[ ,]")[0], json);
+            }
+        }
+        assertEquals(Set.of("m2", "m3", "m4", "m5"), byMessage.keySet());
+        assertTrue(byMessage.get("m3").path("message").asText().startsWith("Failed to record"));
+        assertEquals("u3", byMessage.get("m3").path("sub").asText());
+        assertTrue(byMessage.get("m5").path("message").asText().startsWith("Dropped"));
+        assertEquals("u5", byMessage.get("m5").path("sub").asText());
+        assertTrue(byMessage.get("m2").path("message").asText().startsWith("Dropped"));
+        assertFalse(byMessage.get("m2").has("sub"));
+    }
+
+    @Test
+    public void testStreamCounterModeLeavesCountersToTheStream() {
+        stubReads();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).withCountersFromStream(true)
+                .handleRequest(event(boycott("m1", "u1", "c1")), mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        ArgumentCaptor<TransactWriteItemsRequest> transactions = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(1)).transactWriteItems(transactions.capture());
+        assertTrue(transactions.getValue().transactItems().stream()
+                .noneMatch(item -> isCounter(item) || isOutboxPut(item)));
+        verify(dynamoDbMock, never()).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void testMessagesWhoseEntriesWereNotDrainedAreRedelivered() {
+        stubReads();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        when(dynamoDbMock.transactWriteItems(argThat((TransactWriteItemsRequest request) -> isDrain(request))))
+                .thenThrow(InternalServerErrorException.builder().message("try again").build());
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).handleRequest(
+                event(boycott("m1", "u1", "c1"), boycott("m2", "u2", "c2")), mock(Context.class));
+
+        // the rows are written, but their increments are only in the outbox until a redelivery drains them
+        assertEquals(List.of("m1", "m2"), response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier).toList());
+        verify(dynamoDbMock, times(3)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testNoDrainStartsOnceTheDeadlineIsNearlyUsedUp() {
+        stubReads();
+        // the record's transaction starts in time and finishes inside the reserve
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class))).thenAnswer(invocation -> {
+            Thread.sleep(400);
+            return TransactWriteItemsResponse.builder().build();
+        });
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).handleRequest(
+                event(boycott("m1", "u1", "c1")), remaining(Deadline.RESERVE_MILLIS + 300));
+
+        assertEquals(List.of("m1"), response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier).toList());
+        verify(dynamoDbMock, times(1)).transactWriteItems(argThat((TransactWriteItemsRequest request) -> !isDrain(request)));
+        verify(dynamoDbMock, never()).transactWriteItems(argThat((TransactWriteItemsRequest request) -> isDrain(request)));
+    }
+
+    @Test
+    public void testRedeliveryDrainsTheEntriesEarlierDeliveriesLeft() {
+        CounterDeltas left = new CounterDeltas();
+        left.add(BoycottActions.firstBoycottRiders("u1", "comp1", "2024-01-01T00:00:00Z").get(1));
+        Map<String, AttributeValue> entry = new CounterOutbox.Entry("m1", "e1", left).put().put().item();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(
+                        Map.of("cause_id", AttributeValue.fromS("c1"), "cause_desc", AttributeValue.fromS("desc c1")))))
+                .build());
+        // the first delivery wrote the row and its entry, then the invocation died
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenAnswer(invocation -> {
+            QueryRequest query = invocation.getArgument(0);
+            return CounterOutbox.TABLE.equals(query.tableName())
+                    ? QueryResponse.builder().items(entry).build()
+                    : QueryResponse.builder().items(Map.of("company_cause_id", AttributeValue.fromS("comp1#c1"))).build();
+        });
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        SQSEvent.SQSMessage message = boycott("m1", "u1", "c1");
+        message.setAttributes(Map.of("ApproximateReceiveCount", "2"));
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).handleRequest(event(message),
+                mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        // the row is a duplicate now, so the only transaction is the drain of the entry left
+        ArgumentCaptor<TransactWriteItemsRequest> transactions = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(1)).transactWriteItems(transactions.capture());
+        assertEquals(Map.of("companies#comp1#boycott_count", "1"), amounts(transactions.getValue()));
+        Delete delete = transactions.getValue().transactItems().get(1).delete();
+        assertEquals(Map.of("message_id", AttributeValue.fromS("m1"), "entry_id", AttributeValue.fromS("e1")), delete.key());
+        assertEquals("attribute_exists(entry_id)", delete.conditionExpression());
+    }
+
+    @Test
+    public void testEntryDrainedByAnotherDeliveryIsLeftOutOfTheResend() {
+        stubReads();
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+        // the first drain finds m1's entry already gone: m2's is resent on its own
+        when(dynamoDbMock.transactWriteItems(argThat((TransactWriteItemsRequest request) -> isDrain(request)
+                && request.transactItems().stream().filter(item -> item.delete() != null).count() == 2)))
+                .thenThrow(TransactionCanceledException.builder().message("Transaction cancelled")
+                        .cancellationReasons(CancellationReason.builder().code("None").build(),
+                                CancellationReason.builder().code("None").build(),
+                                CancellationReason.builder().code("None").build(),
+                                CancellationReason.builder().code("None").build(),
+                                CancellationReason.builder().code("None").build(),
+                                CancellationReason.builder().code("ConditionalCheckFailed").build(),
+                                CancellationReason.builder().code("None").build())
+                        .build());
+
+        SQSBatchResponse response = new QueuedUserBoycottsHandler(dynamoDbMock).handleRequest(
+                event(boycott("m1", "u1", "c1"), boycott("m2", "u2", "c2")), mock(Context.class));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        ArgumentCaptor<TransactWriteItemsRequest> transactions = ArgumentCaptor.forClass(TransactWriteItemsRequest.class);
+        verify(dynamoDbMock, times(4)).transactWriteItems(transactions.capture());
+        TransactWriteItemsRequest resent = transactions.getAllValues().get(3);
+        assertEquals("m2", resent.transactItems().get(resent.transactItems().size() - 1).delete().key().get("message_id").s());
+        assertEquals(Map.of(
+                "companies#comp1#boycott_count", "1",
+                "causes#c2#follower_count", "1",
+                "cause_company_stats#c2#comp1#boycott_count", "1"), amounts(resent));
+    }
+
+    @Test
+    public void testDrainIsSplitWhenTheEntriesDoNotFitOneTransaction() {
+        List<CounterOutbox.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            CounterDeltas deltas = new CounterDeltas();
+            deltas.add("companies", Map.of("company_id", AttributeValue.fromS("comp" + i)), "boycott_count", 1, Map.of());
+            entries.add(new CounterOutbox.Entry("m" + i, "e" + i, deltas));
+        }
+        List<List<CounterOutbox.Entry>> runs = CounterOutbox.runs(entries);
+
+        // a counter and a delete per entry: 40 entries make 80 actions
+        assertEquals(List.of(40), runs.stream().map(List::size).toList());
+        entries.addAll(entries.subList(0, 20).stream().map(entry -> new CounterOutbox.Entry(entry.messageId(),
+                entry.entryId() + "-again", entry.deltas())).toList());
+        entries.add(new CounterOutbox.Entry("m-last", "e-last", entries.get(0).deltas()));
+        // the repeated counters cost nothing, so 61 entries with 40 counters fit in two transactions
+        assertEquals(List.of(60, 1), CounterOutbox.runs(entries).stream().map(List::size).toList());
+    }
+}
@@ -0,0 +1,231 @@
+package com.boycottpro.userboycotts;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.boycottpro.userboycotts.model.AddBoycottForm;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class StreamingAddUserBoycottsHandlerTest {
+
+    private static final String USER_ID = "11111111-2222-3333-4444-555555555555";
+    private static final String BODY = """
+        {
+          "company_id": "comp1",
+          "company_name": "this company",
+          "reasons": [ { "cause_id": "c1", "cause_desc": "Labor \\"rights\\"" } ],
+          "personal_reason": "reason"
+        }
+        """;
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeEach
+    public void setup() {
+        ValidationCache.COMPANIES.clear();
+        ValidationCache.CAUSES.clear();
+    }
+
+    private String envelope(String body, boolean base64, boolean authorized) throws Exception {
+        Map<String, Object> requestContext = authorized
+                ? Map.of("requestId", "r1", "authorizer", Map.of("claims", Map.of("sub", USER_ID, "email_verified", true)))
+                : Map.of("requestId", "r1");
+        Map<String, Object> event = new java.util.LinkedHashMap<>();
+        event.put("resource", "/users/boycotts");
+        event.put("httpMethod", "POST");
+        event.put("headers", Map.of("Content-Type", "application/json"));
+        event.put("multiValueHeaders", Map.of("Content-Type", List.of("application/json")));
+        event.put("requestContext", requestContext);
+        event.put("body", base64 ? Base64.getEncoder().encodeToString(body.getBytes(StandardCharsets.UTF_8)) : body);
+        event.put("isBase64Encoded", base64);
+        return objectMapper.writeValueAsString(event);
+    }
+
+    private JsonNode invoke(String input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new StreamingAddUserBoycottsHandler(dynamoDbMock).handleRequest(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), output, mock(Context.class));
+        return objectMapper.readTree(output.toByteArray());
+    }
+
+    private void stubRecording() {
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(GetItemResponse.builder()
+                .item(Map.of("company_name", AttributeValue.fromS("this company"))).build());
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenReturn(QueryResponse.builder().count(0).build());
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(BatchGetItemResponse.builder()
+                .responses(Map.of("causes", List.of(Map.of("cause_id", AttributeValue.fromS("c1"),
+                        "cause_desc", AttributeValue.fromS("Labor \"rights\""))))).build());
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class)))
+                .thenReturn(TransactWriteItemsResponse.builder().build());
+    }
+
+    @Test
+    public void testRecordsFromTheRawEvent() throws Exception {
+        stubRecording();
+
+        JsonNode response = invoke(envelope(BODY, false, true));
+
+        assertEquals(200, response.get("statusCode").asInt());
+        assertEquals("application/json", response.get("headers").get("Content-Type").asText());
+        assertFalse(response.get("isBase64Encoded").asBoolean());
+        assertEquals("All boycotts recorded successfully.",
+                objectMapper.readTree(response.get("body").asText()).get("message").asText());
+        verify(dynamoDbMock, times(1)).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testBase64BodyIsDecoded() throws Exception {
+        stubRecording();
+
+        JsonNode response = invoke(envelope(BODY, true, true));
+
+        assertEquals(200, response.get("statusCode").asInt());
+    }
+
+    @Test
+    public void testUnauthorizedBeforeTheBodyIsRead() throws Exception {
+        JsonNode response = invoke(envelope("{not json", false, false));
+
+        assertEquals(401, response.get("statusCode").asInt());
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testMalformedPayloadsAreRejectedWithoutReads() throws Exception {
+        assertEquals(400, invoke(envelope("{\"company_id\": \"comp1\", \"bogus\": 1}", false, true))
+                .get("statusCode").asInt());
+        assertEquals(400, invoke(envelope("{\"company_id\": \"comp1\"", false, true)).get("statusCode").asInt());
+        assertEquals(400, invoke("{\"body\": ").get("statusCode").asInt());
+        assertEquals(400, invoke("[]").get("statusCode").asInt());
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testMalformedBodyGetsTheSameStatusFromBothHandlers() throws Exception {
+        Map<String, Object> authorizer = new java.util.HashMap<>();
+        authorizer.put("claims", Map.of("sub", USER_ID));
+        APIGatewayProxyRequestEvent.ProxyRequestContext requestContext = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        requestContext.setAuthorizer(authorizer);
+        AddUserBoycottsHandler proxy = new AddUserBoycottsHandler(dynamoDbMock);
+
+        for (String body : java.util.Arrays.asList("{not json", "{\"company_id\": \"comp1\", \"bogus\": 1}",
+                "{\"company_id\": \"comp1\"", null)) {
+            APIGatewayProxyResponseEvent proxied = proxy.handleRequest(
+                    new APIGatewayProxyRequestEvent().withBody(body).withRequestContext(requestContext), mock(Context.class));
+            JsonNode streamed = invoke(envelope(body, false, true));
+
+            assertEquals(400, proxied.getStatusCode(), String.valueOf(body));
+            assertEquals(proxied.getStatusCode(), streamed.get("statusCode").asInt(), String.valueOf(body));
+            assertEquals(proxied.getBody(), streamed.get("body").asText(), String.valueOf(body));
+        }
+        verifyNoInteractions(dynamoDbMock);
+    }
+
+    @Test
+    public void testEnvelopeFieldsOfAnotherShapeAreSkipped() throws Exception {
+        String input = """
+            {
+              "resource": null,
+              "headers": ["Content-Type"],
+              "requestContext": {
+                "identity": { "sourceIp": "127.0.0.1" },
+                "authorizer": {
+                  "principalId": "p1",
+                  "claims": { "sub": "%s", "email_verified": null, "groups": ["admin"] }
+                }
+              },
+              "isBase64Encoded": true,
+              "body": null
+            }
+            """.formatted(USER_ID);
+
+        APIGatewayProxyRequestEvent event = StreamingAddUserBoycottsHandler.readEnvelope(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+
+        assertNull(event.getResource());
+        assertNull(event.getHeaders());
+        assertNull(event.getBody());
+        assertEquals(Map.of("sub", USER_ID), event.getRequestContext().getAuthorizer().get("claims"));
+        // neither a request context nor an authorizer that is not an object is taken
+        APIGatewayProxyRequestEvent flat = StreamingAddUserBoycottsHandler.readEnvelope(new ByteArrayInputStream(
+                "{\"requestContext\": \"r1\", \"body\": 42}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(flat.getRequestContext());
+        assertEquals("42", flat.getBody());
+        APIGatewayProxyRequestEvent noAuthorizer = StreamingAddUserBoycottsHandler.readEnvelope(new ByteArrayInputStream(
+                "{\"requestContext\": {\"authorizer\": null}}".getBytes(StandardCharsets.UTF_8)));
+        assertNull(noAuthorizer.getRequestContext().getAuthorizer());
+        assertEquals(400, invoke("{\"body\": {\"company_id\": \"comp1\"}}").get("statusCode").asInt());
+    }
+
+    @Test
+    public void testFormReaderTakesNullsAndRejectsWhatTheFormCannotHold() throws Exception {
+        AddBoycottForm form = BoycottFormReader.read("""
+            { "user_id": null, "company_id": "comp1", "company_name": "this company", "personal_reason": 7,
+              "reasons": [ { "cause_id": "c1", "cause_desc": null } ] }
+            """);
+        assertNull(form.getUser_id());
+        assertEquals("7", form.getPersonal_reason());
+        assertEquals("c1", form.getReasons().get(0).getCause_id());
+        assertNull(form.getReasons().get(0).getCause_desc());
+        assertNull(BoycottFormReader.read("{\"company_id\": \"comp1\", \"reasons\": null}").getReasons());
+
+        for (String body : List.of("{\"company_id\": \"comp1\"} {}", "{\"company_id\": {\"id\": \"comp1\"}}",
+                "{\"reasons\": [\"c1\"]}", "{\"reasons\": [ { \"cause_id\": \"c1\", \"weight\": 2 } ]}",
+                "{\"reasons\": {\"cause_id\": \"c1\"}}")) {
+            assertThrows(BoycottFormReader.MalformedRequestException.class, () -> BoycottFormReader.read(body), body);
+        }
+    }
+
+    @Test
+    public void testWarmupPingIsAnsweredWithoutRecording() throws Exception {
+        JsonNode response = invoke("{\"resource\": \"" + Priming.WARMUP_RESOURCE + "\"}");
+
+        assertEquals(200, response.get("statusCode").asInt());
+        verify(dynamoDbMock, never()).transactWriteItems(any(TransactWriteItemsRequest.class));
+    }
+
+    @Test
+    public void testResponseWithoutHeadersIsWrittenWithAnEmptyObject() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        StreamingAddUserBoycottsHandler.write(output, new APIGatewayProxyResponseEvent().withStatusCode(204));
+
+        JsonNode response = objectMapper.readTree(output.toByteArray());
+        assertEquals(204, response.get("statusCode").asInt());
+        assertEquals(0, response.get("headers").size());
+    }
+
+    @Test
+    public void testOversizedRequestIsRejected() throws Exception {
+        String padded = envelope(BODY.replace("\"reason\"",
+                "\"" + "x".repeat(StreamingAddUserBoycottsHandler.MAX_REQUEST_BYTES) + "\""), false, true);
+
+        JsonNode response = invoke(padded);
+
+        assertEquals(413, response.get("statusCode").asInt());
+        verifyNoInteractions(dynamoDbMock);
+    }
+}
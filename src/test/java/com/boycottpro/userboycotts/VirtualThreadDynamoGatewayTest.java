@@ -0,0 +1,101 @@
+package com.boycottpro.userboycotts;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class VirtualThreadDynamoGatewayTest {
+
+    @Mock
+    private DynamoDbClient dynamoDbMock;
+
+    @Test
+    public void testNoMoreThanMaxConcurrencyCallsAreInFlight() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        when(dynamoDbMock.query(any(QueryRequest.class))).thenAnswer(invocation -> {
+            peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+                return QueryResponse.builder().count(0).build();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+        VirtualThreadDynamoGateway gateway = new VirtualThreadDynamoGateway(dynamoDbMock, 2);
+
+        List<CompletableFuture<QueryResponse>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            calls.add(gateway.query(QueryRequest.builder().tableName("user_boycotts").build()));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (inFlight.get() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        // the other four are parked on the semaphore, not on the caller
+        Thread.sleep(100);
+        assertEquals(2, inFlight.get());
+        // work handed to offload takes no permit, so it runs while both are held
+        assertEquals("offloaded", gateway.offload(() -> "offloaded").get(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(2, peak.get());
+        verify(dynamoDbMock, times(6)).query(any(QueryRequest.class));
+    }
+
+    @Test
+    public void testDynamoDbExceptionReachesTheCallerUnwrapped() {
+        ResourceNotFoundException missing = ResourceNotFoundException.builder().message("Requested resource not found").build();
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenThrow(missing);
+        GetItemResponse found = GetItemResponse.builder().build();
+        VirtualThreadDynamoGateway gateway = new VirtualThreadDynamoGateway(dynamoDbMock, 1);
+
+        ResourceNotFoundException thrown = assertThrows(ResourceNotFoundException.class,
+                () -> DynamoGateway.await(gateway.getItem(GetItemRequest.builder().tableName("companies").build())));
+
+        assertSame(missing, thrown);
+        // the failed call gave its only permit back
+        reset(dynamoDbMock);
+        when(dynamoDbMock.getItem(any(GetItemRequest.class))).thenReturn(found);
+        assertSame(found, DynamoGateway.await(gateway.getItem(GetItemRequest.builder().tableName("companies").build())));
+    }
+
+    @Test
+    public void testEveryOperationGoesToTheClient() {
+        BatchGetItemResponse batch = BatchGetItemResponse.builder().build();
+        TransactWriteItemsResponse transaction = TransactWriteItemsResponse.builder().build();
+        UpdateItemResponse update = UpdateItemResponse.builder().build();
+        DeleteItemResponse delete = DeleteItemResponse.builder().build();
+        when(dynamoDbMock.batchGetItem(any(BatchGetItemRequest.class))).thenReturn(batch);
+        when(dynamoDbMock.transactWriteItems(any(TransactWriteItemsRequest.class))).thenReturn(transaction);
+        when(dynamoDbMock.updateItem(any(UpdateItemRequest.class))).thenReturn(update);
+        when(dynamoDbMock.deleteItem(any(DeleteItemRequest.class))).thenReturn(delete);
+        // a non-positive limit still lets one call through at a time
+        VirtualThreadDynamoGateway gateway = new VirtualThreadDynamoGateway(dynamoDbMock, 0);
+
+        assertSame(batch, DynamoGateway.await(gateway.batchGetItem(BatchGetItemRequest.builder().build())));
+        assertSame(transaction, DynamoGateway.await(gateway.transactWriteItems(TransactWriteItemsRequest.builder().build())));
+        assertSame(update, DynamoGateway.await(gateway.updateItem(UpdateItemRequest.builder().build())));
+        assertSame(delete, DynamoGateway.await(gateway.deleteItem(DeleteItemRequest.builder().build())));
+        long started = System.nanoTime();
+        DynamoGateway.await(gateway.delay(20));
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+}